@@ -1,18 +1,180 @@
 package com.mnfll.bill_splitter_cli;
 
 import com.mnfll.bill_splitter_cli.utilities.InputHandler;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class App {
+    // Completes once the schema has been checked and migrated, see startSchemaBootstrap
+    private static volatile CompletableFuture<Integer> schemaReady;
 
     public static void main(String[] args) throws ParseException {
+        // `--batch <file>` runs commands from the file, `--batch` alone reads them from standard input
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(runBatch(args.length > 1 ? args[1] : null));
+        }
+        // `--import <csv file> [reject file]` bulk loads expenses from a CSV file
+        if (args.length > 1 && args[0].equals("--import")) {
+            System.exit(runImport(args[1], args.length > 2 ? args[2] : args[1] + ".rejects"));
+        }
+        // `--export <file> [csv|binary]` dumps the combined ledger, gzipped when the file name ends in .gz
+        if (args.length > 1 && args[0].equals("--export")) {
+            System.exit(runExport(args[1], args.length > 2 ? args[2] : "csv"));
+        }
+        // `--backup <file>` writes a snapshot of the ledger, `--restore <file>` replaces the ledger with one
+        if (args.length > 1 && (args[0].equals("--backup") || args[0].equals("--restore"))) {
+            System.exit(runSnapshot(args[0].equals("--restore"), args[1]));
+        }
+        // `--journal verify` checks the ledger journal against the database, `--journal checkpoint` checkpoints it
+        if (args.length > 1 && args[0].equals("--journal")) {
+            System.exit(runJournal(args[1]));
+        }
         displayMainMenu();
     }
 
+    public static int runJournal(String command) {
+        if (!command.equals("verify") && !command.equals("checkpoint")) {
+            System.err.println("Unknown journal command '" + command + "', expected verify or checkpoint");
+            return 2;
+        }
+        if (!LedgerJournal.isEnabled()) {
+            System.err.println("The ledger journal is disabled, set journal.enabled=true to use it.");
+            return 2;
+        }
+        awaitSchema();
+
+        try {
+            LedgerJournal journal = LedgerJournal.getInstance();
+            LedgerJournal.ReplayResult replay = journal.getReplayResult();
+            System.out.printf("Replayed %d record(s) after checkpoint %d from %d segment(s) in %d ms, %d balance(s)%n",
+                    replay.recordsReplayed(), replay.checkpointSequence(), replay.segments(),
+                    replay.elapsedNanos() / 1_000_000, journal.getBalanceCount());
+
+            if (command.equals("checkpoint")) {
+                journal.checkpoint();
+                System.out.println("Checkpoint written.");
+                return 0;
+            }
+
+            int mismatches = UnitOfWork.executeReadOnly(journal::countMismatches);
+            if (mismatches == 0) {
+                System.out.println("The journal balances match the database.");
+                return 0;
+            }
+            // The database is the source of truth, so the journal is brought back in line with it
+            System.out.println(mismatches + " balance(s) differ from the database, resynchronising the journal.");
+            journal.append(UnitOfWork.executeReadOnly(LedgerJournal::readBalanceEntries));
+            journal.awaitDurable();
+            return 1;
+        } catch (IOException | SQLException | RuntimeException e) {
+            System.err.println("Journal " + command + " failed: " + e.getMessage());
+            return 2;
+        } finally {
+            LedgerJournal.shutdown();
+            DatabaseConnectionManager.shutdown();
+        }
+    }
+
+    public static int runSnapshot(boolean restore, String fileName) {
+        LedgerSnapshot ledgerSnapshot = new LedgerSnapshot();
+        awaitSchema();
+
+        try {
+            long start = System.nanoTime();
+            if (restore) {
+                LedgerSnapshot.TableCount[] counts = ledgerSnapshot.restore(Path.of(fileName));
+                LedgerSnapshot.printSummary("Restored", counts, System.nanoTime() - start);
+            } else {
+                LedgerSnapshot.TableCount[] counts = ledgerSnapshot.backup(Path.of(fileName));
+                LedgerSnapshot.printSummary("Backed up", counts, System.nanoTime() - start);
+            }
+            return 0;
+        } catch (IOException | SQLException e) {
+            System.err.println("Failed to " + (restore ? "restore from " : "back up to ") + fileName + ": "
+                    + e.getMessage());
+            return 2;
+        } finally {
+            LedgerJournal.shutdown();
+            DatabaseConnectionManager.shutdown();
+        }
+    }
+
+    public static int runExport(String fileName, String formatName) {
+        LedgerExporter.Format format;
+        try {
+            format = LedgerExporter.Format.parse(formatName);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+        awaitSchema();
+
+        try {
+            LedgerExporter exporter = new LedgerExporter(format, fileName.endsWith(".gz"));
+            LedgerExporter.ExportResult result = exporter.export(Path.of(fileName));
+            LedgerExporter.printSummary(result, Path.of(fileName));
+            return 0;
+        } catch (IOException | SQLException e) {
+            System.err.println("Failed to export to " + fileName + ": " + e.getMessage());
+            return 2;
+        } finally {
+            LedgerJournal.shutdown();
+            DatabaseConnectionManager.shutdown();
+        }
+    }
+
+    public static int runImport(String csvFileName, String rejectFileName) {
+        int workers = DatabaseConnectionManager.getIntProperty(DatabaseConnectionManager.loadConfig(), "import.workers", 1);
+        awaitSchema();
+
+        try {
+            if (workers > 1) {
+                ParallelCsvImporter importer = new ParallelCsvImporter(workers);
+                return importer.importFile(Path.of(csvFileName), Path.of(rejectFileName)) ? 0 : 1;
+            }
+            CsvExpenseImporter importer = new CsvExpenseImporter();
+            CsvExpenseImporter.ImportResult result = importer.importFile(Path.of(csvFileName), Path.of(rejectFileName));
+            return result.rowsRejected() > 0 ? 1 : 0;
+        } catch (IOException | SQLException e) {
+            System.err.println("Failed to import " + csvFileName + ": " + e.getMessage());
+            return 2;
+        } finally {
+            LedgerJournal.shutdown();
+            DatabaseConnectionManager.shutdown();
+        }
+    }
+
+    public static int runBatch(String fileName) {
+        BatchRunner batchRunner = new BatchRunner();
+        awaitSchema();
+
+        try (Reader reader = fileName == null || fileName.equals("-")
+                ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                : Files.newBufferedReader(Path.of(fileName), StandardCharsets.UTF_8)) {
+            batchRunner.run(reader);
+        } catch (IOException e) {
+            System.err.println("Failed to read batch commands: " + e.getMessage());
+            return 2;
+        } finally {
+            OrphanUserSweeper.shutdown();
+            LedgerJournal.shutdown();
+            DatabaseConnectionManager.shutdown();
+        }
+        return batchRunner.hasFailures() ? 1 : 0;
+    }
+
     public static void displayMainMenu() throws ParseException {
         // Create a Scanner object to read user input
         Scanner scanner = new Scanner(System.in);
@@ -21,7 +183,7 @@ public class App {
         System.out.println("Welcome to the Bill Splitter CLI.");
         System.out.println();
 
-        createAllTables();
+        startSchemaBootstrap();
 
         while (running) {
             System.out.println();
@@ -31,26 +193,42 @@ public class App {
             System.out.println("3. Display expenses");
             System.out.println("4. Display combined expenses");
             System.out.println("5. Display net debt");
-            System.out.println("6. Clear data");
-            System.out.println("7. Exit");
+            System.out.println("6. Display settlement plan");
+            System.out.println("7. Clear data");
+            System.out.println("8. Check and rebuild balances");
+            System.out.println("9. Exit");
             System.out.println();
 
             String userInput = scanner.nextLine();
+            if (!userInput.equals("9")) {
+                try {
+                    awaitSchema();
+                } catch (IllegalStateException e) {
+                    // Working on a half-migrated schema could damage the data, so nothing else is allowed
+                    System.err.println("The database schema could not be brought up to date: " + e.getMessage());
+                    break;
+                }
+            }
 
             switch (userInput) {
                 case "1" -> addExpense(scanner);
                 case "2" -> displayEditExpenseMenu(scanner);
-                case "3" -> displayExpenseTransactions();
-                case "4" -> displayCombinedExpenseTransactions();
+                case "3" -> displayExpenseTransactions(scanner);
+                case "4" -> displayCombinedExpenseTransactions(scanner);
                 case "5" -> displayNetDebts();
-                case "6" -> clearData(scanner);
-                case "7" -> running = false;
+                case "6" -> displaySettlementPlan();
+                case "7" -> clearData(scanner);
+                case "8" -> checkAndRebuildBalances();
+                case "9" -> running = false;
                 default -> System.out.println("Invalid input. Please try again.");
             }
         }
 
         System.out.println("Thank you for using the Bill Splitter CLI.");
         scanner.close();
+        OrphanUserSweeper.shutdown();
+        LedgerJournal.shutdown();
+        DatabaseConnectionManager.shutdown();
     }
 
     public static void addExpense(Scanner scanner) throws ParseException {
@@ -66,8 +244,8 @@ public class App {
             String expenseName = InputHandler.promptForExpenseName(scanner);
             if (expenseName == null) return;
 
-            double expenseCostDouble = InputHandler.promptForDouble(scanner);
-            if (Double.isNaN(expenseCostDouble)) return;
+            long expenseCost = InputHandler.promptForCost(scanner);
+            if (expenseCost == -1) return;
 
             int numberOfDebtorsInteger = InputHandler.promptForInteger(scanner);
             if (numberOfDebtorsInteger == 0) return;
@@ -78,7 +256,7 @@ public class App {
             String creditorName = InputHandler.promptForCreditor(scanner, debtorNames);
             if (creditorName == null) return;
 
-            Expense expense = new Expense(date, establishmentName, expenseName, expenseCostDouble, debtorNames, creditorName);
+            Expense expense = new Expense(date, establishmentName, expenseName, expenseCost, debtorNames, creditorName);
             expense.displayExpense();
             saveExpenseDataToDatabase(expense);
 
@@ -86,39 +264,80 @@ public class App {
         }
     }
 
-    public static void createAllTables() {
-        // Create a TableCreationManager to create all tables
+    public static int createAllTables() {
+        // Only runs the migrations the database hasn't seen yet
         TableCreationManager tableCreationManager = new TableCreationManager();
+        return tableCreationManager.migrate();
+    }
 
-        tableCreationManager.createUserTable();
-        tableCreationManager.createExpenseTable();
-        tableCreationManager.createUserExpenseTable();
-        tableCreationManager.createCombinedUserExpenseView();
+    /**
+     * Starts the schema check on a background thread, so the first prompt doesn't wait for the connection pool, the
+     * logging configuration and the version query. Anything that touches the database calls {@link #awaitSchema()}
+     * first.
+     */
+    public static synchronized void startSchemaBootstrap() {
+        if (schemaReady == null) {
+            schemaReady = CompletableFuture.supplyAsync(App::createAllTables);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the schema could not be brought up to date, on every call from then on
+     */
+    public static int awaitSchema() {
+        startSchemaBootstrap();
+        try {
+            return schemaReady.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
     }
 
     public static void saveExpenseDataToDatabase(Expense expense) {
+        try {
+            // Save the users, the expense and each user's share as a single transaction
+            UnitOfWork.execute(conn -> saveExpense(conn, expense));
+        } catch (SQLException e) {
+            System.err.println("Failed to save the expense, no changes were made: " + e.getMessage());
+        }
+    }
 
+    /**
+     * Saves the users, the expense and each user's share within the caller's transaction.
+     *
+     * @return the id of the new expense
+     */
+    public static int saveExpense(Connection conn, Expense expense) throws SQLException {
         // Create a JdbcUserDAO object to perform SQL operations to the User table
-        JdbcUserDAO jdbcUserDAO = new JdbcUserDAO();
+        UserDAO jdbcUserDAO = new JdbcUserDAO();
 
         // Create a JdbcExpensePersonsDAO object to perform SQL operations to the ExpensePersons table
-        JdbcUserExpenseDAO jdbcUserExpenseDAO = new JdbcUserExpenseDAO();
+        UserExpenseDAO jdbcUserExpenseDAO = new JdbcUserExpenseDAO();
 
         // Create a JdbcExpenseDAO object to perform SQL operations to the Expense table
-        JdbcExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
+        ExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
+
+        List<Integer> personIds = jdbcUserDAO.insertUserData(conn, expense);
 
-        createAllTables();
+        // The creditor is always one of the debtors, so their user_id has already been resolved
+        int creditorIndex = expense.getDebtorNames().indexOf(expense.getCreditorName());
+        int creditorId = creditorIndex >= 0
+                ? personIds.get(creditorIndex)
+                : jdbcUserDAO.getUserIdByName(conn, expense.getCreditorName());
 
-        List<Integer> personIds = jdbcUserDAO.insertUserData(expense);
-        int expenseId = jdbcExpenseDAO.insertExpenseData(expense);
-        jdbcUserExpenseDAO.insertUserExpenseData(expense, personIds, expenseId);
+        int expenseId = jdbcExpenseDAO.insertExpenseData(conn, expense, creditorId);
+        jdbcUserExpenseDAO.insertUserExpenseData(conn, expense, personIds, expenseId, creditorId);
+        return expenseId;
     }
 
     public static void displayEditExpenseMenu(Scanner scanner) {
 
-        System.out.println("Displaying all transactions...");
+        System.out.println("Displaying all transactions, enter 'q' when you have found the expense...");
         System.out.println();
-        displayCombinedExpenseTransactions();
+        displayCombinedExpenseTransactions(scanner);
 
         int expenseId;
 
@@ -223,14 +442,14 @@ public class App {
         }
     }
 
-    public static void displayExpenseTransactions() {
-        JdbcExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
-        jdbcExpenseDAO.displayExpenseTransactions();
+    public static void displayExpenseTransactions(Scanner scanner) {
+        TransactionPager transactionPager = new TransactionPager(TransactionPager.Listing.EXPENSES);
+        transactionPager.run(scanner);
     }
 
-    public static void displayCombinedExpenseTransactions() {
-        JdbcExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
-        jdbcExpenseDAO.displayCombinedExpenseTransactions();
+    public static void displayCombinedExpenseTransactions(Scanner scanner) {
+        TransactionPager transactionPager = new TransactionPager(TransactionPager.Listing.COMBINED);
+        transactionPager.run(scanner);
     }
 
     public static void displayFilteredCombinedExpenseTransactions(int expenseId) {
@@ -239,39 +458,78 @@ public class App {
     }
 
     public static boolean expenseIdExists(int expenseId) {
-        JdbcExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
+        ExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
         return jdbcExpenseDAO.expenseIdExists(expenseId);
     }
 
     public static void displayNetDebts() {
         try {
-            JdbcUserDAO jdbcUserDAO = new JdbcUserDAO();
             DebtCalculator debtCalculator = new DebtCalculator();
-            List<DebtRecord> debtRecords = debtCalculator.calculateDebt();
-            List<String> userNames = jdbcUserDAO.getAllUserNames();
+            DebtSummaryCache.DebtSummary summary = DebtSummaryCache.getInstance().getSummary();
+            ParticipantIndex participants = summary.getParticipants();
+            SparseDebtMatrix debtMatrix = summary.getDebtMatrix();
 
-            if (debtRecords.isEmpty()) {
-                System.out.println("There are no debts.");
+            if (participants.size() == 0) {
+                System.out.println("There are no user.");
                 return;
             }
 
-            if (userNames.isEmpty()) {
-                System.out.println("There are no user.");
+            if (debtMatrix.entryCount() == 0) {
+                System.out.println("There are no debts.");
                 return;
             }
 
-            double[][] debtMatrix = debtCalculator.createDebtMatrix(debtRecords, userNames);
-            debtCalculator.displayDebtMatrix(debtMatrix, userNames);
+            debtCalculator.displayDebtMatrix(debtMatrix, participants);
 
-            double[][] netDebts = debtCalculator.calculateNetDebts(debtMatrix, userNames);
+            SparseDebtMatrix netDebts = summary.getNetDebts();
             System.out.println();
-            debtCalculator.displayNetDebts(netDebts, userNames);
+            debtCalculator.displayNetDebts(netDebts, participants);
         } catch (Exception e) {
             System.err.println("An error occurred while displaying net debts: " + e.getMessage());
         }
     }
 
-    public static void dropAllTables() {
+    public static void displaySettlementPlan() {
+        try {
+            DebtSummaryCache.DebtSummary summary = DebtSummaryCache.getInstance().getSummary();
+            ParticipantIndex participants = summary.getParticipants();
+            SparseDebtMatrix debtMatrix = summary.getDebtMatrix();
+
+            if (debtMatrix.entryCount() == 0) {
+                System.out.println("There are no debts.");
+                return;
+            }
+
+            SettlementPlanner settlementPlanner = new SettlementPlanner();
+            long[] netPositions = summary.getNetPositions();
+            List<SettlementPlanner.Transfer> transfers = settlementPlanner.plan(netPositions, SettlementPlanner.Mode.AUTO);
+
+            System.out.println("Settlement plan (" + transfers.size() + " transfer(s)):");
+            for (SettlementPlanner.Transfer transfer : transfers) {
+                System.out.println(participants.nameAt(transfer.from()) + " pays " + participants.nameAt(transfer.to())
+                        + " " + Money.format(transfer.amountCents()));
+            }
+        } catch (Exception e) {
+            System.err.println("An error occurred while displaying the settlement plan: " + e.getMessage());
+        }
+    }
+
+    public static void checkAndRebuildBalances() {
+        JdbcBalanceDAO jdbcBalanceDAO = new JdbcBalanceDAO();
+        jdbcBalanceDAO.checkAndRebuildBalances();
+    }
+
+    /**
+     * Drops the views and every table except `ledger_generation`.
+     *
+     * @return whether everything was dropped
+     */
+    public static boolean dropAllTables() {
+        // H2 won't drop a table a view depends on
+        if (!dropAllViews()) {
+            return false;
+        }
+
         Connection conn = null;
         Statement stmt = null;
         ResultSet rs = null;
@@ -281,10 +539,12 @@ public class App {
             DatabaseMetaData metaData = conn.getMetaData();
             stmt = conn.createStatement();
 
-            String[] tableNames = {"user_expense", "expense", "user"};
+            // Dropped first, so even when a later drop fails the next migration runs every step again and recreates
+            // whatever is missing
+            String[] tableNames = {"schema_version", "user_balance", "user_expense", "expense", "user"};
 
             for (String tableName : tableNames) {
-                rs = metaData.getTables(null, null, tableName, null);
+                rs = metaData.getTables(conn.getCatalog(), null, tableName, null);
                 if (rs.next()) {
                     String dropTableSQL = "DROP TABLE " + tableName;
                     stmt.executeUpdate(dropTableSQL);
@@ -293,8 +553,17 @@ public class App {
                     System.out.println("Table " + tableName + " does not exist.");
                 }
             }
+            // The cached user ids refer to rows that no longer exist
+            JdbcUserDAO.getUserCache().invalidateAll();
+            // `ledger_generation` is kept so other instances still see the counter move
+            rs = metaData.getTables(conn.getCatalog(), null, "ledger_generation", null);
+            if (rs.next()) {
+                DebtSummaryCache.recordChange(conn);
+            }
+            return true;
         } catch (SQLException e) {
             System.err.println("Error occurred while dropping tables: " + e.getMessage());
+            return false;
         } finally {
             ResourcesUtils.closeStatement(stmt);
             ResourcesUtils.closeResultSet(rs);
@@ -302,7 +571,10 @@ public class App {
         }
     }
 
-    public static void dropAllViews() {
+    /**
+     * @return whether every view was dropped
+     */
+    public static boolean dropAllViews() {
         Connection conn = null;
         ResultSet rs = null;
         Statement stmt = null;
@@ -315,7 +587,7 @@ public class App {
             String[] viewNames = {"combined_user_expense"};
 
             for (String viewName : viewNames) {
-                rs = metaData.getTables(null, null, viewName, null);
+                rs = metaData.getTables(conn.getCatalog(), null, viewName, null);
                 if (rs.next()) {
                     String dropTableSQL = "DROP VIEW " + viewName;
                     stmt.executeUpdate(dropTableSQL);
@@ -324,8 +596,10 @@ public class App {
                     System.out.println("View " + viewName + " does not exist.");
                 }
             }
+            return true;
         } catch (SQLException e) {
-            System.err.println("Error occurred while dropping tables: " + e.getMessage());
+            System.err.println("Error occurred while dropping views: " + e.getMessage());
+            return false;
         } finally {
             ResourcesUtils.closeStatement(stmt);
             ResourcesUtils.closeResultSet(rs);
@@ -336,10 +610,15 @@ public class App {
     public static void clearData(Scanner scanner) {
         System.out.print("Are you sure you want to drop the table? This action cannot be undone. [y/N]: ");
         String confirmDrop = scanner.nextLine().trim().toLowerCase();
-        if (!confirmDrop.isBlank() || confirmDrop.equals("y") || confirmDrop.equals("yes")) {
-            dropAllTables();
-            dropAllViews();
-            createAllTables();
+        if (confirmDrop.equals("y") || confirmDrop.equals("yes")) {
+            if (!dropAllTables()) {
+                System.err.println("The data was only partly cleared.");
+            }
+            try {
+                createAllTables();
+            } catch (IllegalStateException e) {
+                System.err.println("Failed to recreate the tables: " + e.getMessage());
+            }
         } else {
             System.out.println("Operation cancelled. The data was not cleared.");
             System.out.println();
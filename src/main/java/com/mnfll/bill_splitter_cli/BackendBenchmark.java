@@ -0,0 +1,169 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Runs the same workload against the MySQL backend and the embedded backend and compares them.
+ * <p>
+ * The workload saves expenses one transaction each, as the interactive menu does, reads expenses back by primary key,
+ * and loads the debt snapshot and nets it as the debt report does. It then deletes the expenses it added and the
+ * users it created, whose names are unique to the run, and nothing else. Each backend runs in a fresh JVM so neither
+ * benefits from the other's warmed-up classes. The embedded database is created in a temporary directory, and the
+ * MySQL leg runs against the schema named by the required {@code bench.mysql.url} system property, which must not be
+ * the configured {@code db.url}, so the benchmark never writes to the real ledger. Usage:
+ * {@code java -Dbench.mysql.url=jdbc:mysql://host:3306/bench_schema BackendBenchmark [expenses] [reads] [reports]},
+ * 1000, 10000 and 20 by default.
+ */
+public class BackendBenchmark {
+    private static final String SINGLE_RUN_FLAG = "--single-run";
+    private static final String MYSQL_URL_PROPERTY = "bench.mysql.url";
+    private static final String[] BACKENDS = {"mysql", "embedded"};
+    private static final int PARTICIPANTS = 20;
+    private static final int DEBTORS_PER_EXPENSE = 3;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(SINGLE_RUN_FLAG)) {
+            runOnce(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+            return;
+        }
+
+        String mysqlUrl = System.getProperty(MYSQL_URL_PROPERTY);
+        if (mysqlUrl == null || mysqlUrl.isBlank()) {
+            System.err.println("Set -D" + MYSQL_URL_PROPERTY + " to the JDBC URL of a schema set aside for the benchmark");
+            System.exit(2);
+        }
+        if (mysqlUrl.equals(DatabaseConnectionManager.loadConfig().getProperty("db.url"))) {
+            System.err.println(MYSQL_URL_PROPERTY + " must not be the configured db.url, use a dedicated schema");
+            System.exit(2);
+        }
+
+        int expenses = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int reports = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        long[][] timings = new long[BACKENDS.length][];
+        Path embeddedDirectory = Files.createTempDirectory("bill-splitter-bench");
+        try {
+            for (int i = 0; i < BACKENDS.length; i++) {
+                timings[i] = launchChild(BACKENDS[i], mysqlUrl, embeddedDirectory, expenses, reads, reports);
+            }
+        } finally {
+            deleteDirectory(embeddedDirectory);
+        }
+
+        System.out.println();
+        System.out.printf("%-28s %14s %14s%n", "Per operation", BACKENDS[0], BACKENDS[1]);
+        printRow("save expense (transaction)", timings, 0, expenses);
+        printRow("read expense by id", timings, 1, reads);
+        printRow("load and net debts", timings, 2, reports);
+    }
+
+    // The expenses are spread over a fixed set of participants so the debt report has a realistic shape
+    private static void runOnce(String userPrefix, int expenses, int reads, int reports) throws SQLException {
+        App.awaitSchema();
+        ExpenseDAO expenseDAO = new JdbcExpenseDAO();
+        DebtCalculator debtCalculator = new DebtCalculator();
+        NetDebtEngine netDebtEngine = new NetDebtEngine();
+        int[] expenseIds = new int[expenses];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < expenses; i++) {
+            List<String> debtorNames = new ArrayList<>(DEBTORS_PER_EXPENSE);
+            for (int d = 0; d < DEBTORS_PER_EXPENSE; d++) {
+                debtorNames.add(userPrefix + (i + d) % PARTICIPANTS);
+            }
+            Expense expense = new Expense(new Date(), "Benchmark", "item " + i, 1000 + i, debtorNames,
+                    debtorNames.get(0));
+            expenseIds[i] = UnitOfWork.execute(conn -> App.saveExpense(conn, expense));
+        }
+        long saveNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < reads && expenses > 0; i++) {
+            int expenseId = expenseIds[i % expenses];
+            UnitOfWork.executeReadOnly(conn -> expenseDAO.getTotalCost(conn, expenseId));
+        }
+        long readNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < reports; i++) {
+            netDebtEngine.calculateNetDebts(debtCalculator.loadSnapshot().debtMatrix());
+        }
+        long reportNanos = System.nanoTime() - start;
+
+        UnitOfWork.execute(conn -> {
+            for (int expenseId : expenseIds) {
+                expenseDAO.deleteExpense(conn, expenseId);
+            }
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM user WHERE user_name LIKE ?")) {
+                ps.setString(1, userPrefix + "%");
+                ps.executeUpdate();
+            }
+            DebtSummaryCache.recordChange(conn);
+            return null;
+        });
+
+        System.out.println("TIMINGS " + saveNanos + " " + readNanos + " " + reportNanos);
+        DatabaseConnectionManager.shutdown();
+    }
+
+    private static long[] launchChild(String backend, String mysqlUrl, Path embeddedDirectory, int expenses, int reads,
+                                      int reports) throws IOException, InterruptedException {
+        String javaBinary = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        // Unique to this run, so the cleanup can't touch users that were there before
+        String userPrefix = "bench-" + System.currentTimeMillis() + "-user-";
+        List<String> command = new ArrayList<>(List.of(javaBinary, "-cp", System.getProperty("java.class.path"),
+                "-Ddb.backend=" + backend, "-Ddb.url=" + mysqlUrl,
+                "-Ddb.embedded.path=" + embeddedDirectory.resolve("ledger"),
+                BackendBenchmark.class.getName(), SINGLE_RUN_FLAG, userPrefix,
+                String.valueOf(expenses), String.valueOf(reads), String.valueOf(reports)));
+
+        System.out.println("Running the workload against the " + backend + " backend...");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        long[] timings = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("TIMINGS ")) {
+                    String[] parts = line.split(" ");
+                    timings = new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3])};
+                }
+            }
+        }
+
+        int exitCode = process.waitFor();
+        if (timings == null) {
+            throw new IllegalStateException("The " + backend + " run exited with code " + exitCode
+                    + " without reporting timings");
+        }
+        return timings;
+    }
+
+    private static void printRow(String label, long[][] timings, int column, int operations) {
+        System.out.printf("%-28s", label);
+        for (long[] backendTimings : timings) {
+            System.out.printf(" %11.1f us", operations == 0 ? 0.0 : backendTimings[column] / 1000.0 / operations);
+        }
+        System.out.println();
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Access to `user_balance`, the outstanding amount each debtor owes each creditor.
+ */
+public interface BalanceDAO {
+
+    /**
+     * An amount, in cents, to add to what {@code debtorId} owes {@code creditorId}.
+     */
+    record BalanceChange(int creditorId, int debtorId, long amountCents) {
+    }
+
+    void addExpenseContribution(Connection conn, int expenseId) throws SQLException;
+
+    /**
+     * Adds each change to the balance of its pair, creating the rows that don't exist yet.
+     */
+    void addBalanceChanges(Connection conn, List<BalanceChange> changes) throws SQLException;
+
+    void removeExpenseContribution(Connection conn, int expenseId) throws SQLException;
+
+    /**
+     * @return the number of pairs whose balance doesn't match their outstanding shares
+     */
+    int countInconsistentBalances(Connection conn) throws SQLException;
+
+    /**
+     * Recomputes every balance from `user_expense`.
+     *
+     * @return the number of balance rows written
+     */
+    int rebuildBalances(Connection conn) throws SQLException;
+}
@@ -0,0 +1,258 @@
+package com.mnfll.bill_splitter_cli;
+
+import com.mnfll.bill_splitter_cli.utilities.InputValidator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs commands from a file or standard input without any prompting, one command per line:
+ * <pre>
+ * add|31/01/2024|Establishment|Item|12.50|Creditor|Alice,Bob,Creditor
+ * pay|42|Alice|y
+ * delete|42
+ * report|net
+ * report|settlement
+ * </pre>
+ * Blank lines and lines starting with {@code #} are skipped. Commands are validated with the same rules as the
+ * interactive prompts and applied in transactions of {@code batch.transactionSize} commands. A command that fails is
+ * rolled back to its own savepoint and reported, and the rest of its transaction still commits. A deadlock or
+ * serialization failure rolls back the whole transaction, so it is retried from its first command, and its commands
+ * are all reported as failed if it keeps failing.
+ */
+public class BatchRunner {
+    private static final String TRANSACTION_SIZE_KEY = "batch.transactionSize";
+    private static final int MAX_FLUSH_ATTEMPTS = 5;
+
+    private final int transactionSize;
+    private final UserDAO jdbcUserDAO = new JdbcUserDAO();
+    private final ExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
+    private final UserExpenseDAO jdbcUserExpenseDAO = new JdbcUserExpenseDAO();
+
+    private long commandCount;
+    private long succeededCount;
+    private long rejectedCount;
+    private long failedCount;
+    private long transactionCount;
+    private boolean sweepRequested;
+
+    @FunctionalInterface
+    private interface BatchCommand {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    private record PendingCommand(int lineNumber, BatchCommand command) {
+    }
+
+    public BatchRunner() {
+        this(DatabaseConnectionManager.getIntProperty(DatabaseConnectionManager.loadConfig(), TRANSACTION_SIZE_KEY, 500));
+    }
+
+    public BatchRunner(int transactionSize) {
+        this.transactionSize = Math.max(1, transactionSize);
+    }
+
+    public void run(Reader input) throws IOException {
+        long start = System.nanoTime();
+        List<PendingCommand> pending = new ArrayList<>(transactionSize);
+        BufferedReader reader = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input);
+
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            commandCount++;
+
+            String[] fields = line.split("\\|", -1);
+            try {
+                if (fields[0].trim().equalsIgnoreCase("report")) {
+                    // Reports read committed data, so everything before them is committed first
+                    flush(pending);
+                    runReport(fields);
+                    succeededCount++;
+                    continue;
+                }
+                pending.add(new PendingCommand(lineNumber, parse(fields)));
+            } catch (IllegalArgumentException e) {
+                rejectedCount++;
+                System.err.println("Line " + lineNumber + " rejected: " + e.getMessage());
+                continue;
+            }
+
+            if (pending.size() >= transactionSize) {
+                flush(pending);
+            }
+        }
+        flush(pending);
+
+        printSummary(System.nanoTime() - start);
+    }
+
+    public boolean hasFailures() {
+        return rejectedCount > 0 || failedCount > 0;
+    }
+
+    private BatchCommand parse(String[] fields) {
+        String commandName = fields[0].trim().toLowerCase();
+        switch (commandName) {
+            case "add":
+                return parseAdd(fields);
+            case "pay":
+                return parsePay(fields);
+            case "delete":
+                return parseDelete(fields);
+            default:
+                throw new IllegalArgumentException("Unknown command '" + fields[0] + "'");
+        }
+    }
+
+    private BatchCommand parseAdd(String[] fields) {
+        requireFieldCount(fields, 7, "add|date|establishment|item|cost|creditor|debtor,debtor,...");
+        Expense expense = ExpenseParser.parse(fields[1], fields[2], fields[3], fields[4], fields[5], fields[6]);
+        return conn -> App.saveExpense(conn, expense);
+    }
+
+    private BatchCommand parsePay(String[] fields) {
+        requireFieldCount(fields, 4, "pay|expense id|debtor|y or n");
+        int expenseId = parseExpenseId(fields[1]);
+        String debtorName = fields[2].trim();
+        String paymentStatus = fields[3].trim().toLowerCase();
+
+        if (!InputValidator.isValidName(debtorName)) {
+            throw new IllegalArgumentException("Invalid debtor name '" + debtorName + "'");
+        }
+        if (!paymentStatus.equals("y") && !paymentStatus.equals("n")) {
+            throw new IllegalArgumentException("Invalid payment status '" + fields[3] + "', expected y or n");
+        }
+
+        return conn -> {
+            int debtorId = jdbcUserDAO.getUserIdByName(conn, debtorName);
+            if (debtorId == -1 || jdbcUserExpenseDAO.setPaymentStatus(conn, expenseId, debtorId, paymentStatus) == 0) {
+                throw new SQLException("'" + debtorName + "' is not a debtor of expense " + expenseId);
+            }
+        };
+    }
+
+    private BatchCommand parseDelete(String[] fields) {
+        requireFieldCount(fields, 2, "delete|expense id");
+        int expenseId = parseExpenseId(fields[1]);
+
+        return conn -> {
+            if (jdbcExpenseDAO.getTotalCost(conn, expenseId) == -1) {
+                throw new SQLException("Expense " + expenseId + " does not exist");
+            }
+            jdbcExpenseDAO.deleteExpense(conn, expenseId);
+            sweepRequested = true;
+        };
+    }
+
+    private void runReport(String[] fields) {
+        requireFieldCount(fields, 2, "report|net or report|settlement");
+        switch (fields[1].trim().toLowerCase()) {
+            case "net" -> App.displayNetDebts();
+            case "settlement" -> App.displaySettlementPlan();
+            default -> throw new IllegalArgumentException("Unknown report '" + fields[1] + "'");
+        }
+    }
+
+    private static void requireFieldCount(String[] fields, int count, String usage) {
+        if (fields.length != count) {
+            throw new IllegalArgumentException("Expected " + usage);
+        }
+    }
+
+    private static int parseExpenseId(String field) {
+        if (!InputValidator.isValidInteger(field)) {
+            throw new IllegalArgumentException("Invalid expense ID '" + field + "'");
+        }
+        return Integer.parseInt(field.trim());
+    }
+
+    private void flush(List<PendingCommand> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            // Only counted once the transaction has committed, a retry starts over
+            List<String> commandFailures = new ArrayList<>();
+            try {
+                UnitOfWork.execute(conn -> {
+                    for (PendingCommand pendingCommand : pending) {
+                        try {
+                            UnitOfWork.executeInSavepoint(conn, c -> {
+                                pendingCommand.command().apply(c);
+                                return null;
+                            });
+                        } catch (SQLException e) {
+                            if (isTransactionAborted(e)) {
+                                // The commands before this one are gone as well, the whole transaction has to go
+                                throw e;
+                            }
+                            commandFailures.add("Line " + pendingCommand.lineNumber() + " failed: " + e.getMessage());
+                        } catch (RuntimeException e) {
+                            commandFailures.add("Line " + pendingCommand.lineNumber() + " failed: " + e.getMessage());
+                        }
+                    }
+                    return null;
+                });
+                commandFailures.forEach(System.err::println);
+                succeededCount += pending.size() - commandFailures.size();
+                failedCount += commandFailures.size();
+                transactionCount++;
+                break;
+            } catch (SQLException e) {
+                String transaction = "Transaction of " + pending.size() + " command(s) ending at line "
+                        + pending.get(pending.size() - 1).lineNumber();
+                if (isTransactionAborted(e) && attempt < MAX_FLUSH_ATTEMPTS) {
+                    System.err.println(transaction + " was rolled back, retrying: " + e.getMessage());
+                    backOff(attempt);
+                    continue;
+                }
+                // Nothing in this transaction was applied
+                failedCount += pending.size();
+                System.err.println(transaction + " failed: " + e.getMessage());
+                break;
+            }
+        }
+        pending.clear();
+
+        if (sweepRequested) {
+            sweepRequested = false;
+            OrphanUserSweeper.requestSweep();
+        }
+    }
+
+    // A random pause, so two batches that deadlocked on each other don't meet again in the same order
+    private static void backOff(int attempt) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(10, 50) * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Deadlocks and serialization failures roll back the whole transaction, not just the statement that hit them
+    private static boolean isTransactionAborted(SQLException e) {
+        return e instanceof SQLTransactionRollbackException || "40001".equals(e.getSQLState());
+    }
+
+    private void printSummary(long elapsedNanos) {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        System.out.println();
+        System.out.printf("Batch finished in %.2f s: %d command(s), %d succeeded, %d rejected, %d failed, "
+                        + "%d transaction(s), %.1f commands/s%n", seconds, commandCount, succeededCount, rejectedCount,
+                failedCount, transactionCount, seconds > 0 ? commandCount / seconds : 0.0);
+    }
+}
@@ -0,0 +1,343 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of physical database connections.
+ * <p>
+ * Connections handed out by {@link #getConnection()} are proxies: calling {@code close()} on them returns the
+ * underlying connection to the pool instead of closing it, so the existing DAO code can keep using
+ * {@link ResourcesUtils#closeConnection(Connection)} unchanged.
+ */
+public class ConnectionPool {
+    private static final Logger logger = LogManager.getLogger(ConnectionPool.class);
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long leakDetectionThresholdMillis;
+    private final int validationTimeoutSeconds;
+    private final long validationIdleMillis;
+
+    // Permits bound the number of connections that may be leased at the same time
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<IdleConnection> idleConnections = new LinkedBlockingDeque<>();
+    private final Map<Connection, Lease> activeLeases = new ConcurrentHashMap<>();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final AtomicInteger waitingThreads = new AtomicInteger();
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong acquireTimeoutCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+    private final ScheduledExecutorService leakDetector;
+    // Isolation level the driver hands out by default, read from the first physical connection
+    private volatile int defaultIsolation = -1;
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, String username, String password, int minSize, int maxSize,
+                          long acquireTimeoutMillis, long leakDetectionThresholdMillis, int validationTimeoutSeconds,
+                          long validationIdleMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool max size must be at least 1");
+        }
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.minSize = Math.max(0, Math.min(minSize, maxSize));
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.validationIdleMillis = validationIdleMillis;
+        this.permits = new Semaphore(maxSize, true);
+
+        if (leakDetectionThresholdMillis > 0) {
+            leakDetector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "connection-leak-detector");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1000, leakDetectionThresholdMillis / 2);
+            leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            leakDetector = null;
+        }
+    }
+
+    /**
+     * Opens connections until the pool holds at least the configured minimum number of idle connections.
+     */
+    public void warmUp() {
+        while (totalConnections.get() < minSize) {
+            try {
+                idleConnections.offerLast(new IdleConnection(openPhysicalConnection(), System.currentTimeMillis()));
+            } catch (SQLException e) {
+                logger.error("Failed to pre-fill the connection pool: {}", e.getMessage());
+                return;
+            }
+        }
+        logger.info("Connection pool warmed up with {} connection(s)", totalConnections.get());
+    }
+
+    /**
+     * Leases a connection, validating it first if it has sat idle for longer than the validation idle time, waiting up to the configured acquire timeout for one to become free.
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool has been shut down");
+        }
+
+        long start = System.nanoTime();
+        boolean acquired;
+        waitingThreads.incrementAndGet();
+        try {
+            acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        } finally {
+            waitingThreads.decrementAndGet();
+        }
+
+        long waited = System.nanoTime() - start;
+        if (!acquired) {
+            acquireTimeoutCount.incrementAndGet();
+            throw new SQLTimeoutException("Timed out after " + acquireTimeoutMillis
+                    + " ms waiting for a database connection (" + getStats() + ")");
+        }
+        recordWait(waited);
+
+        try {
+            Connection physical = takeValidIdleConnection();
+            if (physical == null) {
+                physical = openPhysicalConnection();
+            }
+            activeLeases.put(physical, new Lease(System.currentTimeMillis(), Thread.currentThread().getName(),
+                    leakDetectionThresholdMillis > 0 ? new Throwable("Connection acquired here") : null));
+            return wrap(physical);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public PoolStats getStats() {
+        int active = activeLeases.size();
+        long acquisitions = acquireCount.get();
+        return new PoolStats(active, idleConnections.size(), totalConnections.get(), maxSize, waitingThreads.get(),
+                acquisitions, acquireTimeoutCount.get(),
+                acquisitions == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / acquisitions),
+                TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get()), leakCount.get());
+    }
+
+    /**
+     * Closes every idle connection and stops handing out new ones. Leased connections are closed when returned.
+     */
+    public void shutdown() {
+        closed = true;
+        if (leakDetector != null) {
+            leakDetector.shutdownNow();
+        }
+        IdleConnection idle;
+        while ((idle = idleConnections.pollFirst()) != null) {
+            closePhysicalConnection(idle.connection());
+        }
+        logger.info("Connection pool shut down");
+    }
+
+    private void recordWait(long waitedNanos) {
+        acquireCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitedNanos);
+        maxWaitNanos.accumulateAndGet(waitedNanos, Math::max);
+    }
+
+    private Connection takeValidIdleConnection() {
+        IdleConnection idle;
+        while ((idle = idleConnections.pollFirst()) != null) {
+            Connection conn = idle.connection();
+            // A connection returned moments ago is still good, checking it would cost a round trip on every lease
+            if (System.currentTimeMillis() - idle.idleSince() < validationIdleMillis) {
+                return conn;
+            }
+            try {
+                if (conn.isValid(validationTimeoutSeconds)) {
+                    return conn;
+                }
+                logger.warn("Discarding an invalid pooled connection");
+            } catch (SQLException e) {
+                logger.warn("Failed to validate a pooled connection: {}", e.getMessage());
+            }
+            closePhysicalConnection(conn);
+        }
+        return null;
+    }
+
+    private Connection openPhysicalConnection() throws SQLException {
+        Connection conn = DriverManager.getConnection(url, username, password);
+        if (defaultIsolation == -1) {
+            defaultIsolation = conn.getTransactionIsolation();
+        }
+        totalConnections.incrementAndGet();
+        logger.debug("Opened a new physical connection. Pool size is now {}", totalConnections.get());
+        return conn;
+    }
+
+    private void closePhysicalConnection(Connection conn) {
+        totalConnections.decrementAndGet();
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            logger.error("Failed to close a pooled connection: {}", e.getMessage(), e);
+        }
+    }
+
+    private void release(Connection physical, boolean sessionStateChanged) {
+        activeLeases.remove(physical);
+        try {
+            if (closed || physical.isClosed()) {
+                closePhysicalConnection(physical);
+                return;
+            }
+            resetState(physical, sessionStateChanged);
+            idleConnections.offerFirst(new IdleConnection(physical, System.currentTimeMillis()));
+        } catch (SQLException e) {
+            logger.warn("Discarding a connection that could not be reset: {}", e.getMessage());
+            closePhysicalConnection(physical);
+        } finally {
+            permits.release();
+        }
+    }
+
+    // Undo anything a borrower may have changed so the next borrower gets a connection in the default state
+    private void resetState(Connection physical, boolean sessionStateChanged) throws SQLException {
+        if (!physical.getAutoCommit()) {
+            physical.rollback();
+            physical.setAutoCommit(true);
+        }
+        // Only touched when the borrower changed them, since reading them back can cost a round trip
+        if (sessionStateChanged) {
+            physical.setReadOnly(false);
+            if (defaultIsolation != -1) {
+                physical.setTransactionIsolation(defaultIsolation);
+            }
+        }
+    }
+
+    private void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (Lease lease : activeLeases.values()) {
+            if (!lease.reported && now - lease.acquiredAt > leakDetectionThresholdMillis) {
+                lease.reported = true;
+                leakCount.incrementAndGet();
+                logger.warn("Possible connection leak: connection leased by thread '{}' has not been returned after {} ms",
+                        lease.threadName, now - lease.acquiredAt, lease.acquiredBy);
+            }
+        }
+    }
+
+    private Connection wrap(Connection physical) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                new PooledConnectionHandler(physical));
+    }
+
+    private class PooledConnectionHandler implements InvocationHandler {
+        private final Connection physical;
+        private boolean returned;
+        // Set once the borrower changes the read-only flag or the isolation level
+        private boolean sessionStateChanged;
+
+        PooledConnectionHandler(Connection physical) {
+            this.physical = physical;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        release(physical, sessionStateChanged);
+                    }
+                    return null;
+                case "setReadOnly":
+                case "setTransactionIsolation":
+                    sessionStateChanged = true;
+                    return invokePhysical(method, args);
+                case "isClosed":
+                    return returned || physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + physical + "]";
+                default:
+                    return invokePhysical(method, args);
+            }
+        }
+
+        private Object invokePhysical(Method method, Object[] args) throws Throwable {
+            if (returned) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            try {
+                return method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private record IdleConnection(Connection connection, long idleSince) {
+    }
+
+    private static class Lease {
+        private final long acquiredAt;
+        private final String threadName;
+        private final Throwable acquiredBy;
+        private volatile boolean reported;
+
+        Lease(long acquiredAt, String threadName, Throwable acquiredBy) {
+            this.acquiredAt = acquiredAt;
+            this.threadName = threadName;
+            this.acquiredBy = acquiredBy;
+        }
+    }
+
+    /**
+     * Point-in-time view of the pool, used for sizing it under load. Wait times are in microseconds.
+     */
+    public record PoolStats(int active, int idle, int total, int maxSize, int waiting, long acquisitions,
+                            long acquireTimeouts, long averageWaitMicros, long maxWaitMicros, long suspectedLeaks) {
+        @Override
+        public String toString() {
+            return "active=" + active + ", idle=" + idle + ", total=" + total + "/" + maxSize
+                    + ", waiting=" + waiting + ", acquisitions=" + acquisitions
+                    + ", timeouts=" + acquireTimeouts + ", avgWait=" + averageWaitMicros + "us"
+                    + ", maxWait=" + maxWaitMicros + "us, suspectedLeaks=" + suspectedLeaks;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk loads expenses from a CSV file with the columns
+ * {@code date,establishment,item,cost,creditor,debtors}, where the debtors are separated by semicolons (or by commas
+ * inside a quoted field).
+ * <p>
+ * Rows go through a pipeline: parse with {@link CsvRecordReader}, validate with {@link ExpenseParser}, then in chunks
+ * of {@code import.chunkSize} rows resolve every user name with one bulk lookup and write the `expense` rows, the
+ * `user_expense` rows and the balance changes as JDBC batches in a single transaction. Only one chunk is held in memory
+ * at a time, so the file can be any size.
+ * <p>
+ * Rows that fail validation, and the rows of a chunk that fails to commit, are written to a reject file with the
+ * reason on a {@code #} comment line above each one. The reject file can be fixed and imported again, since comment
+ * lines are skipped.
+ */
+public class CsvExpenseImporter {
+    private static final String CHUNK_SIZE_KEY = "import.chunkSize";
+    private static final String PROGRESS_INTERVAL_KEY = "import.progressInterval";
+    private static final int FIELD_COUNT = 6;
+
+    private final int chunkSize;
+    private final int progressInterval;
+    private final UserDAO jdbcUserDAO = new JdbcUserDAO();
+    private final ExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
+    private final UserExpenseDAO jdbcUserExpenseDAO = new JdbcUserExpenseDAO();
+
+    /**
+     * What an import did. {@code totalCents} is the sum of the imported expense costs, which is also the sum of the
+     * `amount_owed` of the `user_expense` rows written for them.
+     */
+    public record ImportResult(long rowsRead, long rowsImported, long rowsRejected, long shareRows, long totalCents,
+                               long elapsedNanos) {
+        public double rowsPerSecond() {
+            return elapsedNanos > 0 ? rowsRead * 1_000_000_000.0 / elapsedNanos : 0;
+        }
+    }
+
+    public CsvExpenseImporter() {
+        this(DatabaseConnectionManager.getIntProperty(DatabaseConnectionManager.loadConfig(), CHUNK_SIZE_KEY, 1000),
+                DatabaseConnectionManager.getIntProperty(DatabaseConnectionManager.loadConfig(), PROGRESS_INTERVAL_KEY, 100000));
+    }
+
+    public CsvExpenseImporter(int chunkSize, int progressInterval) {
+        this.chunkSize = Math.max(1, chunkSize);
+        this.progressInterval = Math.max(1, progressInterval);
+    }
+
+    public ImportResult importFile(Path csvFile, Path rejectFile) throws IOException {
+        long start = System.nanoTime();
+        long rowsRead = 0;
+        long rowsImported = 0;
+        long rowsRejected = 0;
+        long shareRows = 0;
+        long totalCents = 0;
+
+        List<Expense> chunk = new ArrayList<>(chunkSize);
+        List<String> chunkRecords = new ArrayList<>(chunkSize);
+
+        try (CsvRecordReader csv = new CsvRecordReader(Files.newBufferedReader(csvFile, StandardCharsets.UTF_8));
+             BufferedWriter rejects = Files.newBufferedWriter(rejectFile, StandardCharsets.UTF_8)) {
+            while (csv.next()) {
+                if (csv.isBlank() || csv.getField(0).startsWith("#") || isHeader(csv)) {
+                    continue;
+                }
+                rowsRead++;
+
+                try {
+                    if (csv.getFieldCount() != FIELD_COUNT) {
+                        throw new IllegalArgumentException("Expected " + FIELD_COUNT + " fields, found " + csv.getFieldCount());
+                    }
+                    chunk.add(ExpenseParser.parse(csv.getField(0), csv.getField(1), csv.getField(2), csv.getField(3),
+                            csv.getField(4), csv.getField(5)));
+                    chunkRecords.add(csv.getRawRecord());
+                } catch (IllegalArgumentException e) {
+                    writeReject(rejects, "line " + csv.getLineNumber() + ": " + e.getMessage(), csv.getRawRecord());
+                    rowsRejected++;
+                }
+
+                if (chunk.size() >= chunkSize) {
+                    long[] written = writeChunk(chunk, chunkRecords, rejects);
+                    rowsImported += written[0];
+                    rowsRejected += chunk.size() - written[0];
+                    shareRows += written[1];
+                    totalCents += written[2];
+                    chunk.clear();
+                    chunkRecords.clear();
+                }
+                if (rowsRead % progressInterval == 0) {
+                    printProgress(rowsRead, rowsImported, rowsRejected, System.nanoTime() - start);
+                }
+            }
+
+            if (!chunk.isEmpty()) {
+                long[] written = writeChunk(chunk, chunkRecords, rejects);
+                rowsImported += written[0];
+                rowsRejected += chunk.size() - written[0];
+                shareRows += written[1];
+                totalCents += written[2];
+            }
+        }
+
+        ImportResult result = new ImportResult(rowsRead, rowsImported, rowsRejected, shareRows, totalCents,
+                System.nanoTime() - start);
+        printSummary(result, rejectFile);
+        return result;
+    }
+
+    /**
+     * Writes one chunk in a single transaction.
+     *
+     * @return the number of expenses written, the number of `user_expense` rows written and the total cost in cents,
+     * all zero if the chunk was rolled back and sent to the reject file
+     */
+    long[] writeChunk(List<Expense> chunk, List<String> chunkRecords, BufferedWriter rejects) throws IOException {
+        try {
+            int shareRows = UnitOfWork.execute(conn -> writeChunk(conn, chunk));
+            long totalCents = 0;
+            for (Expense expense : chunk) {
+                totalCents += expense.getItemCost();
+            }
+            return new long[]{chunk.size(), shareRows, totalCents};
+        } catch (SQLException e) {
+            for (String record : chunkRecords) {
+                writeReject(rejects, "database error: " + e.getMessage(), record);
+            }
+            return new long[]{0, 0, 0};
+        }
+    }
+
+    /**
+     * Resolves the users of every expense in one bulk lookup, then batch inserts the expenses and their shares.
+     *
+     * @return the number of `user_expense` rows written
+     */
+    public int writeChunk(Connection conn, List<Expense> chunk) throws SQLException {
+        Set<String> names = new LinkedHashSet<>();
+        for (Expense expense : chunk) {
+            names.addAll(expense.getDebtorNames());
+        }
+        return writeChunk(conn, chunk, jdbcUserDAO.resolveUserIds(conn, names));
+    }
+
+    /**
+     * Batch inserts the expenses and their shares, with the ids of all their users already resolved.
+     *
+     * @return the number of `user_expense` rows written
+     */
+    public int writeChunk(Connection conn, List<Expense> chunk, Map<String, Integer> userIds) throws SQLException {
+        int[] creditorIds = new int[chunk.size()];
+        for (int i = 0; i < chunk.size(); i++) {
+            creditorIds[i] = userIds.get(chunk.get(i).getCreditorName());
+        }
+
+        int[] expenseIds = jdbcExpenseDAO.insertExpenseBatch(conn, chunk, creditorIds);
+        return jdbcUserExpenseDAO.insertUserExpenseBatch(conn, chunk, expenseIds, creditorIds, userIds);
+    }
+
+    private static boolean isHeader(CsvRecordReader csv) {
+        return csv.getLineNumber() == 1 && csv.getField(0).trim().equalsIgnoreCase("date");
+    }
+
+    static void writeReject(BufferedWriter rejects, String reason, String record) throws IOException {
+        rejects.write("# ");
+        rejects.write(reason.replace('\n', ' '));
+        rejects.newLine();
+        rejects.write(record);
+        rejects.newLine();
+    }
+
+    private static void printProgress(long rowsRead, long rowsImported, long rowsRejected, long elapsedNanos) {
+        System.out.printf("%d row(s) read, %d imported, %d rejected (%.0f rows/s)%n", rowsRead, rowsImported,
+                rowsRejected, rowsRead * 1_000_000_000.0 / Math.max(1, elapsedNanos));
+    }
+
+    static void printSummary(ImportResult result, Path rejectFile) {
+        System.out.println();
+        System.out.printf("Import finished in %.2f s: %d row(s) read, %d imported, %d rejected, "
+                        + "%d share(s) written, total %s (%.0f rows/s)%n", result.elapsedNanos() / 1_000_000_000.0,
+                result.rowsRead(), result.rowsImported(), result.rowsRejected(), result.shareRows(),
+                Money.format(result.totalCents()), result.rowsPerSecond());
+        if (result.rowsRejected() > 0) {
+            System.out.println("Rejected rows were written to " + rejectFile);
+        }
+    }
+}
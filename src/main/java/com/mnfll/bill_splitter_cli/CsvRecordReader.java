@@ -0,0 +1,164 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads comma-separated records one at a time, for importing large files with flat memory use.
+ * <p>
+ * Characters are read through one fixed buffer and each record is split with a small state machine rather than a
+ * regular expression. Fields may be quoted with {@code "}, in which case they can contain commas, line breaks and
+ * doubled {@code ""} quotes. The field array and builders are reused from one record to the next.
+ */
+public class CsvRecordReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private final StringBuilder field = new StringBuilder();
+    private final StringBuilder rawRecord = new StringBuilder();
+    private String[] fields = new String[8];
+    private int fieldCount;
+    private long lineNumber;
+    private long recordLineNumber;
+
+    public CsvRecordReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return false once the end of the input has been reached
+     */
+    public boolean next() throws IOException {
+        fieldCount = 0;
+        field.setLength(0);
+        rawRecord.setLength(0);
+        recordLineNumber = lineNumber + 1;
+
+        boolean inQuotes = false;
+        boolean readAnything = false;
+
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                if (!readAnything) {
+                    return false;
+                }
+                endField();
+                lineNumber++;
+                return true;
+            }
+            readAnything = true;
+            char ch = (char) c;
+
+            if (inQuotes) {
+                if (ch == '"') {
+                    if (peek() == '"') {
+                        read();
+                        field.append('"');
+                        rawRecord.append("\"\"");
+                        continue;
+                    }
+                    inQuotes = false;
+                } else {
+                    if (ch == '\n') {
+                        lineNumber++;
+                    }
+                    field.append(ch);
+                }
+                rawRecord.append(ch);
+                continue;
+            }
+
+            if (ch == '\r') {
+                continue;
+            }
+            if (ch == '\n') {
+                endField();
+                lineNumber++;
+                return true;
+            }
+            rawRecord.append(ch);
+            if (ch == ',') {
+                endField();
+            } else if (ch == '"' && field.length() == 0) {
+                inQuotes = true;
+            } else {
+                field.append(ch);
+            }
+        }
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public String getField(int index) {
+        if (index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + index + " of a record with " + fieldCount + " field(s)");
+        }
+        return fields[index];
+    }
+
+    // True for a line with nothing on it
+    public boolean isBlank() {
+        return fieldCount == 1 && fields[0].isBlank();
+    }
+
+    /**
+     * The record as it appeared in the input, without its line break.
+     */
+    public String getRawRecord() {
+        return rawRecord.toString();
+    }
+
+    // Line on which the current record starts, counting from 1
+    public long getLineNumber() {
+        return recordLineNumber;
+    }
+
+    private void endField() {
+        if (fieldCount == fields.length) {
+            String[] grown = new String[fields.length * 2];
+            System.arraycopy(fields, 0, grown, 0, fields.length);
+            fields = grown;
+        }
+        fields[fieldCount++] = field.toString();
+        field.setLength(0);
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int read = reader.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -7,12 +7,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Properties;
 
 /**
- * Responsible for managing database connections
+ * Responsible for managing database connections.
+ * <p>
+ * {@code db.backend} selects the database: {@code mysql} (the default) connects to {@code db.url}, {@code embedded}
+ * opens an H2 database stored in the files at {@code db.embedded.path}, inside this process. Settings starting with
+ * {@code db.} can also be given as system properties, which take precedence over the config file.
  */
 public class DatabaseConnectionManager {
     private static final Logger logger = LogManager.getLogger(DatabaseConnectionManager.class);
@@ -20,9 +23,48 @@ public class DatabaseConnectionManager {
     private static final String DB_URL_KEY = "db.url";
     private static final String DB_USERNAME_KEY = "db.username";
     private static final String DB_PASSWORD_KEY = "db.password";
+    private static final String DB_BACKEND_KEY = "db.backend";
+    private static final String DB_EMBEDDED_PATH_KEY = "db.embedded.path";
+    // H2 in its MySQL mode, with lower case names so the existing queries and metadata lookups work unchanged
+    private static final String EMBEDDED_URL_OPTIONS = ";MODE=MySQL;DATABASE_TO_LOWER=TRUE"
+            + ";CASE_INSENSITIVE_IDENTIFIERS=TRUE;NON_KEYWORDS=USER;DEFAULT_NULL_ORDERING=HIGH";
+    private static final String DB_REWRITE_BATCHED_STATEMENTS_KEY = "db.rewriteBatchedStatements";
+    private static final String DB_USE_CURSOR_FETCH_KEY = "db.useCursorFetch";
+    private static final String DB_FETCH_SIZE_KEY = "db.fetchSize";
+    private static final String POOL_MIN_SIZE_KEY = "db.pool.minSize";
+    private static final String POOL_MAX_SIZE_KEY = "db.pool.maxSize";
+    private static final String POOL_ACQUIRE_TIMEOUT_KEY = "db.pool.acquireTimeoutMs";
+    private static final String POOL_LEAK_DETECTION_KEY = "db.pool.leakDetectionThresholdMs";
+    private static final String POOL_VALIDATION_TIMEOUT_KEY = "db.pool.validationTimeoutSeconds";
+    private static final String POOL_VALIDATION_IDLE_KEY = "db.pool.validationIdleMs";
+
+    private static volatile Properties config;
+    private static volatile ConnectionPool pool;
+
+    /**
+     * Returns the application configuration. The properties file is only read the first time this is called.
+     */
     public static Properties loadConfig() {
+        Properties loaded = config;
+        if (loaded == null) {
+            synchronized (DatabaseConnectionManager.class) {
+                loaded = config;
+                if (loaded == null) {
+                    loaded = readConfigFile();
+                    for (String name : System.getProperties().stringPropertyNames()) {
+                        if (name.startsWith("db.")) {
+                            loaded.setProperty(name, System.getProperty(name));
+                        }
+                    }
+                    config = loaded;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private static Properties readConfigFile() {
         Properties config = new Properties();
-        InputStream is;
 
         try {
             URL resourceUrl = DatabaseConnectionManager.class.getResource(CONFIG_FILE);
@@ -32,36 +74,140 @@ public class DatabaseConnectionManager {
                 String relativePath = resourceUrl.getPath();
 
                 // Load properties
-                is = resourceUrl.openStream();
-                config.load(is);
+                try (InputStream is = resourceUrl.openStream()) {
+                    config.load(is);
+                }
                 logger.info("Config file 'config.properties' successfully loaded from {}", relativePath);
-            }else {
+            } else {
                 logger.error("Config file 'config.properties' not found");
             }
-            } catch (IOException e) {
+        } catch (IOException e) {
             logger.error("Error loading config file 'config.properties': {}", e.getMessage(), e);
         }
         return config;
     }
 
-
+    /**
+     * Leases a connection from the pool. Closing the returned connection hands it back to the pool.
+     */
     public static Connection establishConnection() throws SQLException {
-        // Load the configuration from the properties file
-        Properties config = loadConfig();
+        Connection conn = getPool().getConnection();
+        logger.debug("Connection successfully leased from the pool.");
+        return conn;
+    }
+
+    public static ConnectionPool.PoolStats getPoolStats() {
+        ConnectionPool current = pool;
+        return current == null ? null : current.getStats();
+    }
+
+    public static void shutdown() {
+        ConnectionPool current = pool;
+        if (current != null) {
+            // Logged before the idle connections are closed, so the counts show the pool as it was being used
+            logger.info("Connection pool statistics: {}", current.getStats());
+            logger.info("User cache statistics: {}", JdbcUserDAO.getUserCache());
+            current.shutdown();
+            pool = null;
+        }
+    }
+
+    private static ConnectionPool getPool() {
+        ConnectionPool current = pool;
+        if (current == null) {
+            synchronized (DatabaseConnectionManager.class) {
+                current = pool;
+                if (current == null) {
+                    current = createPool(loadConfig());
+                    current.warmUp();
+                    pool = current;
+                }
+            }
+        }
+        return current;
+    }
 
-        Connection conn = null;
+    /**
+     * @return true when {@code db.backend} selects the embedded database
+     */
+    public static boolean isEmbedded() {
+        String backend = loadConfig().getProperty(DB_BACKEND_KEY, "mysql").trim();
+        if (backend.equalsIgnoreCase("embedded")) {
+            return true;
+        }
+        if (!backend.equalsIgnoreCase("mysql")) {
+            logger.error("Unknown value '{}' for '{}', using mysql", backend, DB_BACKEND_KEY);
+        }
+        return false;
+    }
 
+    /**
+     * The JDBC URL of the configured backend, without the driver properties added when connecting.
+     */
+    public static String getDatabaseUrl() {
+        if (isEmbedded()) {
+            return "jdbc:h2:file:" + loadConfig().getProperty(DB_EMBEDDED_PATH_KEY, "./data/bill_splitter").trim()
+                    + EMBEDDED_URL_OPTIONS;
+        }
+        return loadConfig().getProperty(DB_URL_KEY);
+    }
+
+    private static ConnectionPool createPool(Properties config) {
         // Get the database connection details from the properties file
-        String dbUrl = config.getProperty(DB_URL_KEY);
-        String dbUsername = config.getProperty(DB_USERNAME_KEY);
-        String dbPassword = config.getProperty(DB_PASSWORD_KEY);
+        String dbUrl = getDatabaseUrl();
+        // Let MySQL Connector/J send JDBC batches as multi-row INSERT statements
+        if (Boolean.parseBoolean(config.getProperty(DB_REWRITE_BATCHED_STATEMENTS_KEY, "true"))) {
+            dbUrl = withDriverProperty(dbUrl, "rewriteBatchedStatements", "true");
+        }
+        // Let statements with a fetch size stream through a server-side cursor instead of buffering every row
+        if (Boolean.parseBoolean(config.getProperty(DB_USE_CURSOR_FETCH_KEY, "true"))) {
+            dbUrl = withDriverProperty(dbUrl, "useCursorFetch", "true");
+        }
+        // The embedded database is created on first use by its owner, there is no server account to configure
+        String dbUsername = isEmbedded() ? "sa" : config.getProperty(DB_USERNAME_KEY);
+        String dbPassword = isEmbedded() ? "" : config.getProperty(DB_PASSWORD_KEY);
+
+        int minSize = getIntProperty(config, POOL_MIN_SIZE_KEY, 1);
+        int maxSize = getIntProperty(config, POOL_MAX_SIZE_KEY, 10);
+        long acquireTimeout = getIntProperty(config, POOL_ACQUIRE_TIMEOUT_KEY, 30000);
+        long leakThreshold = getIntProperty(config, POOL_LEAK_DETECTION_KEY, 0);
+        int validationTimeout = getIntProperty(config, POOL_VALIDATION_TIMEOUT_KEY, 5);
+        long validationIdle = getIntProperty(config, POOL_VALIDATION_IDLE_KEY, 30000);
 
+        logger.info("Using the {} backend", isEmbedded() ? "embedded" : "mysql");
+        logger.info("Creating connection pool (min={}, max={}, acquireTimeout={} ms, leakDetection={} ms, validationIdle={} ms)",
+                minSize, maxSize, acquireTimeout, leakThreshold, validationIdle);
+        return new ConnectionPool(dbUrl, dbUsername, dbPassword, minSize, maxSize, acquireTimeout, leakThreshold,
+                validationTimeout, validationIdle);
+    }
+
+    /**
+     * Adds a MySQL Connector/J property to the URL, unless the URL already sets it.
+     */
+    static String withDriverProperty(String dbUrl, String name, String value) {
+        if (dbUrl == null || !dbUrl.startsWith("jdbc:mysql:") || dbUrl.contains(name + "=")) {
+            return dbUrl;
+        }
+        return dbUrl + (dbUrl.contains("?") ? "&" : "?") + name + "=" + value;
+    }
+
+    /**
+     * Number of rows fetched per round trip by streaming queries.
+     */
+    public static int getFetchSize() {
+        return getIntProperty(loadConfig(), DB_FETCH_SIZE_KEY, 1000);
+    }
+
+    public static int getIntProperty(Properties config, String key, int defaultValue) {
+        String value = config.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
         try {
-            conn = DriverManager.getConnection(dbUrl, dbUsername, dbPassword);
-            logger.debug("Connection successfully closed.");
-        } catch (SQLException e) {
-            logger.error("Failed to establish a database connection. {}", e.getMessage());
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Invalid value '{}' for '{}', using default {}", value, key, defaultValue);
+            return defaultValue;
         }
-        return conn;
     }
 }
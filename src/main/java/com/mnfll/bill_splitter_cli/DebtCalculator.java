@@ -11,31 +11,66 @@ import java.util.List;
  * Calculates debt based on business logic
  */
 public class DebtCalculator {
+    // Above this many participants the debt matrix is listed entry by entry rather than printed as a grid
+    private static final int MAX_GRID_PARTICIPANTS = 20;
+    private static final int MATRIX_COLUMN_WIDTH = 10;
+    // `user_balance` already holds the outstanding total per pair, so this reads one row per pair
+    private static final String BALANCE_QUERY = "SELECT u1.user_name AS creditor_name, u2.user_name AS debtor_name, " +
+            "ROUND(b.amount_owed * 100) AS total_amount_owed " +
+            "FROM user_balance b " +
+            "JOIN user u1 ON b.creditor_id = u1.user_id " +
+            "JOIN user u2 ON b.debtor_id = u2.user_id " +
+            "WHERE b.amount_owed <> 0";
+    // Every user as a row without a debtor, followed by the balances, so both come from the same read
+    private static final String SNAPSHOT_QUERY = "SELECT user_name, NULL, NULL FROM user UNION ALL " + BALANCE_QUERY;
+
+    /**
+     * The participants and the debt matrix between them, as of a single point in time.
+     */
+    public record DebtSnapshot(ParticipantIndex participants, SparseDebtMatrix debtMatrix) {
+    }
 
-    public List<DebtRecord> calculateDebt() {
-        Connection connection = null;
-        List<DebtRecord> debtRecords = new ArrayList<>();
-
-        try {
-            connection = DatabaseConnectionManager.establishConnection();
-            String selectQuery = "SELECT creditor_name, debtor_name, SUM(amount_owed) AS total_amount_owed " +
-                    "FROM combined_user_expense " +
-                    "WHERE creditor_name <> debtor_name AND payment_status = 'n' " +
-                    "GROUP BY creditor_name, debtor_name";
+    /**
+     * Receives the outstanding balances one row at a time, as they are read from the database.
+     */
+    @FunctionalInterface
+    public interface BalanceVisitor {
+        void visit(String creditorName, String debtorName, long amountOwed);
+    }
 
-            PreparedStatement preparedStatement = connection.prepareStatement(selectQuery);
+    /**
+     * Streams every outstanding balance to {@code visitor} without collecting the rows first.
+     * <p>
+     * The statement is forward-only and read-only with a fetch size, so the driver pulls the rows through a cursor in
+     * chunks of {@code db.fetchSize} and memory stays flat however large the ledger is.
+     *
+     * @return the number of balances visited
+     */
+    public long streamDebts(Connection connection, BalanceVisitor visitor) throws SQLException {
+        long rowCount = 0;
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(BALANCE_QUERY,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            preparedStatement.setFetchSize(DatabaseConnectionManager.getFetchSize());
 
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
                 while (resultSet.next()) {
-                    String creditorName = resultSet.getString("creditor_name");
-                    String debtorName = resultSet.getString("debtor_name");
-                    double totalAmountOwed = resultSet.getDouble("total_amount_owed");
-
-                    // Create a DebtRecord and add it to the list
-                    DebtRecord debtRecord = new DebtRecord(creditorName, debtorName, totalAmountOwed);
-                    debtRecords.add(debtRecord);
+                    visitor.visit(resultSet.getString(1), resultSet.getString(2), resultSet.getLong(3));
+                    rowCount++;
                 }
             }
+        }
+        return rowCount;
+    }
+
+    public List<DebtRecord> calculateDebt() {
+        Connection connection = null;
+        List<DebtRecord> debtRecords = new ArrayList<>();
+
+        try {
+            connection = DatabaseConnectionManager.establishConnection();
+            streamDebts(connection, (creditorName, debtorName, amountOwed) ->
+                    debtRecords.add(new DebtRecord(creditorName, debtorName, amountOwed)));
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
@@ -45,82 +80,125 @@ public class DebtCalculator {
         return debtRecords;
     }
 
-    public double[][] createDebtMatrix(List<DebtRecord> debtRecords, List<String> peopleNames) {
-        int n = peopleNames.size();
-        double[][] debtMatrix = new double[n][n];
+    /**
+     * Streams the balances straight into a sparse matrix. Names that aren't in {@code participants} yet are added to
+     * it and the matrix grows to match, so a balance can never point outside the matrix.
+     */
+    public SparseDebtMatrix createDebtMatrix(Connection connection, ParticipantIndex participants) throws SQLException {
+        SparseDebtMatrix debtMatrix = new SparseDebtMatrix(participants.size());
 
-        // Initialize the debt matrix with zeros
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                // Transpose the matrix
-                debtMatrix[j][i] = 0.0;
-            }
-        }
+        streamDebts(connection, (creditorName, debtorName, amountOwed) -> {
+            int creditorIndex = participants.indexOf(creditorName);
+            int debtorIndex = participants.indexOf(debtorName);
+            debtMatrix.ensureSize(participants.size());
 
-        // Fill the debt matrix with debt data from debtRecords
-        for (DebtRecord debtRecord : debtRecords) {
-            String creditorName = debtRecord.getCreditor();
-            String debtorName = debtRecord.getDebtor();
-            double amountOwed = debtRecord.getAmountOwed();
+            // Update the debt matrix with the amount owed
+            debtMatrix.add(creditorIndex, debtorIndex, amountOwed);
+        });
 
-            int creditorIndex = peopleNames.indexOf(creditorName);
-            int debtorIndex = peopleNames.indexOf(debtorName);
+        return debtMatrix;
+    }
 
-            // Update the debt matrix with the amount owed
-            debtMatrix[creditorIndex][debtorIndex] = amountOwed;
+    public SparseDebtMatrix createDebtMatrix(ParticipantIndex participants) {
+        Connection connection = null;
+
+        try {
+            connection = DatabaseConnectionManager.establishConnection();
+            return createDebtMatrix(connection, participants);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new SparseDebtMatrix(participants.size());
+        } finally {
+            ResourcesUtils.closeConnection(connection);
         }
+    }
 
-        return debtMatrix;
+    /**
+     * Reads all participants and balances in one query, inside a read-only REPEATABLE READ transaction on a single
+     * connection. A user or expense added while the report is being read can't make the two disagree.
+     */
+    public DebtSnapshot loadSnapshot() throws SQLException {
+        return UnitOfWork.executeReadOnly(this::loadSnapshot);
     }
 
-    public double[][] calculateNetDebts(double[][] debtMatrix, List<String> names) {
-        int n = names.size();
-        double[][] netDebts = new double[n][n];
+    public DebtSnapshot loadSnapshot(Connection connection) throws SQLException {
+        ParticipantIndex participants = new ParticipantIndex(16);
+        SparseDebtMatrix debtMatrix = new SparseDebtMatrix(0);
 
-        // Calculate and display net debts
-        for (int i = 0; i < n; i++) {
-            for (int j = i + 1; j < n; j++) {
-                netDebts[i][j] = debtMatrix[i][j] - debtMatrix[j][i];
+        try (PreparedStatement preparedStatement = connection.prepareStatement(SNAPSHOT_QUERY,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            preparedStatement.setFetchSize(DatabaseConnectionManager.getFetchSize());
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    int creditorIndex = participants.indexOf(resultSet.getString(1));
+                    String debtorName = resultSet.getString(2);
+
+                    if (debtorName != null) {
+                        int debtorIndex = participants.indexOf(debtorName);
+                        debtMatrix.ensureSize(participants.size());
+                        debtMatrix.add(creditorIndex, debtorIndex, resultSet.getLong(3));
+                    }
+                }
             }
         }
+        debtMatrix.ensureSize(participants.size());
+
+        return new DebtSnapshot(participants, debtMatrix);
+    }
 
-        return netDebts;
+    /**
+     * Nets each pair's debts against each other. In the result, entry (i, j) is the amount j owes i after netting,
+     * and only the direction that is actually owed is stored. Large matrices are netted in parallel.
+     */
+    public SparseDebtMatrix calculateNetDebts(SparseDebtMatrix debtMatrix) {
+        return new NetDebtEngine().calculateNetDebts(debtMatrix);
     }
 
-    public void displayDebtMatrix(double[][] debtMatrix, List<String> peopleNames) {
-        int n = peopleNames.size();
+    public void displayDebtMatrix(SparseDebtMatrix debtMatrix, ParticipantIndex participants) {
+        int n = participants.size();
+        TableRenderer tableRenderer = TableRenderer.toStandardOutput();
 
         System.out.println("Debt Matrix:");
 
-        // Print the column headers (people names)
-        System.out.print("         ");  // Indent for row labels
-        for (String personName : peopleNames) {
-            System.out.printf("%10s", personName);
+        // A full grid is only readable for small groups, larger ones, and the CSV and JSON output, list the non-zero
+        // entries instead
+        if (n > MAX_GRID_PARTICIPANTS || tableRenderer.getFormat() != TableRenderer.Format.TEXT) {
+            tableRenderer.columns(new String[]{"debtor", "creditor", "amount_owed"}, new int[]{MATRIX_COLUMN_WIDTH,
+                    MATRIX_COLUMN_WIDTH, MATRIX_COLUMN_WIDTH}, new boolean[]{false, false, true});
+            debtMatrix.forEach((creditor, debtor, amount) ->
+                    tableRenderer.cell(participants.nameAt(debtor)).cell(participants.nameAt(creditor))
+                            .moneyCell(amount).endRow());
+            tableRenderer.flush();
+            return;
+        }
+
+        // The first column holds the row labels (people names), then one column per person
+        String[] columnNames = new String[n + 1];
+        int[] widths = new int[n + 1];
+        boolean[] numeric = new boolean[n + 1];
+        columnNames[0] = "";
+        widths[0] = MATRIX_COLUMN_WIDTH;
+        for (int i = 0; i < n; i++) {
+            columnNames[i + 1] = participants.nameAt(i);
+            widths[i + 1] = MATRIX_COLUMN_WIDTH;
+            numeric[i + 1] = true;
         }
-        System.out.println();
+        tableRenderer.columns(columnNames, widths, numeric);
 
         // Print the matrix rows
         for (int i = 0; i < n; i++) {
-            System.out.printf("%10s", peopleNames.get(i));  // Row label (person name)
+            tableRenderer.cell(participants.nameAt(i));
             for (int j = 0; j < n; j++) {
-                System.out.printf("%10.2f", debtMatrix[j][i]);
+                tableRenderer.moneyCell(debtMatrix.get(j, i));
             }
-            System.out.println();
+            tableRenderer.endRow();
         }
+        tableRenderer.flush();
     }
 
-    public void displayNetDebts(double[][] netDebts, List<String> names) {
-        int n = names.size();
-
-        for (int i = 0; i < n; i++) {
-            for (int j = i + 1; j < n; j++) {
-                double netDebt = netDebts[i][j];
-                if (netDebt > 0) {
-                    System.out.println(names.get(j) + " owes " + names.get(i) + " " + netDebt);
-                } else if (netDebt < 0) {
-                    System.out.println(names.get(i) + " owes " + names.get(j) + " " + -netDebt);
-                }
-            }
-        }
+    public void displayNetDebts(SparseDebtMatrix netDebts, ParticipantIndex participants) {
+        netDebts.forEach((creditor, debtor, netDebt) ->
+                System.out.println(participants.nameAt(debtor) + " owes " + participants.nameAt(creditor) + " " + Money.format(netDebt)));
     }
 }
@@ -3,9 +3,10 @@ package com.mnfll.bill_splitter_cli;
 public class DebtRecord {
 	private String creditor;
 	private String debtor;
-	private double amountOwed;
+	// Amount owed in cents
+	private long amountOwed;
 	
-	public DebtRecord(String creditor, String debtor, double amountOwed) {
+	public DebtRecord(String creditor, String debtor, long amountOwed) {
 		this.creditor = creditor;
 		this.debtor = debtor;
 		this.amountOwed = amountOwed;
@@ -27,11 +28,11 @@ public class DebtRecord {
 		this.debtor = debtor;
 	}
 
-	public double getAmountOwed() {
+	public long getAmountOwed() {
 		return amountOwed;
 	}
 
-	public void setAmountOwed(double amountOwed) {
+	public void setAmountOwed(long amountOwed) {
 		this.amountOwed = amountOwed;
 	}
 	
@@ -40,7 +41,7 @@ public class DebtRecord {
 	@Override
 	public String toString() {
 		// Create a report for this DebtRecord
-		return debtor + " owes " + creditor + " $" + amountOwed;
+		return debtor + " owes " + creditor + " $" + Money.format(amountOwed);
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,191 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last debt report in memory, so viewing the net debts again doesn't re-read and re-aggregate the ledger.
+ * <p>
+ * Every write that can change a balance or the set of users calls {@link #recordChange(Connection)}, which bumps the
+ * counter in `ledger_generation` as part of the writer's transaction. Before the cached summary is served, the counter
+ * is read back with a single-row primary key lookup, so changes made by other instances of the application are noticed
+ * as well.
+ */
+public class DebtSummaryCache {
+    private static final Logger logger = LogManager.getLogger(DebtSummaryCache.class);
+    private static final DebtSummaryCache instance = new DebtSummaryCache();
+    private static final Object GENERATION_KEY = new Object();
+    private static final ThreadLocal<Boolean> changesDeferred = ThreadLocal.withInitial(() -> false);
+
+    private volatile DebtSummary summary;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static DebtSummaryCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Marks the ledger as changed. Inside a unit of work the counter is bumped once, as the last statement before the
+     * unit commits, so it commits or rolls back with the changes and the single `ledger_generation` row is only
+     * locked for the commit rather than for as long as the writer's transaction runs. Outside a unit of work the
+     * counter is bumped on {@code conn} straight away.
+     */
+    public static void recordChange(Connection conn) throws SQLException {
+        if (changesDeferred.get()) {
+            return;
+        }
+        UnitOfWork.beforeCommitOnce(conn, GENERATION_KEY, c -> {
+            bumpGeneration(c);
+            UnitOfWork.afterCommit(c, instance::invalidate);
+            return null;
+        });
+    }
+
+    /**
+     * While set, {@link #recordChange(Connection)} does nothing on this thread. For bulk writers that spread their
+     * work over many transactions and threads: they call {@link #publishChange()} once when they finish instead of
+     * bumping the counter for every transaction.
+     */
+    public static void setChangesDeferred(boolean deferred) {
+        changesDeferred.set(deferred);
+    }
+
+    /**
+     * Bumps the counter in a transaction of its own, for the changes of a bulk writer.
+     */
+    public static void publishChange() throws SQLException {
+        Connection conn = null;
+
+        try {
+            conn = DatabaseConnectionManager.establishConnection();
+            bumpGeneration(conn);
+        } finally {
+            ResourcesUtils.closeConnection(conn);
+            instance.invalidate();
+        }
+    }
+
+    private static void bumpGeneration(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(SqlDialect.current().upsertAdding("ledger_generation", new String[]{"id"}, "generation",
+                    "SELECT 1 AS id, 1 AS generation"));
+        }
+    }
+
+    /**
+     * Returns the debt summary for the current generation, loading it in one snapshot read if the cached one is out
+     * of date.
+     */
+    public DebtSummary getSummary() throws SQLException {
+        DebtSummary cached = summary;
+        if (cached != null && cached.generation == readGeneration()) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+
+        DebtCalculator debtCalculator = new DebtCalculator();
+        DebtSummary loaded = UnitOfWork.executeReadOnly(conn -> {
+            // The first read fixes the snapshot, so the generation matches the balances read after it
+            long generation = readGeneration(conn);
+            return new DebtSummary(generation, debtCalculator.loadSnapshot(conn));
+        });
+        store(loaded);
+        logger.debug("Loaded debt summary for generation {}", loaded.generation);
+        return loaded;
+    }
+
+    public void invalidate() {
+        summary = null;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // A slow load must not replace a summary that is already newer than it
+    private synchronized void store(DebtSummary loaded) {
+        DebtSummary current = summary;
+        if (current == null || current.generation <= loaded.generation) {
+            summary = loaded;
+        }
+    }
+
+    private static long readGeneration() throws SQLException {
+        Connection conn = null;
+
+        try {
+            conn = DatabaseConnectionManager.establishConnection();
+            return readGeneration(conn);
+        } finally {
+            ResourcesUtils.closeConnection(conn);
+        }
+    }
+
+    private static long readGeneration(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT generation FROM ledger_generation WHERE id = 1")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DebtSummaryCache[hits=" + hits.get() + ", misses=" + misses.get() + "]";
+    }
+
+    /**
+     * A debt snapshot together with the results derived from it. The derived results are computed on first use and
+     * kept for as long as the summary is cached.
+     */
+    public static class DebtSummary {
+        private final long generation;
+        private final ParticipantIndex participants;
+        private final SparseDebtMatrix debtMatrix;
+        private SparseDebtMatrix netDebts;
+        private long[] netPositions;
+
+        DebtSummary(long generation, DebtCalculator.DebtSnapshot snapshot) {
+            this.generation = generation;
+            this.participants = snapshot.participants();
+            this.debtMatrix = snapshot.debtMatrix();
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public ParticipantIndex getParticipants() {
+            return participants;
+        }
+
+        public SparseDebtMatrix getDebtMatrix() {
+            return debtMatrix;
+        }
+
+        public synchronized SparseDebtMatrix getNetDebts() {
+            if (netDebts == null) {
+                netDebts = new DebtCalculator().calculateNetDebts(debtMatrix);
+            }
+            return netDebts;
+        }
+
+        public synchronized long[] getNetPositions() {
+            if (netPositions == null) {
+                netPositions = new SettlementPlanner().calculateNetPositions(debtMatrix);
+            }
+            return netPositions.clone();
+        }
+    }
+}
@@ -7,11 +7,12 @@ public class Expense {
     private final Date date;
     private final String establishmentName;
     private final String itemName;
-    private final double itemCost;
+    // Total cost in cents
+    private final long itemCost;
     private final List<String> debtorNames;
     private final String creditorName;
 
-    public Expense(Date date, String establishmentName, String itemName, double itemCost, List<String> debtorNames,
+    public Expense(Date date, String establishmentName, String itemName, long itemCost, List<String> debtorNames,
                    String creditorName) {
         super();
         this.date = date;
@@ -37,7 +38,7 @@ public class Expense {
     }
 
 
-    public double getItemCost() {
+    public long getItemCost() {
         return itemCost;
     }
 
@@ -55,7 +56,7 @@ public class Expense {
         System.out.println("Date: " + getDate());
         System.out.println("Establishment: " + getEstablishmentName());
         System.out.println("Item: " + getItemName());
-        System.out.println("Cost: " + getItemCost());
+        System.out.println("Cost: " + Money.format(getItemCost()));
         System.out.println("Debtors " + getDebtorNames());
         System.out.println("Creditor: " + getCreditorName());
         System.out.println();
@@ -1,5 +1,53 @@
 package com.mnfll.bill_splitter_cli;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Access to the `expense` table. Methods that take a connection run inside the caller's transaction, and the ones
+ * that change an expense's shares keep `user_balance` up to date as well.
+ */
 public interface ExpenseDAO {
 
+    /**
+     * @return the generated expense_id
+     */
+    int insertExpenseData(Connection connection, Expense expense, int creditorId) throws SQLException;
+
+    /**
+     * Inserts many expenses at once. {@code creditorIds[i]} is the creditor of {@code expenses.get(i)}.
+     *
+     * @return the generated expense_id of each expense, in the same order
+     */
+    int[] insertExpenseBatch(Connection connection, List<Expense> expenses, int[] creditorIds) throws SQLException;
+
+    /**
+     * @return the creditor's user_id, or -1 if the expense doesn't exist
+     */
+    int getCreditorId(Connection conn, int expenseId) throws SQLException;
+
+    /**
+     * @return the total cost in cents, or -1 if the expense doesn't exist
+     */
+    long getTotalCost(Connection connection, int expenseId) throws SQLException;
+
+    /**
+     * Changes the cost and re-splits it between the debtors.
+     */
+    void updateExpenseCost(Connection conn, int expenseId, long expenseCost) throws SQLException;
+
+    /**
+     * Adds one to, or removes one from, the split count.
+     *
+     * @return the new split count, or -1 if the expense doesn't exist
+     */
+    int updateSplitCount(Connection conn, int expenseId, Boolean increment) throws SQLException;
+
+    /**
+     * Deletes the expense and its shares.
+     */
+    void deleteExpense(Connection connection, int expenseId) throws SQLException;
+
+    boolean expenseIdExists(int expenseId);
 }
@@ -0,0 +1,71 @@
+package com.mnfll.bill_splitter_cli;
+
+import com.mnfll.bill_splitter_cli.utilities.InputValidator;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Builds an {@link Expense} from text fields, applying the same rules as the interactive prompts. Used where expenses
+ * come from a file instead of a person at the keyboard.
+ */
+public class ExpenseParser {
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    /**
+     * @param debtors the debtor names separated by commas or semicolons, the creditor must be one of them
+     * @throws IllegalArgumentException naming the first field that isn't valid
+     */
+    public static Expense parse(String date, String establishmentName, String expenseName, String cost,
+                                String creditorName, String debtors) {
+        date = InputValidator.sanitizeInput(date);
+        establishmentName = InputValidator.sanitizeInput(establishmentName);
+        expenseName = InputValidator.sanitizeInput(expenseName);
+        cost = InputValidator.sanitizeInput(cost);
+        creditorName = InputValidator.sanitizeInput(creditorName);
+
+        if (!InputValidator.isValidDate(date)) {
+            throw new IllegalArgumentException("Invalid date '" + date + "', expected dd/MM/yyyy");
+        }
+        if (!InputValidator.isValidEstablishmentName(establishmentName)) {
+            throw new IllegalArgumentException("Invalid establishment name '" + establishmentName + "'");
+        }
+        if (!InputValidator.isValidExpenseName(expenseName)) {
+            throw new IllegalArgumentException("Invalid expense name '" + expenseName + "'");
+        }
+        if (!InputValidator.isValidCost(cost)) {
+            throw new IllegalArgumentException("Invalid cost '" + cost + "'");
+        }
+
+        List<String> debtorNames = splitNames(debtors);
+        if (!debtorNames.contains(creditorName)) {
+            throw new IllegalArgumentException("Creditor '" + creditorName + "' must be one of the debtors");
+        }
+
+        Date expenseDate = Date.from(LocalDate.parse(date, DATE_FORMAT).atStartOfDay(ZoneId.systemDefault()).toInstant());
+        return new Expense(expenseDate, establishmentName, expenseName, Money.parse(cost), debtorNames, creditorName);
+    }
+
+    // Splits on commas and semicolons by hand, names can contain neither, and drops repeated names
+    private static List<String> splitNames(String debtors) {
+        List<String> debtorNames = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= debtors.length(); i++) {
+            if (i == debtors.length() || debtors.charAt(i) == ',' || debtors.charAt(i) == ';') {
+                String debtorName = debtors.substring(start, i).trim();
+                if (!InputValidator.isValidName(debtorName)) {
+                    throw new IllegalArgumentException("Invalid debtor name '" + debtorName + "'");
+                }
+                if (!debtorNames.contains(debtorName)) {
+                    debtorNames.add(debtorName);
+                }
+                start = i + 1;
+            }
+        }
+        return debtorNames;
+    }
+}
@@ -0,0 +1,243 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains the `user_balance` table, which holds the outstanding amount each debtor owes each creditor.
+ * <p>
+ * Every change to `user_expense` must be wrapped in {@link #removeExpenseContribution} and
+ * {@link #addExpenseContribution} on the same connection, so the balances are updated in the same transaction as the
+ * rows they summarise.
+ */
+public class JdbcBalanceDAO implements BalanceDAO {
+    private static final Logger logger = LogManager.getLogger(JdbcBalanceDAO.class);
+
+    // Upper bound on the number of pairs written by a single upsert
+    private static final int MAX_PAIRS_PER_STATEMENT = 1000;
+
+    // Only unpaid shares between two different people count towards a balance
+    private static final String OUTSTANDING_SHARES = "payment_status = 'n' AND creditor_id <> debtor_id";
+    private static final String[] BALANCE_KEY = {"creditor_id", "debtor_id"};
+
+    @Override
+    public void addExpenseContribution(Connection conn, int expenseId) throws SQLException {
+        applyExpenseContributions(conn, new int[]{expenseId}, 0, 1, 1);
+    }
+
+    /**
+     * Adds amounts the caller already knows to their pairs' balances with multi-row upserts,
+     * {@link #MAX_PAIRS_PER_STATEMENT} pairs per statement. Used by bulk imports, which have just computed the shares
+     * they inserted: reading them back with {@code INSERT ... SELECT} would take shared next-key locks on the part of
+     * the `user_expense` index it scans and block the other import workers.
+     */
+    @Override
+    public void addBalanceChanges(Connection conn, List<BalanceChange> changes) throws SQLException {
+        writeBalanceChanges(conn, changes, 0);
+    }
+
+    // Journals the changes as caused by expenseId, or by no single expense when it is 0
+    private void writeBalanceChanges(Connection conn, List<BalanceChange> changes, int expenseId) throws SQLException {
+        int rowsAffected = 0;
+        for (int from = 0; from < changes.size(); from += MAX_PAIRS_PER_STATEMENT) {
+            int to = Math.min(from + MAX_PAIRS_PER_STATEMENT, changes.size());
+            StringBuilder upsertQuery = new StringBuilder("INSERT INTO user_balance (creditor_id, debtor_id, amount_owed) VALUES ");
+            for (int i = from; i < to; i++) {
+                upsertQuery.append(i == from ? "(?, ?, ?)" : ", (?, ?, ?)");
+            }
+            // H2 accepts this form too in its MySQL mode
+            upsertQuery.append(" ON DUPLICATE KEY UPDATE amount_owed = amount_owed + VALUES(amount_owed)");
+
+            try (PreparedStatement ps = conn.prepareStatement(upsertQuery.toString())) {
+                int parameterIndex = 1;
+                for (int i = from; i < to; i++) {
+                    BalanceChange change = changes.get(i);
+                    ps.setInt(parameterIndex++, change.creditorId());
+                    ps.setInt(parameterIndex++, change.debtorId());
+                    ps.setBigDecimal(parameterIndex++, Money.toBigDecimal(change.amountCents()));
+                }
+                rowsAffected += ps.executeUpdate();
+            }
+        }
+        if (rowsAffected > 0) {
+            DebtSummaryCache.recordChange(conn);
+        }
+
+        if (LedgerJournal.isEnabled()) {
+            List<LedgerJournal.Entry> journalEntries = new ArrayList<>(changes.size());
+            for (BalanceChange change : changes) {
+                journalEntries.add(new LedgerJournal.Entry(LedgerJournal.RecordType.BALANCE_CHANGED, expenseId,
+                        change.creditorId(), change.debtorId(), change.amountCents()));
+            }
+            LedgerJournal.record(conn, journalEntries);
+        }
+        logger.debug("Applied {} balance change(s) to `user_balance`, {} row(s) affected", changes.size(), rowsAffected);
+    }
+
+    @Override
+    public void removeExpenseContribution(Connection conn, int expenseId) throws SQLException {
+        applyExpenseContributions(conn, new int[]{expenseId}, 0, 1, -1);
+
+        // Settled pairs don't need a row any more. H2 has no multi-table DELETE.
+        String deleteQuery = SqlDialect.current() == SqlDialect.MYSQL
+                ? "DELETE b FROM user_balance b " +
+                "JOIN user_expense ue ON ue.creditor_id = b.creditor_id AND ue.debtor_id = b.debtor_id " +
+                "WHERE ue.expense_id = ? AND b.amount_owed = 0"
+                : "DELETE FROM user_balance WHERE amount_owed = 0 AND (creditor_id, debtor_id) IN " +
+                "(SELECT creditor_id, debtor_id FROM user_expense WHERE expense_id = ?)";
+
+        try (PreparedStatement ps = conn.prepareStatement(deleteQuery)) {
+            ps.setInt(1, expenseId);
+            ps.executeUpdate();
+        }
+    }
+
+    // Applies expenseIds[from..to) in one statement, grouped by pair so each balance row is touched once
+    private void applyExpenseContributions(Connection conn, int[] expenseIds, int from, int to, int sign)
+            throws SQLException {
+        if (LedgerJournal.isEnabled()) {
+            // The journal needs each pair's change, which the upsert below doesn't return, so read the shares once
+            // and write the sums read
+            List<BalanceChange> changes = readContributions(conn, expenseIds, from, to, sign);
+            // Changes from several expenses at once are grouped by pair, so they can't be attributed to one expense
+            writeBalanceChanges(conn, changes, to - from == 1 ? expenseIds[from] : 0);
+            return;
+        }
+
+        StringBuilder selectQuery = new StringBuilder("SELECT creditor_id, debtor_id, ? * SUM(amount_owed) AS amount_owed ")
+                .append("FROM user_expense WHERE expense_id IN (");
+        appendPlaceholders(selectQuery, from, to);
+        selectQuery.append(") AND ").append(OUTSTANDING_SHARES).append(" ")
+                .append("GROUP BY creditor_id, debtor_id");
+        String upsertQuery = SqlDialect.current().upsertAdding("user_balance", BALANCE_KEY, "amount_owed",
+                selectQuery.toString());
+
+        try (PreparedStatement ps = conn.prepareStatement(upsertQuery)) {
+            ps.setInt(1, sign);
+            for (int i = from; i < to; i++) {
+                ps.setInt(i - from + 2, expenseIds[i]);
+            }
+            int rowsAffected = ps.executeUpdate();
+            if (rowsAffected > 0) {
+                DebtSummaryCache.recordChange(conn);
+            }
+            logger.debug("Applied contribution of {} expense(s) (sign {}) to `user_balance`, {} row(s) affected",
+                    to - from, sign, rowsAffected);
+        }
+    }
+
+    // Sums the outstanding shares per pair. The rows are read with a locking read, as the INSERT ... SELECT above reads
+    // them, so they can't change before the sums are written. H2 can't lock the rows of a grouped select, so the rows
+    // are summed here.
+    private List<BalanceChange> readContributions(Connection conn, int[] expenseIds, int from, int to, int sign)
+            throws SQLException {
+        StringBuilder selectQuery = new StringBuilder("SELECT creditor_id, debtor_id, amount_owed FROM user_expense ")
+                .append("WHERE expense_id IN (");
+        appendPlaceholders(selectQuery, from, to);
+        selectQuery.append(") AND ").append(OUTSTANDING_SHARES).append(SqlDialect.current().lockingReadClause());
+
+        Map<Long, Long> pairAmounts = new LinkedHashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(selectQuery.toString())) {
+            for (int i = from; i < to; i++) {
+                ps.setInt(i - from + 1, expenseIds[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    pairAmounts.merge((long) rs.getInt(1) << 32 | rs.getInt(2),
+                            sign * Money.fromBigDecimal(rs.getBigDecimal(3)), Long::sum);
+                }
+            }
+        }
+
+        List<BalanceChange> changes = new ArrayList<>(pairAmounts.size());
+        for (Map.Entry<Long, Long> pair : pairAmounts.entrySet()) {
+            changes.add(new BalanceChange((int) (pair.getKey() >>> 32), (int) (long) pair.getKey(), pair.getValue()));
+        }
+        return changes;
+    }
+
+    private static void appendPlaceholders(StringBuilder query, int from, int to) {
+        for (int i = from; i < to; i++) {
+            query.append(i == from ? "?" : ", ?");
+        }
+    }
+
+    /**
+     * Counts the pairs whose stored balance differs from the sum of their outstanding `user_expense` rows.
+     */
+    @Override
+    public int countInconsistentBalances(Connection conn) throws SQLException {
+        String expected = "SELECT creditor_id, debtor_id, SUM(amount_owed) AS amount_owed FROM user_expense " +
+                "WHERE " + OUTSTANDING_SHARES + " GROUP BY creditor_id, debtor_id";
+        String missingOrWrong = "SELECT COUNT(*) FROM (" + expected + ") t " +
+                "LEFT JOIN user_balance b ON b.creditor_id = t.creditor_id AND b.debtor_id = t.debtor_id " +
+                "WHERE t.amount_owed <> 0 AND (b.amount_owed IS NULL OR b.amount_owed <> t.amount_owed)";
+        String unexpected = "SELECT COUNT(*) FROM user_balance b " +
+                "LEFT JOIN (" + expected + ") t ON b.creditor_id = t.creditor_id AND b.debtor_id = t.debtor_id " +
+                "WHERE b.amount_owed <> 0 AND t.creditor_id IS NULL";
+
+        int inconsistent = 0;
+        try (Statement stmt = conn.createStatement()) {
+            for (String query : new String[]{missingOrWrong, unexpected}) {
+                try (ResultSet rs = stmt.executeQuery(query)) {
+                    if (rs.next()) {
+                        inconsistent += rs.getInt(1);
+                    }
+                }
+            }
+        }
+        return inconsistent;
+    }
+
+    /**
+     * Recomputes every balance from the `user_expense` table.
+     *
+     * @return the number of balance rows written
+     */
+    @Override
+    public int rebuildBalances(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM user_balance");
+            int rowsInserted = stmt.executeUpdate("INSERT INTO user_balance (creditor_id, debtor_id, amount_owed) " +
+                    "SELECT creditor_id, debtor_id, SUM(amount_owed) FROM user_expense " +
+                    "WHERE " + OUTSTANDING_SHARES + " GROUP BY creditor_id, debtor_id");
+            DebtSummaryCache.recordChange(conn);
+            if (LedgerJournal.isEnabled()) {
+                LedgerJournal.record(conn, LedgerJournal.readBalanceEntries(conn));
+            }
+            logger.info("Rebuilt `user_balance` with {} row(s)", rowsInserted);
+            return rowsInserted;
+        }
+    }
+
+    /**
+     * Checks the balance table against `user_expense` and rebuilds it from scratch, reporting what was found.
+     */
+    public void checkAndRebuildBalances() {
+        try {
+            UnitOfWork.execute(conn -> {
+                int inconsistent = countInconsistentBalances(conn);
+                if (inconsistent == 0) {
+                    System.out.println("All balances are consistent with the recorded expenses.");
+                } else {
+                    System.out.println(inconsistent + " inconsistent balance(s) found.");
+                }
+                int rowsWritten = rebuildBalances(conn);
+                System.out.println("Balances rebuilt: " + rowsWritten + " row(s) written to `user_balance`.");
+                return null;
+            });
+        } catch (SQLException e) {
+            System.err.println("Failed to rebuild balances: " + e.getMessage());
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.mnfll.bill_splitter_cli.utilities.InputValidator;
 import java.sql.*;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -16,13 +17,29 @@ import java.util.Scanner;
 public class JdbcExpenseDAO implements ExpenseDAO {
     // Add data into Expense table
     public int insertExpenseData(Expense expense) {
-        Connection connection = null;
-        int generatedExpenseId = -1;
-        JdbcUserDAO jdbcUserDAO = new JdbcUserDAO();
-        int creditorId = jdbcUserDAO.getUserIdByName(expense.getCreditorName());
+        try {
+            return UnitOfWork.execute(conn -> insertExpenseData(conn, expense));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        return -1;
+    }
+
+    // Add data into Expense table using the caller's connection, returns the generated expense_id
+    public int insertExpenseData(Connection connection, Expense expense) throws SQLException {
+        UserDAO jdbcUserDAO = new JdbcUserDAO();
+        int creditorId = jdbcUserDAO.getUserIdByName(connection, expense.getCreditorName());
+        return insertExpenseData(connection, expense, creditorId);
+    }
+
+    // Add data into Expense table when the caller has already resolved the creditor's user_id
+    @Override
+    public int insertExpenseData(Connection connection, Expense expense, int creditorId) throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet generatedKeys = null;
 
         try {
-            connection = DatabaseConnectionManager.establishConnection();
             // Prepare the insert statement
             String insertQuery = "INSERT INTO expense (expense_date, establishment_name, expense_name, total_cost, " +
                     "split_count, creditor_id, creditor_name) " +
@@ -31,11 +48,11 @@ public class JdbcExpenseDAO implements ExpenseDAO {
             // Convert java.util.Date to java.sql.Date
             Date sqlDate = new Date(expense.getDate().getTime());
 
-            PreparedStatement statement = connection.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS);
+            statement = connection.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS);
             statement.setDate(1, sqlDate);
             statement.setString(2, expense.getEstablishmentName());
             statement.setString(3, expense.getItemName());
-            statement.setDouble(4, expense.getItemCost());
+            statement.setBigDecimal(4, Money.toBigDecimal(expense.getItemCost()));
             statement.setInt(5, expense.getDebtorNames().size());
             statement.setInt(6, creditorId);
             statement.setString(7, expense.getCreditorName());
@@ -46,30 +63,82 @@ public class JdbcExpenseDAO implements ExpenseDAO {
                 System.out.println("Record inserted into `expense` table successfully");
 
                 // Retrieves the expense_id that was generated
-                ResultSet generatedKeys = statement.getGeneratedKeys();
+                generatedKeys = statement.getGeneratedKeys();
                 if (generatedKeys.next()) {
-                    generatedExpenseId = generatedKeys.getInt(1);
+                    return generatedKeys.getInt(1);
                 }
-            } else {
-                System.out.println("Failed to insert into `expense` table");
             }
+        } finally {
+            ResourcesUtils.closeResultSet(generatedKeys);
+            ResourcesUtils.closePreparedStatement(statement);
+        }
+
+        throw new SQLException("Failed to insert into `expense` table");
+    }
+
+    /**
+     * Inserts many expenses as one JDBC batch, for bulk imports. {@code creditorIds[i]} is the creditor of
+     * {@code expenses.get(i)}.
+     *
+     * @return the generated expense_id of each expense, in the same order
+     */
+    @Override
+    public int[] insertExpenseBatch(Connection connection, List<Expense> expenses, int[] creditorIds) throws SQLException {
+        String insertQuery = "INSERT INTO expense (expense_date, establishment_name, expense_name, total_cost, " +
+                "split_count, creditor_id, creditor_name) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?)";
+        int[] expenseIds = new int[expenses.size()];
+
+        try (PreparedStatement statement = connection.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS)) {
+            for (int i = 0; i < expenses.size(); i++) {
+                Expense expense = expenses.get(i);
+                statement.setDate(1, new Date(expense.getDate().getTime()));
+                statement.setString(2, expense.getEstablishmentName());
+                statement.setString(3, expense.getItemName());
+                statement.setBigDecimal(4, Money.toBigDecimal(expense.getItemCost()));
+                statement.setInt(5, expense.getDebtorNames().size());
+                statement.setInt(6, creditorIds[i]);
+                statement.setString(7, expense.getCreditorName());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+
+            try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                int count = 0;
+                while (generatedKeys.next() && count < expenseIds.length) {
+                    expenseIds[count++] = generatedKeys.getInt(1);
+                }
+                if (count != expenseIds.length) {
+                    throw new SQLException("Expected " + expenseIds.length + " generated expense ids, got " + count);
+                }
+            }
+        }
+        return expenseIds;
+    }
+
+    public int getCreditorId(int expenseId) {
+        Connection conn = null;
+        int creditorId = -1;
+
+        try {
+            conn = DatabaseConnectionManager.establishConnection();
+            creditorId = getCreditorId(conn, expenseId);
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
-            ResourcesUtils.closeConnection(connection);
+            ResourcesUtils.closeConnection(conn);
         }
 
-        return generatedExpenseId;
+        return creditorId;
     }
 
-    public int getCreditorId(int expenseId) {
+    @Override
+    public int getCreditorId(Connection conn, int expenseId) throws SQLException {
         PreparedStatement ps = null;
         ResultSet rs = null;
-        Connection conn = null;
         int creditorId = -1;
 
         try {
-            conn = DatabaseConnectionManager.establishConnection();
             // Get the creditor_id for the
             String selectQuery = "SELECT creditor_id FROM expense WHERE expense_id = ? LIMIT 1";
             ps = conn.prepareStatement(selectQuery);
@@ -81,12 +150,9 @@ public class JdbcExpenseDAO implements ExpenseDAO {
             } else {
                 System.out.println("Creditor Id not found");
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         } finally {
             ResourcesUtils.closeResultSet(rs);
             ResourcesUtils.closePreparedStatement(ps);
-            ResourcesUtils.closeConnection(conn);
         }
 
         return creditorId;
@@ -134,8 +200,9 @@ public class JdbcExpenseDAO implements ExpenseDAO {
         }
     }
 
-    //    TODO: Requires testing
-    public double calculateNewAmountOwed(Connection connection, int expenseId, int splitCount) throws SQLException {
+    // Returns the total cost of an expense in cents, or -1 if the expense doesn't exist
+    @Override
+    public long getTotalCost(Connection connection, int expenseId) throws SQLException {
         PreparedStatement ps = null;
         ResultSet rs = null;
 
@@ -146,12 +213,8 @@ public class JdbcExpenseDAO implements ExpenseDAO {
             rs = ps.executeQuery();
 
             if (rs.next()) {
-                double expenseCost = rs.getDouble("total_cost");
-                double newAmountOwed = expenseCost / splitCount;
-                return Math.round(newAmountOwed * 100.0) / 100.0; // Return the new amount owed rounded to 2 decimal places.6
+                return Money.fromBigDecimal(rs.getBigDecimal("total_cost"));
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         } finally {
             ResourcesUtils.closeResultSet(rs);
             ResourcesUtils.closePreparedStatement(ps);
@@ -206,86 +269,89 @@ public class JdbcExpenseDAO implements ExpenseDAO {
 
     // Update total_cost in `expense` table based on expense_id
     public void updateExpenseCost(int expenseId, Scanner scanner) {
-        Connection conn = null;
-        PreparedStatement ps1 = null;
-        PreparedStatement ps2 = null;
-        ResultSet rs = null;
-        PreparedStatement ps3 = null;
+        long expenseCost = 0;
+        boolean isValidExpenseCost = false;
+
+        while (!isValidExpenseCost) {
+            System.out.print("Enter the new expense cost: (leave blank to remain unchanged) ");
+            String userInput = scanner.nextLine();
+
+            if (userInput.trim().isBlank()) {
+                return;
+            } else if (InputValidator.isValidCost(userInput)) {
+                expenseCost = Money.parse(userInput);
+                isValidExpenseCost = true;
+            } else {
+                System.out.print("Invalid expense cost. Please enter a valid expense cost. ");
+            }
+        }
 
+        long newExpenseCost = expenseCost;
         try {
-            conn = DatabaseConnectionManager.establishConnection();
-            double expenseCost = 0;
-            boolean isValidExpenseCost = false;
+            UnitOfWork.execute(conn -> {
+                updateExpenseCost(conn, expenseId, newExpenseCost);
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
 
-            while (!isValidExpenseCost) {
-                System.out.print("Enter the new expense cost: (leave blank to remain unchanged) ");
-                String userInput = scanner.nextLine();
+    // Update the cost and every debtor's share within the caller's transaction
+    @Override
+    public void updateExpenseCost(Connection conn, int expenseId, long expenseCost) throws SQLException {
+        PreparedStatement ps = null;
+        BalanceDAO jdbcBalanceDAO = new JdbcBalanceDAO();
+        UserExpenseDAO jdbcUserExpenseDAO = new JdbcUserExpenseDAO();
 
-                if (InputValidator.isValidCost(userInput)) {
-                    expenseCost = Double.parseDouble(userInput);
-                    isValidExpenseCost = true;
-                } else {
-                    System.out.print("Invalid expense cost. Please enter a valid expense cost. ");
-                }
-            }
+        try {
+            jdbcBalanceDAO.removeExpenseContribution(conn, expenseId);
 
             // Update expense_cost in `expense` table based on expense_id
             String updateQuery = "UPDATE expense SET total_cost = ? WHERE expense_id = ?";
-            ps1 = conn.prepareStatement(updateQuery);
-            ps1.setDouble(1, expenseCost);
-            ps1.setInt(2, expenseId);
+            ps = conn.prepareStatement(updateQuery);
+            ps.setBigDecimal(1, Money.toBigDecimal(expenseCost));
+            ps.setInt(2, expenseId);
 
             // Execute the update query
-            int rowsUpdatedExpense = ps1.executeUpdate();
+            int rowsUpdatedExpense = ps.executeUpdate();
 
             // Check the number of rows affected
             System.out.println("Rows updated: " + rowsUpdatedExpense);
 
-            // Get the number of people that splitting this expense cost
-            String selectQuery = "SELECT split_count FROM expense WHERE expense_id = ?";
-            ps2 = conn.prepareStatement(selectQuery);
-            ps2.setInt(1, expenseId);
-
-            // Execute the select query
-            rs = ps2.executeQuery();
-            int splitCount = 0;
-            if (rs.next()) {
-                splitCount = rs.getInt("split_count");
-            }
-
             // Re-calculate the cost per person
-            double newAmountOwed = expenseCost / splitCount;
+            jdbcUserExpenseDAO.resplitAmountOwed(conn, expenseId);
+            LedgerJournal.record(conn, LedgerJournal.RecordType.COST_CHANGED, expenseId, 0, 0, expenseCost);
 
-            // Update amount_owed in `user_expense` table for each person
-            String updateAmountOwedQuery = "UPDATE user_expense SET amount_owed = ? WHERE expense_id = ?";
-            ps3 = conn.prepareStatement(updateAmountOwedQuery);
-            ps3.setDouble(1, newAmountOwed);
-            ps3.setInt(2, expenseId);
+            jdbcBalanceDAO.addExpenseContribution(conn, expenseId);
+        } finally {
+            ResourcesUtils.closePreparedStatement(ps);
+        }
+    }
 
-            // Execute the update query
-            int rowsUpdatedUserExpense = ps3.executeUpdate();
+    public void deleteExpense(int expenseId) {
+        try {
+            UnitOfWork.execute(conn -> {
+                deleteExpense(conn, expenseId);
+                return null;
+            });
 
-            // Check the number of rows updated
-            System.out.println("Rows updated: " + rowsUpdatedUserExpense);
+            // Delete users that are no longer associated with any expense
+            OrphanUserSweeper.requestSweep();
         } catch (SQLException e) {
             e.printStackTrace();
-        } finally {
-            ResourcesUtils.closePreparedStatement(ps3);
-            ResourcesUtils.closeResultSet(rs);
-            ResourcesUtils.closePreparedStatement(ps2);
-            ResourcesUtils.closePreparedStatement(ps1);
-            ResourcesUtils.closeConnection(conn);
         }
     }
 
-    // TODO: Refactor
-    public void deleteExpense(int expenseId) {
-        Connection connection = null;
+    // Delete an expense and its shares within the caller's transaction
+    @Override
+    public void deleteExpense(Connection connection, int expenseId) throws SQLException {
         PreparedStatement ps1 = null;
         PreparedStatement ps2 = null;
 
         try {
-            connection = DatabaseConnectionManager.establishConnection();
+            new JdbcBalanceDAO().removeExpenseContribution(connection, expenseId);
+
             // Delete from user_expense table
             String deleteUserExpenseQuery = "DELETE FROM user_expense WHERE expense_id = ?";
             ps1 = connection.prepareStatement(deleteUserExpenseQuery);
@@ -309,102 +375,111 @@ public class JdbcExpenseDAO implements ExpenseDAO {
             // Execute the statement
             int rowsDeleteExpense = ps2.executeUpdate();
             if (rowsDeleteExpense > 0) {
+                LedgerJournal.record(connection, LedgerJournal.RecordType.EXPENSE_DELETED, expenseId, 0, 0, 0);
                 System.out.println(rowsDeleteExpense + " row(s) deleted successfully from `expense` table.");
             } else {
                 System.out.println("No rows deleted from `expense` table.");
             }
-
-            JdbcUserDAO jdbcUserDAO = new JdbcUserDAO();
-            // Delete users that are no longer associated with any expense
-            jdbcUserDAO.deleteOrphanUsers();
-
-        } catch (SQLException e) {
-            e.printStackTrace();
         } finally {
             ResourcesUtils.closePreparedStatement(ps2);
             ResourcesUtils.closePreparedStatement(ps1);
-            ResourcesUtils.closeConnection(connection);
         }
     }
 
-    public void displayExpenseTransactions() {
-        String query = "SELECT expense_id, expense_date, establishment_name, expense_name, total_cost, split_count, creditor_name " +
-                "FROM expense " +
-                "ORDER BY expense_date, establishment_name, expense_name, creditor_name";
-        Connection conn = null;
-        Statement stmt = null;
-        ResultSet rs = null;
-
-        try {
-            conn = DatabaseConnectionManager.establishConnection();
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(query);
+    /**
+     * Position of a row in the listings, which are ordered by (expense_date, expense_id) to match
+     * `idx_expense_date`.
+     */
+    public record PageKey(Date expenseDate, int expenseId) {
+    }
 
-            // Get metadata to retrieve column names
-            ResultSetMetaData metaData = rs.getMetaData();
-            int columnCount = metaData.getColumnCount();
+    /**
+     * Keys of the first and last expense shown on a page, both null when the page was empty.
+     */
+    public record Page(PageKey first, PageKey last, int rowCount) {
+    }
 
-            // Print column headers
-            for (int i = 1; i <= columnCount; i++) {
-                // Adjust the column with
-                System.out.printf("%-20s", metaData.getColumnName(i));
-            }
-            System.out.println();
+    /**
+     * Prints up to {@code pageSize} expenses after (or, when {@code forward} is false, before) {@code key}. A null key
+     * starts from the first (or last) expense.
+     */
+    public Page displayExpensePage(PageKey key, boolean forward, int pageSize) throws SQLException {
+        String query = "SELECT * FROM (" +
+                "SELECT expense_id, expense_date, establishment_name, expense_name, total_cost, split_count, creditor_name " +
+                "FROM expense" + keysetClause(key, forward) +
+                ") page " +
+                "ORDER BY expense_date, expense_id";
+        return displayPage(query, key, pageSize);
+    }
 
-            // Print the result set
-            while (rs.next()) {
-                for (int i = 1; i <= columnCount; i++) {
-                    System.out.printf("%-20s", rs.getString(i));
-                }
-                System.out.println();
-            }
+    /**
+     * Prints every share of up to {@code pageSize} expenses after (or before) {@code key}, so an expense is never
+     * split across two pages.
+     */
+    public Page displayCombinedExpensePage(PageKey key, boolean forward, int pageSize) throws SQLException {
+        String query = "SELECT c.expense_id, c.expense_date, c.establishment_name, c.expense_name, c.creditor_name, " +
+                "c.debtor_name, c.amount_owed, c.payment_status " +
+                "FROM (SELECT expense_id, expense_date FROM expense" + keysetClause(key, forward) + ") page " +
+                "JOIN combined_user_expense c ON c.expense_id = page.expense_id " +
+                "ORDER BY page.expense_date, page.expense_id, c.debtor_name";
+        return displayPage(query, key, pageSize);
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            ResourcesUtils.closeResultSet(rs);
-            ResourcesUtils.closeStatement(stmt);
-            ResourcesUtils.closeConnection(conn);
+    // Seeks straight to the key through the index, so a page costs the same however deep into the listing it is
+    private static String keysetClause(PageKey key, boolean forward) {
+        String where = "";
+        if (key != null) {
+            String comparison = forward ? ">" : "<";
+            where = " WHERE expense_date " + comparison + " ? OR (expense_date = ? AND expense_id " + comparison + " ?)";
         }
+        String direction = forward ? "" : " DESC";
+        return where + " ORDER BY expense_date" + direction + ", expense_id" + direction + " LIMIT ?";
     }
 
-    public void displayCombinedExpenseTransactions() {
-        String query = "SELECT expense_id, expense_date, establishment_name, expense_name, creditor_name, debtor_name, amount_owed, payment_status " +
-                "FROM combined_user_expense " +
-                "ORDER BY expense_date, establishment_name, expense_name, creditor_name, debtor_name";
+    private Page displayPage(String query, PageKey key, int pageSize) throws SQLException {
+        TableRenderer tableRenderer = TableRenderer.toStandardOutput();
         Connection conn = null;
-        Statement stmt = null;
+        PreparedStatement ps = null;
         ResultSet rs = null;
 
         try {
             conn = DatabaseConnectionManager.establishConnection();
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(query);
-
-            // Get metadata to retrieve column names
-            ResultSetMetaData metaData = rs.getMetaData();
-            int columnCount = metaData.getColumnCount();
-
-            // Print column headers
-            for (int i = 1; i <= columnCount; i++) {
-                // Adjust the column with
-                System.out.printf("%-20s", metaData.getColumnName(i));
+            ps = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // Never ask the driver to hold more than a page
+            ps.setFetchSize(Math.min(pageSize, DatabaseConnectionManager.getFetchSize()));
+
+            int parameterIndex = 1;
+            if (key != null) {
+                ps.setDate(parameterIndex++, key.expenseDate());
+                ps.setDate(parameterIndex++, key.expenseDate());
+                ps.setInt(parameterIndex++, key.expenseId());
             }
-            System.out.println();
+            ps.setInt(parameterIndex, pageSize);
+            rs = ps.executeQuery();
+
+            PageKey first = null;
+            PageKey last = null;
+            int rowCount = 0;
 
-            // Print the result set
             while (rs.next()) {
-                for (int i = 1; i <= columnCount; i++) {
-                    System.out.printf("%-20s", rs.getString(i));
+                if (rowCount == 0) {
+                    // Column headers, only once there is something to show
+                    tableRenderer.columns(rs.getMetaData());
+                }
+                tableRenderer.row(rs);
+
+                last = new PageKey(rs.getDate("expense_date"), rs.getInt("expense_id"));
+                if (first == null) {
+                    first = last;
                 }
-                System.out.println();
+                rowCount++;
             }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return new Page(first, last, rowCount);
         } finally {
+            tableRenderer.flush();
             ResourcesUtils.closeResultSet(rs);
-            ResourcesUtils.closeStatement(stmt);
+            ResourcesUtils.closePreparedStatement(ps);
             ResourcesUtils.closeConnection(conn);
         }
     }
@@ -414,6 +489,7 @@ public class JdbcExpenseDAO implements ExpenseDAO {
                 "FROM combined_user_expense " +
                 "WHERE expense_id = ? " +
                 "ORDER BY expense_date, establishment_name, expense_name, creditor_name, debtor_name";
+        TableRenderer tableRenderer = TableRenderer.toStandardOutput();
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -426,35 +502,18 @@ public class JdbcExpenseDAO implements ExpenseDAO {
             pstmt.setInt(1, expenseId);
 
             rs = pstmt.executeQuery();
-
-            // Get metadata to retrieve column names
-            ResultSetMetaData metaData = rs.getMetaData();
-            int columnCount = metaData.getColumnCount();
-
-            // Print column headers
-            for (int i = 1; i <= columnCount; i++) {
-                // Adjust the column with
-                System.out.printf("%-20s", metaData.getColumnName(i));
-            }
-            System.out.println();
-
-            // Print the result set
-            while (rs.next()) {
-                for (int i = 1; i <= columnCount; i++) {
-                    System.out.printf("%-20s", rs.getString(i));
-                }
-                System.out.println();
-            }
-
+            tableRenderer.writeResultSet(rs);
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
+            tableRenderer.flush();
             ResourcesUtils.closeResultSet(rs);
             ResourcesUtils.closePreparedStatement(pstmt);
             ResourcesUtils.closeConnection(conn);
         }
     }
 
+    @Override
     public boolean expenseIdExists(int expenseId) {
         String query = "SELECT expense_id FROM expense WHERE expense_id = ?";
         Connection conn = null;
@@ -484,6 +543,7 @@ public class JdbcExpenseDAO implements ExpenseDAO {
         return false;
     }
 
+    @Override
     public int updateSplitCount(Connection conn, int expenseId, Boolean increment) throws SQLException {
         PreparedStatement ps1 = null;
         PreparedStatement ps2 = null;
@@ -514,8 +574,6 @@ public class JdbcExpenseDAO implements ExpenseDAO {
 
                 return splitCount;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         } finally {
             ResourcesUtils.closeResultSet(rs);
             ResourcesUtils.closePreparedStatement(ps2);
@@ -1,100 +1,205 @@
 package com.mnfll.bill_splitter_cli;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class JdbcUserDAO implements UserDAO {
-    public int getUserId(Connection conn, String debtorName) {
-        PreparedStatement ps = null;
-        ResultSet rs = null;
+    private static final Logger logger = LogManager.getLogger(JdbcUserDAO.class);
+
+    // Upper bound on the number of names bound into a single IN list or multi-row INSERT
+    private static final int MAX_NAMES_PER_STATEMENT = 1000;
+    private static final String USER_CACHE_SIZE_KEY = "cache.user.maxEntries";
+
+    // Shared by every DAO instance, user names rarely change so most lookups never reach the database
+    private static final UserCache userCache = new UserCache(
+            DatabaseConnectionManager.getIntProperty(DatabaseConnectionManager.loadConfig(), USER_CACHE_SIZE_KEY, 10000));
+
+    public static UserCache getUserCache() {
+        return userCache;
+    }
 
+    public List<Integer> insertUserData(Expense expense) {
         try {
-            String selectQuery = "SELECT user_id FROM user WHERE user_name = ?";
-            ps = conn.prepareStatement(selectQuery);
-            ps.setString(1, debtorName);
-            rs = ps.executeQuery();
+            return UnitOfWork.execute(conn -> insertUserData(conn, expense));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            if (rs.next()) {
-                // User exists, return the user id
-                return rs.getInt(1);
+    // Resolve or create a user for every debtor using the caller's connection
+    @Override
+    public List<Integer> insertUserData(Connection conn, Expense expense) throws SQLException {
+        // MySQL matches user names without regard to case, so names differing only in case are the same debtor
+        Set<String> seenNames = new HashSet<>();
+        for (String debtorName : expense.getDebtorNames()) {
+            if (!seenNames.add(debtorName.toLowerCase(Locale.ROOT))) {
+                throw new SQLException("Debtor '" + debtorName + "' is listed more than once");
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            ResourcesUtils.closeResultSet(rs);
-            ResourcesUtils.closePreparedStatement(ps);
         }
 
-        return -1;
+        Map<String, Integer> userIds = resolveUserIds(conn, expense.getDebtorNames());
+        List<Integer> generatedKeys = new ArrayList<>();
+
+        for (String debtorName : expense.getDebtorNames()) {
+            generatedKeys.add(userIds.get(debtorName));
+        }
+
+        return generatedKeys;
     }
 
-    public int addNewUser(Connection conn, String debtorName) {
-        PreparedStatement ps = null;
+    /**
+     * Returns the user_id of every given name, creating users for the names that don't exist yet.
+     * <p>
+     * Existing users are found with one {@code IN (...)} query and the missing ones are added with one multi-row
+     * insert, so the number of statements does not depend on how many names are passed in. The unique index on
+     * {@code user.user_name} makes the insert safe when another session adds the same name concurrently: the insert
+     * turns a duplicate name into a no-op update, while any other error, such as a name too long for the column,
+     * still fails the statement.
+     */
+    @Override
+    public Map<String, Integer> resolveUserIds(Connection conn, Collection<String> names) throws SQLException {
+        Map<String, Integer> userIds = new HashMap<>();
+        Set<String> uncachedNames = new LinkedHashSet<>();
 
-        try {
-            String insertQuery = "INSERT INTO user (user_name) VALUES (?)";
-            ps = conn.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS);
-            ps.setString(1, debtorName);
-            ps.executeUpdate();
-
-            // Retrieve the generated user_id
-            ResultSet generatedKeys = ps.getGeneratedKeys();
-            if (generatedKeys.next()) {
-                return generatedKeys.getInt(1);
+        for (String name : names) {
+            int cachedUserId = userCache.getUserId(name);
+            if (cachedUserId != -1) {
+                userIds.put(name, cachedUserId);
             } else {
-                throw new SQLException("Creating user failed, no user ID obtained.");
+                uncachedNames.add(name);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            ResourcesUtils.closePreparedStatement(ps);
         }
-        System.out.println("Failed to insert to `user` table");
-        return -1;
-    }
+        if (uncachedNames.isEmpty()) {
+            return userIds;
+        }
 
-    public List<Integer> insertUserData(Expense expense) {
-        List<Integer> generatedKeys = new ArrayList<>();
-        Connection conn = null;
+        selectUserIds(conn, uncachedNames, userIds, false);
 
-        try {
-            conn = DatabaseConnectionManager.establishConnection();
+        List<String> missingNames = new ArrayList<>();
+        for (String name : uncachedNames) {
+            if (!userIds.containsKey(name)) {
+                missingNames.add(name);
+            }
+        }
 
-            for (String debtorName : expense.getDebtorNames()) {
-                // Check if the name already exists
-                int userId = getUserId(conn, debtorName);
+        if (!missingNames.isEmpty()) {
+            insertMissingUsers(conn, missingNames);
+            // Use a locking read so names committed by a concurrent session are visible too
+            selectUserIds(conn, missingNames, userIds, true);
 
-                if (userId != -1) {
-                    // Name already exists in the `user` table, use the existing user ID
-                    generatedKeys.add(userId);
-                } else {
-                    // Name does not exist in the `user` table, add a new user and retrieve the user ID
-                    userId = addNewUser(conn, debtorName);
+            for (String name : missingNames) {
+                if (!userIds.containsKey(name)) {
+                    throw new SQLException("Creating user '" + name + "' failed, no user ID obtained.");
+                }
+            }
+        }
+
+        return userIds;
+    }
+
+    private void selectUserIds(Connection conn, Collection<String> names, Map<String, Integer> userIds,
+                               boolean lockingRead) throws SQLException {
+        List<String> nameList = new ArrayList<>(names);
 
-                    if (userId != -1) {
-                        generatedKeys.add(userId);
+        for (int from = 0; from < nameList.size(); from += MAX_NAMES_PER_STATEMENT) {
+            List<String> chunk = nameList.subList(from, Math.min(from + MAX_NAMES_PER_STATEMENT, nameList.size()));
+            String selectQuery = "SELECT user_id, user_name FROM user WHERE user_name IN (" + placeholders(chunk.size())
+                    + ")" + (lockingRead ? SqlDialect.current().lockingReadClause() : "");
+
+            try (PreparedStatement ps = conn.prepareStatement(selectQuery)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setString(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        userIds.put(rs.getString(2), rs.getInt(1));
+                        cacheUser(conn, rs.getString(2), rs.getInt(1));
                     }
                 }
             }
+        }
+    }
 
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        } finally {
-            ResourcesUtils.closeConnection(conn);
+    private void insertMissingUsers(Connection conn, List<String> missingNames) throws SQLException {
+        for (int from = 0; from < missingNames.size(); from += MAX_NAMES_PER_STATEMENT) {
+            List<String> chunk = missingNames.subList(from, Math.min(from + MAX_NAMES_PER_STATEMENT, missingNames.size()));
+            StringBuilder insertQuery = new StringBuilder("INSERT INTO user (user_name) VALUES ");
+            for (int i = 0; i < chunk.size(); i++) {
+                insertQuery.append(i == 0 ? "(?)" : ", (?)");
+            }
+            insertQuery.append(" ON DUPLICATE KEY UPDATE user_name = user_name");
+
+            try (PreparedStatement ps = conn.prepareStatement(insertQuery.toString())) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setString(i + 1, chunk.get(i));
+                }
+                // Counts names that turned out to exist already as well, the driver reports found rather than changed rows
+                int rowsInserted = ps.executeUpdate();
+                logger.debug("Inserted up to {} new user(s) into the `user` table", rowsInserted);
+                invalidateUserList(conn);
+                if (rowsInserted > 0) {
+                    DebtSummaryCache.recordChange(conn);
+                }
+            }
         }
+    }
 
-        return generatedKeys;
+    // Only cache what has been committed, a rolled back insert must not leave a user id behind in the cache
+    private void cacheUser(Connection conn, String userName, int userId) {
+        UnitOfWork.afterCommit(conn, () -> userCache.put(userName, userId));
+    }
+
+    private void invalidateUserList(Connection conn) {
+        userCache.invalidateUserList();
+        UnitOfWork.afterCommit(conn, userCache::invalidateUserList);
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.toString();
     }
 
     public int getUserIdByName(String userName) {
         Connection connection = null;
+        int userId = -1;
+
+        try {
+            connection = DatabaseConnectionManager.establishConnection();
+            userId = getUserIdByName(connection, userName);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            ResourcesUtils.closeConnection(connection);
+        }
+        return userId;
+    }
+
+    @Override
+    public int getUserIdByName(Connection connection, String userName) throws SQLException {
+        int cachedUserId = userCache.getUserId(userName);
+        if (cachedUserId != -1) {
+            return cachedUserId;
+        }
+
         PreparedStatement ps = null;
         ResultSet rs = null;
         int userId = -1;
 
         try {
-            connection = DatabaseConnectionManager.establishConnection();
             // Retrieve user_id given user_name
             String selectQuery = "SELECT user_id FROM user WHERE user_name = ? LIMIT 1";
             ps = connection.prepareStatement(selectQuery);
@@ -102,18 +207,45 @@ public class JdbcUserDAO implements UserDAO {
             rs = ps.executeQuery();
             if (rs.next()) {
                 userId = rs.getInt("user_id");
+                cacheUser(connection, userName, userId);
             } else {
                 System.out.println("User Id not found");
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         } finally {
-            ResourcesUtils.closeConnection(connection);
+            ResourcesUtils.closeResultSet(rs);
+            ResourcesUtils.closePreparedStatement(ps);
         }
         return userId;
     }
 
+    @Override
+    public String getUserNameById(Connection connection, int userId) throws SQLException {
+        String cachedUserName = userCache.getUserName(userId);
+        if (cachedUserName != null) {
+            return cachedUserName;
+        }
+
+        try (PreparedStatement ps = connection.prepareStatement("SELECT user_name FROM user WHERE user_id = ?")) {
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    String userName = rs.getString(1);
+                    cacheUser(connection, userName, userId);
+                    return userName;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
     public List<String> getAllUserNames() {
+        List<String> cachedUserNames = userCache.getAllUserNames();
+        if (cachedUserNames != null) {
+            return new ArrayList<>(cachedUserNames);
+        }
+
+        long userListVersion = userCache.getUserListVersion();
         Statement stmt = null;
         ResultSet rs = null;
         Connection conn = null;
@@ -129,6 +261,7 @@ public class JdbcUserDAO implements UserDAO {
                 String userName = rs.getString("user_name");
                 userNames.add(userName);
             }
+            userCache.putAllUserNames(userNames, userListVersion);
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
@@ -139,56 +272,39 @@ public class JdbcUserDAO implements UserDAO {
         return userNames;
     }
 
-    public void deleteOrphanUsers() {
+    /**
+     * Deletes every user that no longer appears in any expense, as either a debtor or a creditor.
+     *
+     * @return the number of users deleted, or -1 if the delete failed
+     */
+    @Override
+    public int deleteOrphanUsers() {
         Connection connection = null;
-        PreparedStatement selectStatement = null;
-        PreparedStatement checkStatement = null;
         PreparedStatement deleteStatement = null;
-        ResultSet resultSet = null;
+        int rowsAffected = -1;
 
         try {
             connection = DatabaseConnectionManager.establishConnection();
+            userCache.invalidateAll();
 
-            // Query to select all the user IDS in `user` table
-            String selectQuery = "SELECT user_id FROM user";
-            selectStatement = connection.prepareStatement(selectQuery);
-            resultSet = selectStatement.executeQuery();
-
-            // Query to count the number of times a user_id shows up in the `user_expense` table
-            String checkQuery = "SELECT COUNT(*) FROM user_expense WHERE debtor_id = ?";
-            checkStatement = connection.prepareStatement(checkQuery);
-
-            String deleteQuery = "DELETE FROM user WHERE user_id = ?";
+            // A single anti-join delete instead of checking each user one at a time
+            String deleteQuery = "DELETE FROM user " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM user_expense ue WHERE ue.debtor_id = user.user_id) " +
+                    "AND NOT EXISTS (SELECT 1 FROM user_expense ue WHERE ue.creditor_id = user.user_id) " +
+                    "AND NOT EXISTS (SELECT 1 FROM expense e WHERE e.creditor_id = user.user_id)";
             deleteStatement = connection.prepareStatement(deleteQuery);
-
-            // Iterate through the result set
-            while (resultSet.next()) {
-                int userId = resultSet.getInt(1);
-
-                // Check if the user_id exists in the `user_expense` table
-                checkStatement.setInt(1, userId);
-                ResultSet countResultSet = checkStatement.executeQuery();
-
-                if (countResultSet.next()) {
-                    int count = countResultSet.getInt(1);
-
-                    // Delete from `user` table if user is not associated with any expenses
-                    if (count == 0) {
-                        // Delete the user from the user table
-                        deleteStatement.setInt(1, userId);
-                        int rowsAffected = deleteStatement.executeUpdate();
-                        System.out.println(rowsAffected + " row(s) deleted for user ID: " + userId);
-                    }
-                }
+            rowsAffected = deleteStatement.executeUpdate();
+            if (rowsAffected > 0) {
+                DebtSummaryCache.recordChange(connection);
             }
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
             ResourcesUtils.closePreparedStatement(deleteStatement);
-            ResourcesUtils.closePreparedStatement(checkStatement);
-            ResourcesUtils.closeResultSet(resultSet);
-            ResourcesUtils.closePreparedStatement(selectStatement);
             ResourcesUtils.closeConnection(connection);
+            // Drop anything a concurrent reader cached while the users were being deleted
+            userCache.invalidateAll();
         }
+        return rowsAffected;
     }
 }
@@ -6,6 +6,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
@@ -17,62 +20,143 @@ import org.apache.logging.log4j.Logger;
 public class JdbcUserExpenseDAO implements UserExpenseDAO {
     private static final Logger logger = LogManager.getLogger(JdbcUserExpenseDAO.class);
 
-    public void insertUserExpenseData(Expense expense, List<Integer> personIds, int expenseId) {
-        Connection connection = null;
-
+    public void insertUserExpenseData(Expense expense, List<Integer> personIds, int expenseId, int creditorId) {
         try {
-            connection = DatabaseConnectionManager.establishConnection();
-            // Retrieve creditor_id based on expenseId
-            String selectQuery = "SELECT creditor_id FROM expense WHERE expense_id = ?";
-            PreparedStatement preparedStatement = connection.prepareStatement(selectQuery);
-            preparedStatement.setInt(1, expenseId);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            int creditorId = 0;
-
-            if (resultSet.next()) {
-                creditorId = resultSet.getInt("creditor_id");
-            }
+            UnitOfWork.execute(conn -> {
+                insertUserExpenseData(conn, expense, personIds, expenseId, creditorId);
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
 
-            // Prepare the insert statement
+    // Insert one `user_expense` row per debtor, sent to the database as a single JDBC batch
+    @Override
+    public void insertUserExpenseData(Connection connection, Expense expense, List<Integer> personIds, int expenseId,
+                                      int creditorId) throws SQLException {
+        PreparedStatement insertTableStatement = null;
+
+        try {
             String insertQuery = "INSERT INTO user_expense (expense_id, creditor_id, debtor_id, amount_owed) " +
                     "VALUES (?, ?, ?, ?)";
 
-            PreparedStatement insertTableStatement = connection.prepareStatement(insertQuery);
+            insertTableStatement = connection.prepareStatement(insertQuery);
+            // Shares differ by at most a cent and always add up to the total cost
+            int[] debtorIds = new int[personIds.size()];
+            for (int i = 0; i < debtorIds.length; i++) {
+                debtorIds[i] = personIds.get(i);
+            }
+            long[] shares = new long[debtorIds.length];
+            splitInDebtorIdOrder(expense.getItemCost(), debtorIds, debtorIds.length, shares);
 
-            for (Integer personId : personIds) {
+            for (int i = 0; i < personIds.size(); i++) {
                 insertTableStatement.setInt(1, expenseId);
                 insertTableStatement.setInt(2, creditorId);
-                insertTableStatement.setInt(3, personId);
-                insertTableStatement.setDouble(4, expense.getItemCost() / expense.getDebtorNames().size());
+                insertTableStatement.setInt(3, personIds.get(i));
+                insertTableStatement.setBigDecimal(4, Money.toBigDecimal(shares[i]));
+                insertTableStatement.addBatch();
+            }
 
-                int rowsInserted = insertTableStatement.executeUpdate();
+            long start = System.nanoTime();
+            int[] results = insertTableStatement.executeBatch();
+            long elapsedMicros = (System.nanoTime() - start) / 1000;
 
-                if (rowsInserted > 0) {
-                    System.out.println("Record inserted into `user_expense` table successfully");
-                } else {
-                    System.out.println("Failed to insert into `user_expense` table");
+            for (int result : results) {
+                if (result == Statement.EXECUTE_FAILED) {
+                    throw new SQLException("Failed to insert into `user_expense` table");
                 }
             }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
+            logger.info("Inserted batch of {} `user_expense` row(s) for expense {} in {} us",
+                    personIds.size(), expenseId, elapsedMicros);
+            LedgerJournal.record(connection, LedgerJournal.RecordType.EXPENSE_ADDED, expenseId, creditorId, 0,
+                    expense.getItemCost());
+            new JdbcBalanceDAO().addExpenseContribution(connection, expenseId);
+            System.out.println(personIds.size() + " record(s) inserted into `user_expense` table successfully");
         } finally {
-            ResourcesUtils.closeConnection(connection);
+            ResourcesUtils.closePreparedStatement(insertTableStatement);
+        }
+    }
+
+    /**
+     * Inserts the shares of many expenses as one JDBC batch and adds them to `user_balance`, for bulk imports. The
+     * balance changes are summed per pair from the shares as they are inserted, so nothing is read back.
+     * {@code expenseIds[i]} and {@code creditorIds[i]} belong to {@code expenses.get(i)}, and {@code userIds} must
+     * hold the id of every debtor.
+     *
+     * @return the number of `user_expense` rows inserted
+     */
+    @Override
+    public int insertUserExpenseBatch(Connection connection, List<Expense> expenses, int[] expenseIds, int[] creditorIds,
+                                      Map<String, Integer> userIds) throws SQLException {
+        String insertQuery = "INSERT INTO user_expense (expense_id, creditor_id, debtor_id, amount_owed) " +
+                "VALUES (?, ?, ?, ?)";
+        int rowCount = 0;
+        long[] shares = new long[16];
+        int[] debtorIds = new int[16];
+        // New shares are unpaid, so every one between two different people adds to its pair's balance
+        Map<Long, Long> pairAmounts = new HashMap<>();
+
+        try (PreparedStatement ps = connection.prepareStatement(insertQuery)) {
+            for (int i = 0; i < expenses.size(); i++) {
+                List<String> debtorNames = expenses.get(i).getDebtorNames();
+                if (shares.length < debtorNames.size()) {
+                    shares = new long[debtorNames.size()];
+                    debtorIds = new int[debtorNames.size()];
+                }
+                for (int j = 0; j < debtorNames.size(); j++) {
+                    debtorIds[j] = userIds.get(debtorNames.get(j));
+                }
+                splitInDebtorIdOrder(expenses.get(i).getItemCost(), debtorIds, debtorNames.size(), shares);
+
+                for (int j = 0; j < debtorNames.size(); j++) {
+                    ps.setInt(1, expenseIds[i]);
+                    ps.setInt(2, creditorIds[i]);
+                    ps.setInt(3, debtorIds[j]);
+                    ps.setBigDecimal(4, Money.toBigDecimal(shares[j]));
+                    ps.addBatch();
+                    rowCount++;
+                    if (debtorIds[j] != creditorIds[i]) {
+                        pairAmounts.merge((long) creditorIds[i] << 32 | debtorIds[j], shares[j], Long::sum);
+                    }
+                }
+            }
+
+            long start = System.nanoTime();
+            ps.executeBatch();
+            logger.debug("Inserted batch of {} `user_expense` row(s) for {} expense(s) in {} us",
+                    rowCount, expenses.size(), (System.nanoTime() - start) / 1000);
+        }
+
+        if (LedgerJournal.isEnabled()) {
+            List<LedgerJournal.Entry> entries = new ArrayList<>(expenses.size());
+            for (int i = 0; i < expenses.size(); i++) {
+                entries.add(new LedgerJournal.Entry(LedgerJournal.RecordType.EXPENSE_ADDED, expenseIds[i],
+                        creditorIds[i], 0, expenses.get(i).getItemCost()));
+            }
+            LedgerJournal.record(connection, entries);
+        }
+
+        List<BalanceDAO.BalanceChange> balanceChanges = new ArrayList<>(pairAmounts.size());
+        for (Map.Entry<Long, Long> pair : pairAmounts.entrySet()) {
+            balanceChanges.add(new BalanceDAO.BalanceChange((int) (pair.getKey() >>> 32), (int) (long) pair.getKey(),
+                    pair.getValue()));
         }
+        new JdbcBalanceDAO().addBalanceChanges(connection, balanceChanges);
+        return rowCount;
     }
 
     // TODO: Allow multiple updates
-    // TODO: Input validation for user inputs
     public void updatePaymentStatus(int expenseId, Scanner scanner) {
         Connection connection = null;
         PreparedStatement ps1 = null;
         ResultSet rs1 = null;
-        PreparedStatement ps2 = null;
 
         try {
             connection = DatabaseConnectionManager.establishConnection();
             // Create a SQL query
-            String sqlQuery = "SELECT debtor_id, debtor_name, amount_owed, payment_status FROM combinedUser_expense WHERE expense_id = ?";
+            String sqlQuery = "SELECT debtor_id, debtor_name, amount_owed, payment_status FROM combined_user_expense WHERE expense_id = ?";
 
             // Create a Statement object
             ps1 = connection.prepareStatement(sqlQuery);
@@ -87,98 +171,125 @@ public class JdbcUserExpenseDAO implements UserExpenseDAO {
             while (rs1.next()) {
                 int debtorId = rs1.getInt("debtor_id");
                 String debtorName = rs1.getString("debtor_name");
-                double amountOwed = rs1.getDouble("amount_owed");
+                String amountOwed = Money.format(Money.fromBigDecimal(rs1.getBigDecimal("amount_owed")));
                 char paymentStatus = rs1.getString("payment_status").charAt(0);
 
                 // Print id and name of debtors associated with this expense
                 System.out.println("id: " + debtorId + ", name: " + debtorName + ", amount owed: " + amountOwed + ", payment status: " + paymentStatus);
             }
-
-            System.out.print("Enter the ID of debtor to modify payment status ");
-            String debtorIdModify = scanner.nextLine();
-
-            System.out.print("Enter the new payment status ");
-            String newPaymentStatus = scanner.nextLine();
-
-
-            // SQL query to update paymentStatus status
-            String updateQuery = "UPDATE user_expense SET payment_status = ? WHERE expense_id = ? AND debtor_id = ?";
-
-            // Prepare the statement
-            ps2 = connection.prepareStatement(updateQuery);
-
-            // Set new values for columns
-            ps2.setString(1, newPaymentStatus);
-            ps2.setInt(2, expenseId);
-            ps2.setInt(3, Integer.parseInt(debtorIdModify));
-
-            // Execute the update
-            int rowsUpdated = ps2.executeUpdate();
-            System.out.println("Rows updated: " + rowsUpdated);
         } catch (SQLException e) {
             e.printStackTrace();
+            return;
         } finally {
-            ResourcesUtils.closePreparedStatement(ps2);
             ResourcesUtils.closeResultSet(rs1);
             ResourcesUtils.closePreparedStatement(ps1);
             ResourcesUtils.closeConnection(connection);
         }
-    }
 
-    // TODO: Allow adding multiple debtors simultaneously
-    public void addDebtorName(int expenseId, Scanner scanner) {
-        Connection conn = null;
-
-        try {
-            conn = DatabaseConnectionManager.establishConnection();
+        System.out.print("Enter the ID of debtor to modify payment status ");
+        String debtorIdModify = scanner.nextLine().trim();
 
-            while (true) {
-                System.out.print("Please provide the debtor's name. Enter '0' to cancel. ");
-                String newDebtorName = scanner.nextLine().trim();
+        System.out.print("Enter the new payment status ");
+        String newPaymentStatus = scanner.nextLine().trim().toLowerCase();
 
-                if (newDebtorName.equals("0")) {
-                    return;
-                } else if (InputValidator.isValidName(newDebtorName)) {
-                    // TODO: Handle duplicate names
-                    JdbcUserDAO jdbcUserDAO = new JdbcUserDAO();
-                    JdbcExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
+        if (!newPaymentStatus.equals(PaymentStatus.YES.getCode()) && !newPaymentStatus.equals(PaymentStatus.NO.getCode())) {
+            System.out.println("Invalid payment status. Please enter 'y' or 'n'.");
+            return;
+        }
 
-                    int userId;
+        try {
+            int debtorId = Integer.parseInt(debtorIdModify);
+            int rowsUpdated = UnitOfWork.execute(conn -> setPaymentStatus(conn, expenseId, debtorId, newPaymentStatus));
+            System.out.println("Rows updated: " + rowsUpdated);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid input. Please enter a valid user ID");
+        } catch (SQLException e) {
+            logger.error("An error occurred while updating the payment status.", e);
+        }
+    }
 
-                    if (jdbcUserDAO.getUserId(conn, newDebtorName) == -1) {
-                        userId = jdbcUserDAO.addNewUser(conn, newDebtorName);
-                    } else {
-                        userId = jdbcUserDAO.getUserId(conn, newDebtorName);
-                    }
+    // Set the payment status of one debtor, keeping `user_balance` in step within the caller's transaction
+    @Override
+    public int setPaymentStatus(Connection conn, int expenseId, int debtorId, String paymentStatus) throws SQLException {
+        BalanceDAO jdbcBalanceDAO = new JdbcBalanceDAO();
+        jdbcBalanceDAO.removeExpenseContribution(conn, expenseId);
 
-                    int creditorId = jdbcExpenseDAO.getCreditorId(expenseId);
-                    int splitCount = jdbcExpenseDAO.updateSplitCount(conn, expenseId, true);
+        int rowsUpdated;
+        String updateQuery = "UPDATE user_expense SET payment_status = ? WHERE expense_id = ? AND debtor_id = ?";
+        try (PreparedStatement ps = conn.prepareStatement(updateQuery)) {
+            ps.setString(1, paymentStatus);
+            ps.setInt(2, expenseId);
+            ps.setInt(3, debtorId);
+            rowsUpdated = ps.executeUpdate();
+        }
+        if (rowsUpdated > 0) {
+            LedgerJournal.record(conn, LedgerJournal.RecordType.PAYMENT_SET, expenseId, 0, debtorId,
+                    "y".equals(paymentStatus) ? 1 : 0);
+        }
 
-                    if (isPersonAndSplitCountValid(userId, splitCount)) {
-                        double newAmountOwed = jdbcExpenseDAO.calculateNewAmountOwed(conn, expenseId, splitCount);
+        jdbcBalanceDAO.addExpenseContribution(conn, expenseId);
+        return rowsUpdated;
+    }
 
-                        if (newAmountOwed != -1) {
-                            updateAmountOwed(conn, expenseId, newAmountOwed);
-                            addUserExpenseRecord(conn, expenseId, creditorId, userId, newAmountOwed);
-                            System.out.println("Debtor removed successfully.");
-                            break;
-                        }
-                    }
-                } else {
-                    System.out.println("Invalid name. Please try again.");
-                }
+    // TODO: Allow adding multiple debtors simultaneously
+    public void addDebtorName(int expenseId, Scanner scanner) {
+        String newDebtorName;
+
+        while (true) {
+            System.out.print("Please provide the debtor's name. Enter '0' to cancel. ");
+            newDebtorName = scanner.nextLine().trim();
+
+            if (newDebtorName.equals("0")) {
+                return;
+            } else if (InputValidator.isValidName(newDebtorName)) {
+                break;
+            } else {
+                System.out.println("Invalid name. Please try again.");
             }
+        }
+
+        String debtorName = newDebtorName;
+        try {
+            UnitOfWork.execute(conn -> {
+                addDebtor(conn, expenseId, debtorName);
+                return null;
+            });
+            System.out.println("Debtor added successfully.");
         } catch (SQLException e) {
             logger.error("An error occurred while adding the debtor.", e);
-        } finally {
-            ResourcesUtils.closeConnection(conn);
+            System.out.println("Failed to add the debtor, no changes were made.");
         }
     }
 
+    // Add a debtor to an expense and re-split the cost, all within the caller's transaction
+    @Override
+    public void addDebtor(Connection conn, int expenseId, String debtorName) throws SQLException {
+        UserDAO jdbcUserDAO = new JdbcUserDAO();
+        ExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
+        BalanceDAO jdbcBalanceDAO = new JdbcBalanceDAO();
+
+        // TODO: Handle duplicate names
+        int userId = jdbcUserDAO.resolveUserIds(conn, List.of(debtorName)).get(debtorName);
+        int creditorId = jdbcExpenseDAO.getCreditorId(conn, expenseId);
+
+        jdbcBalanceDAO.removeExpenseContribution(conn, expenseId);
+        int splitCount = jdbcExpenseDAO.updateSplitCount(conn, expenseId, true);
+
+        if (!isPersonAndSplitCountValid(creditorId, splitCount)) {
+            throw new SQLException("Expense " + expenseId + " not found");
+        }
+
+        addUserExpenseRecord(conn, expenseId, creditorId, userId, 0);
+        resplitAmountOwed(conn, expenseId);
+        LedgerJournal.record(conn, LedgerJournal.RecordType.DEBTOR_ADDED, expenseId, creditorId, userId, 0);
+        jdbcBalanceDAO.addExpenseContribution(conn, expenseId);
+    }
+
     public boolean isPersonAndSplitCountValid(int personId, int splitCount) {
         return (personId != -1 && splitCount != -1);
     }
 
+    @Override
     public HashMap<Integer, String> getDebtors(Connection conn, int expenseId) {
         HashMap<Integer, String> debtors = new HashMap<Integer, String>();
         PreparedStatement ps = null;
@@ -216,56 +327,77 @@ public class JdbcUserExpenseDAO implements UserExpenseDAO {
     // TODO: Allow removing multiple debtors simultaneously
     public void removeDebtorName(int expenseId, Scanner scanner) {
         Connection conn = null;
+        HashMap<Integer, String> debtors;
 
         try {
             conn = DatabaseConnectionManager.establishConnection();
             // Display the debtor IDs and debtor names associated with this expense ID
-            HashMap<Integer, String> debtors = getDebtors(conn, expenseId);
-            for (Map.Entry<Integer, String> entry : debtors.entrySet()) {
-                Integer key = entry.getKey();
-                String value = entry.getValue();
-                System.out.println("user_id: " + key + " // user_name: " + value);
-            }
-            while (true) {
-                System.out.print("Please enter the user id you would like to remove. Enter '0' to cancel. ");
-                String debtorIdString = scanner.nextLine().trim();
-
-                if (debtorIdString.equals("0")) {
-                    return;
-                }
-                try {
-                    // Check if the selection is a key within the hashmap
-                    int debtorIdInt = Integer.parseInt(debtorIdString);
-                    if (debtors.containsKey(debtorIdInt)) {
-                        JdbcExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
-                        // Decrement the split_count in `expenses` table based on expense_id
-                        int splitCount = jdbcExpenseDAO.updateSplitCount(conn, expenseId, false);
-                        // Calculate the new cost per debtor
-                        double newAmountOwed = jdbcExpenseDAO.calculateNewAmountOwed(conn, expenseId, splitCount);
-                        // Remove record in user_expense table where expense_id=? to new amount owed
-                        removeUserExpenseRecord(conn, expenseId, debtorIdInt);
-                        if (newAmountOwed != -1) {
-                            // Update amount_owed based on expense_id
-                            updateAmountOwed(conn, expenseId, newAmountOwed);
-                            System.out.println("Debtor removed successfully.");
-                            break;
-                        }
-                    } else {
-                        System.out.println("Invalid user ID. Please try again.");
-                    }
-                } catch (NumberFormatException e) {
-                    logger.error("Invalid input: not a valid user ID.", e);
-                    System.out.println("Invalid input. Please enter a valid user ID");
-                }
-            }
+            debtors = getDebtors(conn, expenseId);
         } catch (SQLException e) {
             logger.error("An error occurred while removing the debtor.", e);
+            return;
         } finally {
             ResourcesUtils.closeConnection(conn);
         }
+
+        for (Map.Entry<Integer, String> entry : debtors.entrySet()) {
+            Integer key = entry.getKey();
+            String value = entry.getValue();
+            System.out.println("user_id: " + key + " // user_name: " + value);
+        }
+        while (true) {
+            System.out.print("Please enter the user id you would like to remove. Enter '0' to cancel. ");
+            String debtorIdString = scanner.nextLine().trim();
+
+            if (debtorIdString.equals("0")) {
+                return;
+            }
+            try {
+                // Check if the selection is a key within the hashmap
+                int debtorIdInt = Integer.parseInt(debtorIdString);
+                if (debtors.containsKey(debtorIdInt)) {
+                    UnitOfWork.execute(txConn -> {
+                        removeDebtor(txConn, expenseId, debtorIdInt);
+                        return null;
+                    });
+                    System.out.println("Debtor removed successfully.");
+                    break;
+                } else {
+                    System.out.println("Invalid user ID. Please try again.");
+                }
+            } catch (NumberFormatException e) {
+                logger.error("Invalid input: not a valid user ID.", e);
+                System.out.println("Invalid input. Please enter a valid user ID");
+            } catch (SQLException e) {
+                logger.error("An error occurred while removing the debtor.", e);
+                System.out.println("Failed to remove the debtor, no changes were made.");
+                return;
+            }
+        }
     }
 
-    public void addUserExpenseRecord(Connection conn, int expenseId, int creditorId, int debtorId, double newAmountOwed) {
+    // Remove a debtor from an expense and re-split the cost, all within the caller's transaction
+    @Override
+    public void removeDebtor(Connection conn, int expenseId, int debtorId) throws SQLException {
+        ExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
+        BalanceDAO jdbcBalanceDAO = new JdbcBalanceDAO();
+
+        jdbcBalanceDAO.removeExpenseContribution(conn, expenseId);
+        // Decrement the split_count in `expenses` table based on expense_id
+        int splitCount = jdbcExpenseDAO.updateSplitCount(conn, expenseId, false);
+        if (splitCount == -1) {
+            throw new SQLException("Expense " + expenseId + " not found");
+        }
+        // Remove record in user_expense table where expense_id=? to new amount owed
+        removeUserExpenseRecord(conn, expenseId, debtorId);
+        // Calculate the new cost per debtor
+        resplitAmountOwed(conn, expenseId);
+        LedgerJournal.record(conn, LedgerJournal.RecordType.DEBTOR_REMOVED, expenseId, 0, debtorId, 0);
+        jdbcBalanceDAO.addExpenseContribution(conn, expenseId);
+    }
+
+    public void addUserExpenseRecord(Connection conn, int expenseId, int creditorId, int debtorId, long newAmountOwed)
+            throws SQLException {
         PreparedStatement ps = null;
 
         try {
@@ -274,18 +406,16 @@ public class JdbcUserExpenseDAO implements UserExpenseDAO {
             ps.setInt(1, expenseId);
             ps.setInt(2, creditorId);
             ps.setInt(3, debtorId);
-            ps.setDouble(4, newAmountOwed);
+            ps.setBigDecimal(4, Money.toBigDecimal(newAmountOwed));
 
             int rowsAffected = ps.executeUpdate();
             System.out.println(rowsAffected + " added successfully to the user_expense table.");
-        } catch (SQLException e) {
-            e.printStackTrace();
         } finally {
             ResourcesUtils.closePreparedStatement(ps);
         }
     }
 
-    public void removeUserExpenseRecord(Connection conn, int expenseId, int debtorId) {
+    public void removeUserExpenseRecord(Connection conn, int expenseId, int debtorId) throws SQLException {
         PreparedStatement ps = null;
 
         try {
@@ -296,28 +426,70 @@ public class JdbcUserExpenseDAO implements UserExpenseDAO {
 
             int rowsAffected = ps.executeUpdate();
             System.out.println(rowsAffected + " removed successfully to the `user_expense table");
-        } catch (SQLException e) {
-            e.printStackTrace();
+        } finally {
+            ResourcesUtils.closePreparedStatement(ps);
         }
-        ResourcesUtils.closePreparedStatement(ps);
     }
 
-    public void updateAmountOwed(Connection conn, int expenseId, double newAmountOwed) throws SQLException {
-        PreparedStatement ps = null;
+    /**
+     * Splits {@code totalCents} between the first {@code count} debtors, with the leftover cents going to the lowest
+     * debtor ids as in {@link #resplitAmountOwed}, whatever order the debtors were entered in. A later re-split
+     * therefore only moves cents between the debtors whose ranks change.
+     *
+     * @throws SQLException if a debtor appears twice, e.g. two names that the database treats as the same user
+     */
+    static void splitInDebtorIdOrder(long totalCents, int[] debtorIds, int count, long[] shares) throws SQLException {
+        long[] rankedShares = Money.split(totalCents, count);
+        int[] sortedIds = Arrays.copyOf(debtorIds, count);
+        Arrays.sort(sortedIds);
+        for (int i = 1; i < count; i++) {
+            // Both would get the same share, and the shares would no longer add up to the total cost
+            if (sortedIds[i] == sortedIds[i - 1]) {
+                throw new SQLException("User " + sortedIds[i] + " is listed more than once as a debtor");
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            // Debtor ids are unique within an expense, so the position in the sorted ids is the debtor's rank
+            shares[i] = rankedShares[Arrays.binarySearch(sortedIds, debtorIds[i])];
+        }
+    }
 
-        try {
-            String query = "UPDATE user_expense SET amount_owed = ? WHERE expense_id = ?";
-            ps = conn.prepareStatement(query);
-            ps.setDouble(1, newAmountOwed);
-            ps.setInt(2, expenseId);
+    /**
+     * Splits the expense's total cost across its current debtors again, so that the shares add up to `total_cost`
+     * exactly. Debtors are ordered by id, so the cents left over by the split always go to the same people.
+     */
+    @Override
+    public void resplitAmountOwed(Connection conn, int expenseId) throws SQLException {
+        long totalCost = new JdbcExpenseDAO().getTotalCost(conn, expenseId);
+        if (totalCost == -1) {
+            throw new SQLException("Expense " + expenseId + " not found");
+        }
 
-            int rowsAffected = ps.executeUpdate();
-            System.out.println("Update amount_owed for each person to " + newAmountOwed);
-            System.out.println(rowsAffected + " row(s) updated successfully in the `user_expense` table");
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            ResourcesUtils.closePreparedStatement(ps);
+        List<Integer> debtorIds = new ArrayList<>();
+        String selectQuery = "SELECT debtor_id FROM user_expense WHERE expense_id = ? ORDER BY debtor_id";
+        try (PreparedStatement ps = conn.prepareStatement(selectQuery)) {
+            ps.setInt(1, expenseId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    debtorIds.add(rs.getInt(1));
+                }
+            }
+        }
+        if (debtorIds.isEmpty()) {
+            return;
+        }
+
+        long[] shares = Money.split(totalCost, debtorIds.size());
+        String updateQuery = "UPDATE user_expense SET amount_owed = ? WHERE expense_id = ? AND debtor_id = ?";
+        try (PreparedStatement ps = conn.prepareStatement(updateQuery)) {
+            for (int i = 0; i < debtorIds.size(); i++) {
+                ps.setBigDecimal(1, Money.toBigDecimal(shares[i]));
+                ps.setInt(2, expenseId);
+                ps.setInt(3, debtorIds.get(i));
+                ps.addBatch();
+            }
+            ps.executeBatch();
         }
+        System.out.println("Re-split " + Money.format(totalCost) + " across " + debtorIds.size() + " debtor(s)");
     }
-}
\ No newline at end of file
+}
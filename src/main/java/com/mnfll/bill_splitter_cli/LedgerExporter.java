@@ -0,0 +1,405 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Dumps the whole `combined_user_expense` view to a file, as CSV or as a compact binary format, optionally gzipped.
+ * <p>
+ * The view is read through a forward-only cursor in one read-only transaction, so the dump is a consistent snapshot.
+ * Each row is encoded straight into a reusable direct {@link ByteBuffer}, with numbers, dates and UTF-8 text written
+ * byte by byte rather than through intermediate strings. When the buffer fills, it is written to a
+ * {@link FileChannel}, or first passed through a {@link Deflater} into a second direct buffer when gzipping. Memory
+ * use is the two buffers whatever the number of rows.
+ * <p>
+ * The binary format is the magic {@code BSLX} and a version byte, then one record per row, each prefixed with its
+ * length as a big-endian int:
+ * <pre>
+ * int expense_id, int expense_date (days since 1970-01-01), str establishment_name, str expense_name,
+ * int creditor_id, str creditor_name, int debtor_id, str debtor_name, long amount_owed (cents), byte payment_status
+ * </pre>
+ * where {@code str} is a varint byte length followed by UTF-8. The file ends with a length of -1 and the row count as a
+ * long.
+ */
+public class LedgerExporter {
+    private static final String EXPORT_QUERY = "SELECT expense_id, expense_date, establishment_name, expense_name, " +
+            "creditor_id, creditor_name, debtor_id, debtor_name, amount_owed, payment_status " +
+            "FROM combined_user_expense " +
+            "ORDER BY expense_id, debtor_id";
+    private static final byte[] CSV_HEADER = ("expense_id,expense_date,establishment_name,expense_name,creditor_id," +
+            "creditor_name,debtor_id,debtor_name,amount_owed,payment_status\n").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BINARY_MAGIC = {'B', 'S', 'L', 'X'};
+    private static final byte BINARY_VERSION = 1;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // The text columns are VARCHAR(255), so even fully quoted multi-byte text keeps a row under MAX_ROW_BYTES.
+    // Leaving that much room before each row means a row never straddles a drain and binary records can have their
+    // length filled in afterwards.
+    private static final int MAX_TEXT_LENGTH = 255;
+    private static final int MAX_ROW_BYTES = 8 * 1024;
+    private static final byte[] NO_INPUT = new byte[0];
+
+    public enum Format {
+        CSV,
+        BINARY;
+
+        public static Format parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown export format '" + name + "', expected csv or binary");
+            }
+        }
+    }
+
+    public record ExportResult(long rows, long encodedBytes, long fileBytes, long elapsedNanos) {
+        public double rowsPerSecond() {
+            return elapsedNanos > 0 ? rows * 1_000_000_000.0 / elapsedNanos : 0;
+        }
+
+        public double megabytesPerSecond() {
+            return elapsedNanos > 0 ? encodedBytes * 1000.0 / elapsedNanos : 0;
+        }
+    }
+
+    private final Format format;
+    private final boolean gzip;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+
+    private FileChannel channel;
+    private Deflater deflater;
+    private ByteBuffer compressed;
+    private final CRC32 crc = new CRC32();
+    private long encodedBytes;
+    private long fileBytes;
+
+    public LedgerExporter(Format format, boolean gzip) {
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    public ExportResult export(Path file) throws IOException, SQLException {
+        long start = System.nanoTime();
+        encodedBytes = 0;
+        fileBytes = 0;
+        crc.reset();
+        buffer.clear();
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel = fileChannel;
+            if (gzip) {
+                startGzip();
+            }
+            writeHeader();
+
+            long rows;
+            try {
+                rows = UnitOfWork.executeReadOnly(this::writeRows);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            writeTrailer(rows);
+            drain();
+            if (gzip) {
+                finishGzip();
+            }
+            fileChannel.force(false);
+            return new ExportResult(rows, encodedBytes, fileBytes, System.nanoTime() - start);
+        } finally {
+            channel = null;
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+
+    private long writeRows(Connection conn) throws SQLException {
+        long rows = 0;
+
+        try (PreparedStatement ps = conn.prepareStatement(EXPORT_QUERY, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            ps.setFetchSize(DatabaseConnectionManager.getFetchSize());
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (buffer.remaining() < MAX_ROW_BYTES) {
+                        drain();
+                    }
+                    if (format == Format.CSV) {
+                        writeCsvRow(rs);
+                    } else {
+                        writeBinaryRow(rs);
+                    }
+                    rows++;
+                }
+            }
+        } catch (IOException e) {
+            // UnitOfWork only passes SQLExceptions through, export() unwraps this again
+            throw new UncheckedIOException(e);
+        }
+        return rows;
+    }
+
+    private void writeHeader() {
+        if (format == Format.CSV) {
+            buffer.put(CSV_HEADER);
+        } else {
+            buffer.put(BINARY_MAGIC).put(BINARY_VERSION);
+        }
+    }
+
+    private void writeTrailer(long rows) throws IOException {
+        if (format == Format.BINARY) {
+            if (buffer.remaining() < 12) {
+                drain();
+            }
+            buffer.putInt(-1).putLong(rows);
+        }
+    }
+
+    private void writeCsvRow(ResultSet rs) throws SQLException, IOException {
+        putDecimal(rs.getInt(1));
+        buffer.put((byte) ',');
+        putDate(rs.getDate(2).toLocalDate());
+        buffer.put((byte) ',');
+        putCsvText(rs.getString(3));
+        buffer.put((byte) ',');
+        putCsvText(rs.getString(4));
+        buffer.put((byte) ',');
+        putDecimal(rs.getInt(5));
+        buffer.put((byte) ',');
+        putCsvText(rs.getString(6));
+        buffer.put((byte) ',');
+        putDecimal(rs.getInt(7));
+        buffer.put((byte) ',');
+        putCsvText(rs.getString(8));
+        buffer.put((byte) ',');
+        putMoney(Money.fromBigDecimal(rs.getBigDecimal(9)));
+        buffer.put((byte) ',');
+        putCsvText(rs.getString(10));
+        buffer.put((byte) '\n');
+    }
+
+    private void writeBinaryRow(ResultSet rs) throws SQLException, IOException {
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+
+        buffer.putInt(rs.getInt(1));
+        buffer.putInt((int) rs.getDate(2).toLocalDate().toEpochDay());
+        putBinaryText(rs.getString(3));
+        putBinaryText(rs.getString(4));
+        buffer.putInt(rs.getInt(5));
+        putBinaryText(rs.getString(6));
+        buffer.putInt(rs.getInt(7));
+        putBinaryText(rs.getString(8));
+        buffer.putLong(Money.fromBigDecimal(rs.getBigDecimal(9)));
+        String paymentStatus = rs.getString(10);
+        buffer.put(paymentStatus == null || paymentStatus.isEmpty() ? (byte) 0 : (byte) paymentStatus.charAt(0));
+
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+    }
+
+    private void putDecimal(long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    private void putTwoDigits(int value) {
+        buffer.put((byte) ('0' + value / 10)).put((byte) ('0' + value % 10));
+    }
+
+    // ISO yyyy-MM-dd
+    private void putDate(LocalDate date) {
+        putDecimal(date.getYear());
+        buffer.put((byte) '-');
+        putTwoDigits(date.getMonthValue());
+        buffer.put((byte) '-');
+        putTwoDigits(date.getDayOfMonth());
+    }
+
+    private void putMoney(long cents) {
+        if (cents < 0) {
+            buffer.put((byte) '-');
+            cents = -cents;
+        }
+        putDecimal(cents / 100);
+        buffer.put((byte) '.');
+        putTwoDigits((int) (cents % 100));
+    }
+
+    private void putCsvText(String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        checkLength(text);
+        boolean needsQuotes = false;
+        for (int i = 0; i < text.length() && !needsQuotes; i++) {
+            char c = text.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (needsQuotes) {
+            buffer.put((byte) '"');
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                buffer.put((byte) '"');
+            }
+            i = putUtf8(text, i);
+        }
+        if (needsQuotes) {
+            buffer.put((byte) '"');
+        }
+    }
+
+    private void putBinaryText(String text) throws IOException {
+        if (text == null) {
+            text = "";
+        }
+        checkLength(text);
+        // The varint length is at most two bytes here, so reserve them and move the text back if it only needs one
+        int lengthPosition = buffer.position();
+        buffer.position(lengthPosition + 2);
+        for (int i = 0; i < text.length(); i++) {
+            i = putUtf8(text, i);
+        }
+        int byteLength = buffer.position() - lengthPosition - 2;
+
+        if (byteLength < 0x80) {
+            buffer.put(lengthPosition, (byte) byteLength);
+            for (int i = 0; i < byteLength; i++) {
+                buffer.put(lengthPosition + 1 + i, buffer.get(lengthPosition + 2 + i));
+            }
+            buffer.position(lengthPosition + 1 + byteLength);
+        } else {
+            buffer.put(lengthPosition, (byte) (0x80 | (byteLength & 0x7F)));
+            buffer.put(lengthPosition + 1, (byte) (byteLength >>> 7));
+        }
+    }
+
+    private static void checkLength(String text) throws IOException {
+        if (text.length() > MAX_TEXT_LENGTH) {
+            throw new IOException("Value of " + text.length() + " characters is too long to export");
+        }
+    }
+
+    /**
+     * Encodes the character at {@code i} as UTF-8.
+     *
+     * @return the index of the last character used, which is {@code i + 1} for a surrogate pair
+     */
+    private int putUtf8(String text, int i) {
+        char c = text.charAt(i);
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, text.charAt(i + 1));
+            buffer.put((byte) (0xF0 | (codePoint >> 18)))
+                    .put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                    .put((byte) (0x80 | ((codePoint >> 6) & 0x3F)))
+                    .put((byte) (0x80 | (codePoint & 0x3F)));
+            return i + 1;
+        } else if (Character.isSurrogate(c)) {
+            buffer.put((byte) '?');
+        } else {
+            buffer.put((byte) (0xE0 | (c >> 12)))
+                    .put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                    .put((byte) (0x80 | (c & 0x3F)));
+        }
+        return i;
+    }
+
+    // Empties the buffer into the file, through the deflater when gzipping
+    private void drain() throws IOException {
+        buffer.flip();
+        encodedBytes += buffer.remaining();
+
+        if (gzip) {
+            int start = buffer.position();
+            crc.update(buffer);
+            buffer.position(start);
+            deflater.setInput(buffer);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+            // The deflater keeps reading from whatever buffer it was given, so detach it before the buffer is reused
+            deflater.setInput(NO_INPUT);
+        } else {
+            writeFully(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void startGzip() throws IOException {
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        compressed = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        // Member header: magic, deflate, no flags, no timestamp, no extra flags, unknown OS
+        compressed.put(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+    }
+
+    private void deflate() throws IOException {
+        deflater.deflate(compressed);
+        if (!compressed.hasRemaining()) {
+            compressed.flip();
+            writeFully(compressed);
+            compressed.clear();
+        }
+    }
+
+    private void finishGzip() throws IOException {
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        if (compressed.remaining() < 8) {
+            compressed.flip();
+            writeFully(compressed);
+            compressed.clear();
+        }
+        compressed.putInt((int) crc.getValue());
+        compressed.putInt((int) encodedBytes);
+        compressed.flip();
+        writeFully(compressed);
+        compressed.clear();
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            fileBytes += channel.write(source);
+        }
+    }
+
+    public static void printSummary(ExportResult result, Path file) {
+        System.out.printf("Exported %d row(s) to %s in %.2f s: %d byte(s) encoded, %d byte(s) written "
+                        + "(%.0f rows/s, %.1f MB/s)%n", result.rows(), file, result.elapsedNanos() / 1_000_000_000.0,
+                result.encodedBytes(), result.fileBytes(), result.rowsPerSecond(), result.megabytesPerSecond());
+    }
+}
@@ -0,0 +1,757 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only journal of every change made to the ledger, enabled with {@code journal.enabled}.
+ * <p>
+ * The DAOs {@link #record} each mutation (an expense added or deleted, a debtor added or removed, a cost or payment
+ * change) together with the balance changes it caused. Once the transaction commits, its records are appended to the
+ * journal as fixed-size {@value #RECORD_SIZE}-byte records, each with a sequence number and a CRC. The journal is a
+ * series of memory-mapped segment files of {@code journal.segmentBytes} each, so an append is a copy into mapped
+ * memory and the disk only sees sequential writes. A flusher thread forces the mapped segment to disk, waiting
+ * {@code journal.groupCommitMs} first so that one fsync covers every transaction that committed in the meantime.
+ * <p>
+ * The journal keeps every (creditor, debtor) balance in memory. On start-up they are loaded from the latest checkpoint
+ * and brought up to date by replaying the records after it, stopping at the first torn or corrupt record. A
+ * checkpoint is written every {@code journal.checkpointRecords} records and on shutdown, after which the segments it
+ * covers are moved to the {@code archive} directory, where they are kept for {@code journal.archive.retentionDays}
+ * days, or for good when that is 0. When the journal is first enabled its balances are seeded from `user_balance`.
+ * Only one process can have the journal open, it is locked through the {@code journal.lock} file.
+ * <p>
+ * The journal is an audit trail, not part of the ledger's durability or a faster write path: the database stays the
+ * source of truth and every change is still written to it first, so enabling the journal makes writes slightly slower.
+ * Records are appended after the database commit and transactions don't wait for them to reach the disk, so a crash
+ * can lose the records of the last few transactions, which {@code --journal verify} detects and repairs. Nothing the
+ * journal does can fail a database transaction.
+ */
+public class LedgerJournal {
+    private static final Logger logger = LogManager.getLogger(LedgerJournal.class);
+    private static final String ENABLED_KEY = "journal.enabled";
+    private static final String DIRECTORY_KEY = "journal.directory";
+    private static final String SEGMENT_BYTES_KEY = "journal.segmentBytes";
+    private static final String GROUP_COMMIT_KEY = "journal.groupCommitMs";
+    private static final String CHECKPOINT_RECORDS_KEY = "journal.checkpointRecords";
+    private static final String RETENTION_DAYS_KEY = "journal.archive.retentionDays";
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint.dat";
+    private static final String LOCK_FILE = "journal.lock";
+    private static final String ARCHIVE_DIRECTORY = "archive";
+    private static final byte[] CHECKPOINT_MAGIC = {'B', 'S', 'L', 'C'};
+    private static final byte CHECKPOINT_VERSION = 1;
+
+    // Record layout: sequence (long), timestamp in ms (long), type (byte) and 3 bytes padding, expense id (int),
+    // creditor id (int), debtor id (int), amount in cents (long), CRC32 of the preceding 40 bytes (int), 4 bytes padding
+    static final int RECORD_SIZE = 48;
+    private static final int CRC_OFFSET = 40;
+    private static final int MIN_SEGMENT_RECORDS = 1024;
+
+    public enum RecordType {
+        EXPENSE_ADDED(1),
+        DEBTOR_ADDED(2),
+        DEBTOR_REMOVED(3),
+        COST_CHANGED(4),
+        PAYMENT_SET(5),
+        EXPENSE_DELETED(6),
+        // The amount a debtor owes a creditor changed by amountCents
+        BALANCE_CHANGED(7),
+        // Every balance was recomputed, the BALANCE_CHANGED records that follow hold the new balances
+        BALANCES_REBUILT(8);
+
+        private final byte code;
+
+        RecordType(int code) {
+            this.code = (byte) code;
+        }
+
+        static RecordType fromCode(byte code) {
+            for (RecordType type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * One journal record. Fields a record type doesn't use are 0.
+     */
+    public record Entry(RecordType type, int expenseId, int creditorId, int debtorId, long amountCents) {
+    }
+
+    public record ReplayResult(long checkpointSequence, long recordsReplayed, long lastSequence, int segments,
+                               long elapsedNanos) {
+    }
+
+    private static volatile LedgerJournal instance;
+    // Set once the journal has failed to open, so writers stop trying until the application restarts
+    private static volatile boolean unavailable;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long groupCommitMillis;
+    private final long checkpointRecords;
+    private final int retentionDays;
+    private final Object checkpointLock = new Object();
+    private FileChannel lockChannel;
+
+    // Guarded by this
+    private final Map<Long, Long> balances = new HashMap<>();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int position;
+    private long appendedSequence;
+    private long durableSequence;
+    private long checkpointSequence;
+    private boolean closed;
+
+    private Thread flusher;
+    private ReplayResult replayResult;
+
+    private LedgerJournal(Path directory, int segmentBytes, long groupCommitMillis, long checkpointRecords,
+                          int retentionDays) {
+        this.directory = directory;
+        // Whole records only, so a record never spans two segments
+        this.segmentBytes = Math.max(segmentBytes / RECORD_SIZE, MIN_SEGMENT_RECORDS) * RECORD_SIZE;
+        this.groupCommitMillis = Math.max(0, groupCommitMillis);
+        this.checkpointRecords = checkpointRecords;
+        this.retentionDays = retentionDays;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(DatabaseConnectionManager.loadConfig().getProperty(ENABLED_KEY, "false").trim());
+    }
+
+    /**
+     * Returns the journal, opening it and replaying it into memory the first time this is called.
+     */
+    public static LedgerJournal getInstance() {
+        LedgerJournal current = instance;
+        if (current == null) {
+            synchronized (LedgerJournal.class) {
+                current = instance;
+                if (current == null) {
+                    current = open(DatabaseConnectionManager.loadConfig());
+                    instance = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static LedgerJournal open(Properties config) {
+        Path directory = Path.of(config.getProperty(DIRECTORY_KEY, "./data/journal").trim());
+        LedgerJournal journal;
+        try {
+            journal = open(directory,
+                    DatabaseConnectionManager.getIntProperty(config, SEGMENT_BYTES_KEY, 64 * 1024 * 1024),
+                    DatabaseConnectionManager.getIntProperty(config, GROUP_COMMIT_KEY, 2),
+                    DatabaseConnectionManager.getIntProperty(config, CHECKPOINT_RECORDS_KEY, 1_000_000),
+                    DatabaseConnectionManager.getIntProperty(config, RETENTION_DAYS_KEY, 0));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open the ledger journal in " + directory + ": " + e.getMessage(),
+                    e);
+        }
+
+        // Nothing was ever journaled, including when a crash left an empty segment before the journal was seeded
+        if (journal.getReplayResult().lastSequence() == 0) {
+            try {
+                // Nothing to replay, so start from what the database holds now
+                journal.append(UnitOfWork.executeReadOnly(LedgerJournal::readBalanceEntries));
+                journal.awaitDurable();
+            } catch (SQLException e) {
+                journal.close();
+                throw new IllegalStateException("Failed to seed the ledger journal: " + e.getMessage(), e);
+            }
+            logger.info("Ledger journal created in {}, seeded with {} balance(s)", directory,
+                    journal.getBalanceCount());
+        }
+        return journal;
+    }
+
+    /**
+     * Locks the journal in {@code directory}, creating it if needed, and replays it into memory.
+     *
+     * @throws IOException if another process has the journal open, or it can't be replayed
+     */
+    static LedgerJournal open(Path directory, int segmentBytes, long groupCommitMillis, long checkpointRecords,
+                              int retentionDays) throws IOException {
+        LedgerJournal journal = new LedgerJournal(directory, segmentBytes, groupCommitMillis, checkpointRecords,
+                retentionDays);
+        Files.createDirectories(directory);
+        journal.lock();
+        try {
+            journal.recover();
+        } catch (IOException | RuntimeException e) {
+            journal.unlock();
+            throw e;
+        }
+        journal.startFlusher();
+        return journal;
+    }
+
+    // Two processes appending to the same segments would overwrite each other's records
+    private void lock() throws IOException {
+        Path lockFile = directory.resolve(LOCK_FILE);
+        FileChannel lockFileChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = lockFileChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by this process
+            fileLock = null;
+        } catch (IOException e) {
+            lockFileChannel.close();
+            throw e;
+        }
+        if (fileLock == null) {
+            lockFileChannel.close();
+            throw new IOException("The ledger journal in " + directory + " is in use, " + lockFile + " is locked");
+        }
+        lockChannel = lockFileChannel;
+    }
+
+    // Closing the channel releases the lock
+    private void unlock() {
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            logger.warn("Failed to release the ledger journal lock: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Records one mutation made on {@code conn}, see {@link #record(Connection, List)}.
+     */
+    public static void record(Connection conn, RecordType type, int expenseId, int creditorId, int debtorId,
+                              long amountCents) {
+        if (isEnabled()) {
+            record(conn, List.of(new Entry(type, expenseId, creditorId, debtorId, amountCents)));
+        }
+    }
+
+    /**
+     * Journals {@code entries} once the unit of work that owns {@code conn} commits. The unit of work doesn't wait for
+     * them to reach the disk. Does nothing when the journal is disabled, and a journal that can't be opened or
+     * appended to is logged rather than failing the transaction: {@code --journal verify} resynchronises it.
+     */
+    public static void record(Connection conn, List<Entry> entries) {
+        if (entries.isEmpty() || !isEnabled() || unavailable) {
+            return;
+        }
+        LedgerJournal journal;
+        try {
+            // Opened now rather than after the commit, so a new journal is seeded without this transaction's changes
+            journal = getInstance();
+        } catch (RuntimeException e) {
+            unavailable = true;
+            logger.error("Ledger journal unavailable, changes are not journaled until restart: {}", e.getMessage(), e);
+            return;
+        }
+        UnitOfWork.afterCommit(conn, () -> journal.append(entries));
+    }
+
+    /**
+     * Reads every balance in `user_balance` as the records of a rebuild.
+     */
+    public static List<Entry> readBalanceEntries(Connection conn) throws SQLException {
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry(RecordType.BALANCES_REBUILT, 0, 0, 0, 0));
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT creditor_id, debtor_id, amount_owed FROM user_balance WHERE amount_owed <> 0")) {
+            ps.setFetchSize(DatabaseConnectionManager.getFetchSize());
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    entries.add(new Entry(RecordType.BALANCE_CHANGED, 0, rs.getInt(1), rs.getInt(2),
+                            Money.fromBigDecimal(rs.getBigDecimal(3))));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Appends {@code entries} as consecutive records and applies them to the in-memory balances. The records are in
+     * the mapped segment when this returns, {@link #awaitDurable()} waits until they are on disk.
+     *
+     * @return the sequence number of the last record
+     */
+    public synchronized long append(List<Entry> entries) {
+        if (closed) {
+            throw new IllegalStateException("The ledger journal is closed");
+        }
+        long timestamp = System.currentTimeMillis();
+        try {
+            for (Entry entry : entries) {
+                if (position + RECORD_SIZE > segment.capacity()) {
+                    rotate();
+                }
+                encode(appendedSequence + 1, timestamp, entry);
+                segment.put(position, record.array());
+                position += RECORD_SIZE;
+                appendedSequence++;
+                apply(entry);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to the ledger journal", e);
+        }
+        notifyAll();
+        return appendedSequence;
+    }
+
+    /**
+     * Waits until every record appended so far has been forced to disk.
+     */
+    public synchronized void awaitDurable() {
+        long target = appendedSequence;
+        boolean interrupted = false;
+        while (durableSequence < target && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized long getBalance(int creditorId, int debtorId) {
+        return balances.getOrDefault(pairKey(creditorId, debtorId), 0L);
+    }
+
+    public synchronized int getBalanceCount() {
+        return balances.size();
+    }
+
+    public synchronized ReplayResult getReplayResult() {
+        return replayResult;
+    }
+
+    /**
+     * Compares the in-memory balances with `user_balance`.
+     *
+     * @return the number of pairs whose balances differ
+     */
+    public int countMismatches(Connection conn) throws SQLException {
+        Map<Long, Long> expected;
+        synchronized (this) {
+            expected = new HashMap<>(balances);
+        }
+        int mismatches = 0;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                     "SELECT creditor_id, debtor_id, amount_owed FROM user_balance WHERE amount_owed <> 0")) {
+            while (rs.next()) {
+                Long journalCents = expected.remove(pairKey(rs.getInt(1), rs.getInt(2)));
+                if (journalCents == null || journalCents != Money.fromBigDecimal(rs.getBigDecimal(3))) {
+                    mismatches++;
+                }
+            }
+        }
+        return mismatches + expected.size();
+    }
+
+    /**
+     * Writes the in-memory balances to the checkpoint file, then archives the segments it makes redundant.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long sequence;
+            Map<Long, Long> snapshot;
+            synchronized (this) {
+                // The records the checkpoint covers must be on disk before it is, or a crash could leave a checkpoint
+                // ahead of the end of the segments. Full segments were forced when they were rotated.
+                segment.force();
+                durableSequence = appendedSequence;
+                notifyAll();
+                sequence = appendedSequence;
+                snapshot = new HashMap<>(balances);
+            }
+
+            Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+            try (FileChannel fileChannel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                CheckedOutputStream checked = new CheckedOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(fileChannel)), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                out.write(CHECKPOINT_MAGIC);
+                out.writeByte(CHECKPOINT_VERSION);
+                out.writeLong(sequence);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<Long, Long> balance : snapshot.entrySet()) {
+                    out.writeLong(balance.getKey());
+                    out.writeLong(balance.getValue());
+                }
+                out.writeInt((int) checked.getChecksum().getValue());
+                out.flush();
+                fileChannel.force(true);
+            }
+            // Replaces the previous checkpoint in one step, a crash leaves either the old one or the new one
+            Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                checkpointSequence = Math.max(checkpointSequence, sequence);
+            }
+            logger.info("Ledger journal checkpoint written at record {} with {} balance(s)", sequence, snapshot.size());
+            archiveSegmentsBefore(sequence);
+        }
+    }
+
+    /**
+     * Stops the flusher, forces the journal to disk, writes a checkpoint and releases the lock.
+     */
+    public static void shutdown() {
+        LedgerJournal current = instance;
+        if (current != null) {
+            current.close();
+            instance = null;
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+            synchronized (this) {
+                segment.force();
+                durableSequence = appendedSequence;
+            }
+            checkpoint();
+            synchronized (this) {
+                channel.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Failed to close the ledger journal: {}", e.getMessage(), e);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Loads the checkpoint and replays the segments after it, leaving the last segment open for appending.
+     */
+    private synchronized void recover() throws IOException {
+        long start = System.nanoTime();
+        readCheckpoint();
+        List<Path> segments = listSegments();
+
+        long lastSequence = checkpointSequence;
+        long replayed = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            long firstSequence = firstSequenceOf(path);
+            if (firstSequence > lastSequence + 1) {
+                throw new IOException("Journal segment " + path.getFileName() + " starts at record " + firstSequence
+                        + ", records " + (lastSequence + 1) + " to " + (firstSequence - 1) + " are missing");
+            }
+
+            boolean isLast = i == segments.size() - 1;
+            FileChannel segmentChannel = FileChannel.open(path, isLast
+                    ? new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE}
+                    : new StandardOpenOption[]{StandardOpenOption.READ});
+            MappedByteBuffer buffer = segmentChannel.map(isLast ? FileChannel.MapMode.READ_WRITE
+                    : FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+
+            int offset = 0;
+            long sequence = firstSequence;
+            while (offset + RECORD_SIZE <= buffer.capacity()) {
+                buffer.get(offset, record.array());
+                Entry entry = decode(sequence);
+                if (entry == null) {
+                    break;
+                }
+                if (sequence > checkpointSequence) {
+                    apply(entry);
+                    replayed++;
+                }
+                sequence++;
+                offset += RECORD_SIZE;
+            }
+            lastSequence = Math.max(lastSequence, sequence - 1);
+
+            if (isLast && sequence > checkpointSequence) {
+                channel = segmentChannel;
+                segment = buffer;
+                position = offset;
+                clearTornTail(buffer, offset);
+            } else {
+                // A segment that ends before the checkpoint lost records the checkpoint covers. Appending to it would
+                // put the next record where replay expects an older one, so a new segment is started instead.
+                segmentChannel.close();
+            }
+        }
+
+        appendedSequence = lastSequence;
+        durableSequence = lastSequence;
+        if (segment == null) {
+            openSegment(lastSequence + 1);
+        }
+        replayResult = new ReplayResult(checkpointSequence, replayed, lastSequence, segments.size(),
+                System.nanoTime() - start);
+        logger.info("Ledger journal replayed {} record(s) after checkpoint {} from {} segment(s) in {} ms", replayed,
+                checkpointSequence, segments.size(), replayResult.elapsedNanos() / 1_000_000);
+    }
+
+    // A crash part way through an append can leave whole records after a torn one, which must not be replayed after
+    // new records are appended in front of them
+    private void clearTornTail(MappedByteBuffer buffer, int offset) {
+        byte[] empty = new byte[RECORD_SIZE];
+        for (; offset + RECORD_SIZE <= buffer.capacity(); offset += RECORD_SIZE) {
+            buffer.get(offset, record.array());
+            if (Arrays.equals(record.array(), empty)) {
+                return;
+            }
+            buffer.put(offset, empty);
+        }
+    }
+
+    private void readCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)),
+                new CRC32());
+             DataInputStream in = new DataInputStream(checked)) {
+            byte[] magic = new byte[CHECKPOINT_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, CHECKPOINT_MAGIC) || in.readUnsignedByte() != CHECKPOINT_VERSION) {
+                throw new IOException(file + " is not a ledger journal checkpoint");
+            }
+            long sequence = in.readLong();
+            int count = in.readInt();
+            Map<Long, Long> loaded = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                loaded.put(in.readLong(), in.readLong());
+            }
+            int expectedCrc = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expectedCrc) {
+                throw new IOException(file + " is corrupt, its checksum doesn't match");
+            }
+            checkpointSequence = sequence;
+            balances.putAll(loaded);
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        return listSegments(directory);
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            // Fixed-width sequence numbers in the names, so name order is sequence order
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+    }
+
+    private static long firstSequenceOf(Path segmentPath) {
+        String name = segmentPath.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        position = 0;
+    }
+
+    // Called with the lock held. The full segment is forced first, so the flusher only ever forces the current one.
+    private void rotate() throws IOException {
+        segment.force();
+        durableSequence = appendedSequence;
+        channel.close();
+        openSegment(appendedSequence + 1);
+        logger.debug("Ledger journal rotated to a new segment at record {}", appendedSequence + 1);
+    }
+
+    // The segments are the audit trail, so they are kept rather than deleted
+    private void archiveSegmentsBefore(long sequence) {
+        try {
+            Path archive = directory.resolve(ARCHIVE_DIRECTORY);
+            List<Path> segments = listSegments();
+            // A segment is covered when the next one starts at or before the record after the checkpoint. The last
+            // segment is the one being appended to and is always kept.
+            for (int i = 0; i + 1 < segments.size(); i++) {
+                if (firstSequenceOf(segments.get(i + 1)) > sequence + 1) {
+                    break;
+                }
+                Files.createDirectories(archive);
+                Files.move(segments.get(i), archive.resolve(segments.get(i).getFileName()),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            if (retentionDays > 0 && Files.isDirectory(archive)) {
+                FileTime cutoff = FileTime.from(Instant.now().minus(Duration.ofDays(retentionDays)));
+                for (Path archived : listSegments(archive)) {
+                    if (Files.getLastModifiedTime(archived).compareTo(cutoff) < 0) {
+                        Files.deleteIfExists(archived);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to archive old ledger journal segments: {}", e.getMessage());
+        }
+    }
+
+    private void startFlusher() {
+        flusher = new Thread(this::runFlusher, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void runFlusher() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (durableSequence == appendedSequence && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+                // Let more transactions commit so the fsync below covers them all
+                if (groupCommitMillis > 0) {
+                    Thread.sleep(groupCommitMillis);
+                }
+
+                long target;
+                MappedByteBuffer buffer;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    target = appendedSequence;
+                    buffer = segment;
+                }
+                buffer.force();
+
+                boolean checkpointDue;
+                synchronized (this) {
+                    durableSequence = Math.max(durableSequence, target);
+                    notifyAll();
+                    checkpointDue = checkpointRecords > 0 && durableSequence - checkpointSequence >= checkpointRecords;
+                }
+                if (checkpointDue) {
+                    checkpoint();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Ledger journal flush failed, journaling stops: {}", e.getMessage(), e);
+            synchronized (this) {
+                // Don't leave writers waiting for a flush that will never come
+                closed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void encode(long sequence, long timestamp, Entry entry) {
+        record.clear();
+        record.putLong(0, sequence);
+        record.putLong(8, timestamp);
+        record.put(16, entry.type().code);
+        record.put(17, (byte) 0).put(18, (byte) 0).put(19, (byte) 0);
+        record.putInt(20, entry.expenseId());
+        record.putInt(24, entry.creditorId());
+        record.putInt(28, entry.debtorId());
+        record.putLong(32, entry.amountCents());
+        crc.reset();
+        crc.update(record.array(), 0, CRC_OFFSET);
+        record.putInt(CRC_OFFSET, (int) crc.getValue());
+        record.putInt(CRC_OFFSET + 4, 0);
+    }
+
+    // Returns null for the end of the journal: an empty slot, a torn or corrupt record, or one out of sequence
+    private Entry decode(long expectedSequence) {
+        if (record.getLong(0) != expectedSequence) {
+            return null;
+        }
+        crc.reset();
+        crc.update(record.array(), 0, CRC_OFFSET);
+        RecordType type = RecordType.fromCode(record.get(16));
+        if (record.getInt(CRC_OFFSET) != (int) crc.getValue() || type == null) {
+            return null;
+        }
+        return new Entry(type, record.getInt(20), record.getInt(24), record.getInt(28), record.getLong(32));
+    }
+
+    private void apply(Entry entry) {
+        switch (entry.type()) {
+            case BALANCE_CHANGED -> {
+                long key = pairKey(entry.creditorId(), entry.debtorId());
+                long cents = balances.getOrDefault(key, 0L) + entry.amountCents();
+                if (cents == 0) {
+                    balances.remove(key);
+                } else {
+                    balances.put(key, cents);
+                }
+            }
+            case BALANCES_REBUILT -> balances.clear();
+            default -> {
+                // The other records are the audit trail of what caused the balance changes
+            }
+        }
+    }
+
+    private static long pairKey(int creditorId, int debtorId) {
+        return ((long) creditorId << 32) | (debtorId & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,538 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Backs up the `user`, `expense` and `user_expense` tables to a compact columnar snapshot file and restores them from
+ * one.
+ * <p>
+ * Each table is stored as row groups of up to {@link #ROW_GROUP_SIZE} rows in primary key order, and each row group
+ * as one block per column. Ids and dates are delta-encoded against the previous row, which makes them mostly one-byte
+ * varints. Other numbers are zigzag varints, with amounts as cents. Text columns are dictionary-encoded per row group,
+ * so a name that repeats thousands of times is stored once. Only one row group is held in memory at a time, and a
+ * file name ending in .gz is gzipped as well. The file ends with the row count of each table and a CRC-32 of
+ * everything before it.
+ * <p>
+ * A restore first reads the whole file without touching the database, and refuses it if it is truncated, malformed,
+ * or doesn't match its row counts and checksum. Only then does it replace the contents of the three tables. It turns
+ * off foreign key and unique checks for its connection, drops the secondary indexes that can be rebuilt, and
+ * bulk-loads each row group as one JDBC batch and transaction. It then builds the indexes once from the loaded rows.
+ * Whether the load completes or a database error stops it part way, `user_balance` is then recomputed from whatever
+ * `user_expense` holds and the ledger generation is bumped, so the balances and cached reports never describe rows
+ * that are gone. The `user_balance` table isn't part of the snapshot because it is derived from `user_expense`.
+ * Format version 1 files, which have no trailer, are still read.
+ */
+public class LedgerSnapshot {
+    private static final Logger logger = LogManager.getLogger(LedgerSnapshot.class);
+    private static final byte[] MAGIC = {'B', 'S', 'L', 'S'};
+    private static final byte FORMAT_VERSION = 2;
+    // Before the row counts and checksum trailer were added
+    private static final byte UNCHECKED_FORMAT_VERSION = 1;
+    private static final int ROW_GROUP_SIZE = 65536;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private enum ColumnKind {
+        // Delta from the previous row, for ids in ascending order
+        ID,
+        INT,
+        // Days since 1970-01-01, delta from the previous row
+        DATE,
+        // Cents
+        MONEY,
+        // Dictionary-encoded, with code 0 for NULL
+        TEXT
+    }
+
+    private record Table(String name, String[] columns, ColumnKind[] kinds, String orderBy) {
+        String selectQuery() {
+            return "SELECT " + String.join(", ", columns) + " FROM " + name + " ORDER BY " + orderBy;
+        }
+
+        String insertQuery() {
+            return "INSERT INTO " + name + " (" + String.join(", ", columns) + ") VALUES (" +
+                    "?, ".repeat(columns.length - 1) + "?)";
+        }
+    }
+
+    // In the order they are written and restored, parents before children
+    private static final Table[] TABLES = {
+            new Table("user", new String[]{"user_id", "user_name"},
+                    new ColumnKind[]{ColumnKind.ID, ColumnKind.TEXT}, "user_id"),
+            new Table("expense", new String[]{"expense_id", "expense_date", "establishment_name", "expense_name",
+                    "total_cost", "split_count", "creditor_id", "creditor_name"},
+                    new ColumnKind[]{ColumnKind.ID, ColumnKind.DATE, ColumnKind.TEXT, ColumnKind.TEXT, ColumnKind.MONEY,
+                            ColumnKind.INT, ColumnKind.INT, ColumnKind.TEXT}, "expense_id"),
+            new Table("user_expense", new String[]{"expense_id", "creditor_id", "debtor_id", "amount_owed",
+                    "payment_status"},
+                    new ColumnKind[]{ColumnKind.ID, ColumnKind.INT, ColumnKind.INT, ColumnKind.MONEY, ColumnKind.TEXT},
+                    "expense_id, debtor_id")
+    };
+
+    /**
+     * One row group's worth of column values. Numeric columns use {@code numbers[column]}, text columns
+     * {@code texts[column]}.
+     */
+    private static final class RowGroup {
+        final long[][] numbers;
+        final String[][] texts;
+        int size;
+
+        RowGroup(Table table) {
+            numbers = new long[table.kinds().length][];
+            texts = new String[table.kinds().length][];
+            for (int i = 0; i < table.kinds().length; i++) {
+                if (table.kinds()[i] == ColumnKind.TEXT) {
+                    texts[i] = new String[ROW_GROUP_SIZE];
+                } else {
+                    numbers[i] = new long[ROW_GROUP_SIZE];
+                }
+            }
+        }
+    }
+
+    public record TableCount(String tableName, long rows) {
+    }
+
+    /**
+     * Writes all three tables from one read-only snapshot of the database.
+     *
+     * @return the number of rows written per table
+     */
+    public TableCount[] backup(Path file) throws IOException, SQLException {
+        long start = System.nanoTime();
+        TableCount[] counts = new TableCount[TABLES.length];
+        int[] schemaVersion = new int[1];
+        CRC32 crc = new CRC32();
+
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(openOutput(file), crc))) {
+            try {
+                UnitOfWork.executeReadOnly(conn -> {
+                    schemaVersion[0] = new TableCreationManager().getSchemaVersion(conn);
+                    writeHeader(out, schemaVersion[0]);
+                    for (int i = 0; i < TABLES.length; i++) {
+                        counts[i] = new TableCount(TABLES[i].name(), backupTable(conn, TABLES[i], out));
+                    }
+                    return null;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            for (TableCount count : counts) {
+                writeVarLong(out, count.rows());
+            }
+            // The checksum covers everything before it, including the row counts
+            out.writeInt((int) crc.getValue());
+        }
+
+        logger.info("Snapshot of schema version {} written to {} in {} ms", schemaVersion[0], file,
+                (System.nanoTime() - start) / 1_000_000);
+        return counts;
+    }
+
+    private static void writeHeader(DataOutputStream out, int schemaVersion) {
+        try {
+            out.write(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(schemaVersion);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long backupTable(Connection conn, Table table, DataOutputStream out) throws SQLException {
+        RowGroup group = new RowGroup(table);
+        ColumnKind[] kinds = table.kinds();
+        long rows = 0;
+
+        try (PreparedStatement ps = conn.prepareStatement(table.selectQuery(), ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            ps.setFetchSize(DatabaseConnectionManager.getFetchSize());
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    int row = group.size++;
+                    for (int c = 0; c < kinds.length; c++) {
+                        switch (kinds[c]) {
+                            case ID, INT -> group.numbers[c][row] = rs.getLong(c + 1);
+                            case DATE -> group.numbers[c][row] = rs.getDate(c + 1).toLocalDate().toEpochDay();
+                            case MONEY -> group.numbers[c][row] = Money.fromBigDecimal(rs.getBigDecimal(c + 1));
+                            case TEXT -> group.texts[c][row] = rs.getString(c + 1);
+                        }
+                    }
+                    if (group.size == ROW_GROUP_SIZE) {
+                        writeRowGroup(out, kinds, group);
+                        rows += group.size;
+                        group.size = 0;
+                    }
+                }
+            }
+            if (group.size > 0) {
+                writeRowGroup(out, kinds, group);
+                rows += group.size;
+            }
+            // A row group of zero rows ends the table
+            writeVarLong(out, 0);
+        } catch (IOException e) {
+            // UnitOfWork only passes SQLExceptions through, backup() unwraps this again
+            throw new UncheckedIOException(e);
+        }
+        return rows;
+    }
+
+    private static void writeRowGroup(DataOutputStream out, ColumnKind[] kinds, RowGroup group) throws IOException {
+        writeVarLong(out, group.size);
+        for (int c = 0; c < kinds.length; c++) {
+            switch (kinds[c]) {
+                case ID, DATE -> {
+                    long previous = 0;
+                    for (int row = 0; row < group.size; row++) {
+                        writeVarLong(out, zigzag(group.numbers[c][row] - previous));
+                        previous = group.numbers[c][row];
+                    }
+                }
+                case INT, MONEY -> {
+                    for (int row = 0; row < group.size; row++) {
+                        writeVarLong(out, zigzag(group.numbers[c][row]));
+                    }
+                }
+                case TEXT -> writeDictionaryColumn(out, group.texts[c], group.size);
+            }
+        }
+    }
+
+    private static void writeDictionaryColumn(DataOutputStream out, String[] values, int size) throws IOException {
+        Map<String, Integer> codes = new HashMap<>();
+        int[] rowCodes = new int[size];
+        for (int row = 0; row < size; row++) {
+            if (values[row] != null) {
+                rowCodes[row] = codes.computeIfAbsent(values[row], value -> codes.size() + 1);
+            }
+        }
+
+        // The dictionary in code order, then one code per row
+        String[] dictionary = new String[codes.size()];
+        codes.forEach((value, code) -> dictionary[code - 1] = value);
+        writeVarLong(out, dictionary.length);
+        for (String value : dictionary) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        }
+        for (int row = 0; row < size; row++) {
+            writeVarLong(out, rowCodes[row]);
+        }
+    }
+
+    /**
+     * Replaces the contents of the tables with the snapshot in {@code file}, after checking that the whole file can be
+     * read.
+     *
+     * @return the number of rows restored per table
+     */
+    public TableCount[] restore(Path file) throws IOException, SQLException {
+        TableCreationManager tableCreationManager = new TableCreationManager();
+        TableCount[] counts = new TableCount[TABLES.length];
+        Connection conn = null;
+        boolean indexesDropped = false;
+        boolean tablesTouched = false;
+        boolean restored = false;
+
+        // Nothing in the database is touched until the whole file has been read and checked
+        long[] expectedRows = readSnapshot(file, tableCreationManager, null);
+        long verifiedAt = System.nanoTime();
+        logger.info("Snapshot {} checked, {} row(s)", file, Arrays.stream(expectedRows).sum());
+
+        try {
+            conn = DatabaseConnectionManager.establishConnection();
+            try (Statement stmt = conn.createStatement()) {
+                // Rows come in primary key order and were consistent when backed up, so checking them again on
+                // every insert is wasted work
+                SqlDialect.current().setConstraintChecks(stmt, false);
+                tablesTouched = true;
+                for (int i = TABLES.length - 1; i >= 0; i--) {
+                    stmt.executeUpdate("TRUNCATE TABLE " + TABLES[i].name());
+                }
+                stmt.executeUpdate("TRUNCATE TABLE user_balance");
+            }
+            indexesDropped = true;
+            tableCreationManager.dropDeferrableIndexes(conn);
+
+            conn.setAutoCommit(false);
+            long[] rows = readSnapshot(file, tableCreationManager, conn);
+            conn.setAutoCommit(true);
+            for (int i = 0; i < TABLES.length; i++) {
+                counts[i] = new TableCount(TABLES[i].name(), rows[i]);
+            }
+            if (!Arrays.equals(rows, expectedRows)) {
+                throw new IOException(file + " changed while it was being restored");
+            }
+            logger.info("Restored {} row(s) in {} ms", Arrays.stream(rows).sum(),
+                    (System.nanoTime() - verifiedAt) / 1_000_000);
+
+            long indexStart = System.nanoTime();
+            tableCreationManager.createSecondaryIndexes(conn);
+            indexesDropped = false;
+            logger.info("Rebuilt secondary indexes in {} ms", (System.nanoTime() - indexStart) / 1_000_000);
+            restored = true;
+        } finally {
+            if (conn != null) {
+                try (Statement stmt = conn.createStatement()) {
+                    conn.setAutoCommit(true);
+                    // A failed restore still leaves the tables with their indexes
+                    if (indexesDropped) {
+                        tableCreationManager.createSecondaryIndexes(conn);
+                    }
+                    SqlDialect.current().setConstraintChecks(stmt, true);
+                } catch (SQLException e) {
+                    logger.error("Failed to restore the session settings after a restore: {}", e.getMessage(), e);
+                }
+            }
+            ResourcesUtils.closeConnection(conn);
+            // Cached user ids may refer to rows that were replaced
+            JdbcUserDAO.getUserCache().invalidateAll();
+            if (tablesTouched) {
+                rebuildBalancesAfterRestore(restored);
+            }
+        }
+        return counts;
+    }
+
+    // Rebuilding also bumps the ledger generation. After a failed restore this only logs, so the restore's own error
+    // is the one reported.
+    private static void rebuildBalancesAfterRestore(boolean restored) throws SQLException {
+        try {
+            UnitOfWork.execute(c -> new JdbcBalanceDAO().rebuildBalances(c));
+        } catch (SQLException e) {
+            if (restored) {
+                throw e;
+            }
+            logger.error("Failed to rebuild the balances after a failed restore: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the snapshot in {@code file} from start to end, checking its structure and, from format version 2, its
+     * row counts and checksum. With a connection the rows are also inserted into the tables, otherwise nothing but the
+     * file is touched.
+     *
+     * @return the number of rows of each table
+     */
+    private long[] readSnapshot(Path file, TableCreationManager tableCreationManager, Connection conn)
+            throws IOException, SQLException {
+        long[] rows = new long[TABLES.length];
+        CRC32 crc = new CRC32();
+
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(openInput(file), crc))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a ledger snapshot");
+            }
+            int formatVersion = in.readUnsignedByte();
+            if (formatVersion != FORMAT_VERSION && formatVersion != UNCHECKED_FORMAT_VERSION) {
+                throw new IOException("Unsupported snapshot format version " + formatVersion);
+            }
+            int schemaVersion = in.readInt();
+            if (schemaVersion > tableCreationManager.getLatestVersion()) {
+                throw new IOException("The snapshot is from schema version " + schemaVersion
+                        + ", newer than this application's " + tableCreationManager.getLatestVersion());
+            }
+
+            for (int i = 0; i < TABLES.length; i++) {
+                rows[i] = conn != null ? restoreTable(conn, TABLES[i], in) : skipTable(TABLES[i], in);
+            }
+
+            if (formatVersion == FORMAT_VERSION) {
+                for (int i = 0; i < TABLES.length; i++) {
+                    long recordedRows = readVarLong(in);
+                    if (recordedRows != rows[i]) {
+                        throw new IOException(file + " holds " + rows[i] + " `" + TABLES[i].name()
+                                + "` row(s) but records " + recordedRows);
+                    }
+                }
+                long expectedCrc = crc.getValue();
+                if ((in.readInt() & 0xFFFFFFFFL) != expectedCrc) {
+                    throw new IOException(file + " fails its checksum");
+                }
+            }
+            if (in.read() != -1) {
+                throw new IOException(file + " has data after the end of the snapshot");
+            }
+        } catch (EOFException e) {
+            throw new IOException(file + " ends part way through the snapshot", e);
+        }
+        return rows;
+    }
+
+    private static long skipTable(Table table, DataInputStream in) throws IOException {
+        RowGroup group = new RowGroup(table);
+        long rows = 0;
+        while (readRowGroup(in, table.kinds(), group)) {
+            rows += group.size;
+        }
+        return rows;
+    }
+
+    private long restoreTable(Connection conn, Table table, DataInputStream in) throws IOException, SQLException {
+        RowGroup group = new RowGroup(table);
+        ColumnKind[] kinds = table.kinds();
+        long rows = 0;
+
+        try (PreparedStatement ps = conn.prepareStatement(table.insertQuery())) {
+            while (readRowGroup(in, kinds, group)) {
+                for (int row = 0; row < group.size; row++) {
+                    for (int c = 0; c < kinds.length; c++) {
+                        switch (kinds[c]) {
+                            case ID, INT -> ps.setInt(c + 1, (int) group.numbers[c][row]);
+                            case DATE -> ps.setDate(c + 1, Date.valueOf(LocalDate.ofEpochDay(group.numbers[c][row])));
+                            case MONEY -> ps.setBigDecimal(c + 1, Money.toBigDecimal(group.numbers[c][row]));
+                            case TEXT -> ps.setString(c + 1, group.texts[c][row]);
+                        }
+                    }
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                conn.commit();
+                rows += group.size;
+            }
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+        return rows;
+    }
+
+    // Returns false at the end of the table
+    private static boolean readRowGroup(DataInputStream in, ColumnKind[] kinds, RowGroup group) throws IOException {
+        long size = readVarLong(in);
+        if (size == 0) {
+            return false;
+        }
+        if (size > ROW_GROUP_SIZE) {
+            throw new IOException("Row group of " + size + " rows is larger than " + ROW_GROUP_SIZE);
+        }
+        group.size = (int) size;
+
+        for (int c = 0; c < kinds.length; c++) {
+            switch (kinds[c]) {
+                case ID, DATE -> {
+                    long previous = 0;
+                    for (int row = 0; row < group.size; row++) {
+                        previous += unzigzag(readVarLong(in));
+                        group.numbers[c][row] = previous;
+                    }
+                }
+                case INT, MONEY -> {
+                    for (int row = 0; row < group.size; row++) {
+                        group.numbers[c][row] = unzigzag(readVarLong(in));
+                    }
+                }
+                case TEXT -> readDictionaryColumn(in, group.texts[c], group.size);
+            }
+        }
+        return true;
+    }
+
+    private static void readDictionaryColumn(DataInputStream in, String[] values, int size) throws IOException {
+        long dictionarySize = readVarLong(in);
+        if (dictionarySize > size) {
+            throw new IOException("Dictionary of " + dictionarySize + " entries for " + size + " rows");
+        }
+        String[] dictionary = new String[(int) dictionarySize + 1];
+        for (int i = 1; i < dictionary.length; i++) {
+            byte[] bytes = new byte[(int) readVarLong(in)];
+            in.readFully(bytes);
+            dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        for (int row = 0; row < size; row++) {
+            long code = readVarLong(in);
+            if (code >= dictionary.length) {
+                throw new IOException("Dictionary code " + code + " out of range");
+            }
+            values[row] = dictionary[(int) code];
+        }
+    }
+
+    private static OutputStream openOutput(Path file) throws IOException {
+        OutputStream out = Files.newOutputStream(file);
+        return file.toString().endsWith(".gz")
+                ? new GZIPOutputStream(out, BUFFER_SIZE)
+                : new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    private static InputStream openInput(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        return file.toString().endsWith(".gz")
+                ? new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE)
+                : new BufferedInputStream(in, BUFFER_SIZE);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void printSummary(String action, TableCount[] counts, long elapsedNanos) {
+        long totalRows = 0;
+        StringBuilder tables = new StringBuilder();
+        for (TableCount count : counts) {
+            totalRows += count.rows();
+            tables.append(tables.length() == 0 ? "" : ", ").append(count.rows()).append(' ').append(count.tableName());
+        }
+        System.out.printf("%s %d row(s) (%s) in %.2f s, %.0f rows/s%n", action, totalRows, tables,
+                elapsedNanos / 1_000_000_000.0, elapsedNanos > 0 ? totalRows * 1_000_000_000.0 / elapsedNanos : 0.0);
+    }
+}
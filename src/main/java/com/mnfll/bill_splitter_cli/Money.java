@@ -0,0 +1,140 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Amounts of money are held as a primitive {@code long} number of cents throughout the application. This class holds
+ * the conversions and arithmetic for that representation.
+ * <p>
+ * Working on plain longs keeps aggregation loops allocation-free and exact. {@link BigDecimal} is only used at the
+ * boundary with the DECIMAL(n, 2) database columns.
+ */
+public final class Money {
+    public static final int SCALE = 2;
+    private static final long CENTS_PER_UNIT = 100;
+
+    private Money() {
+    }
+
+    /**
+     * Parses an amount such as {@code "12"}, {@code "12.5"} or {@code "-0.05"} into cents.
+     *
+     * @throws NumberFormatException if the text isn't a number with at most two decimal places, or doesn't fit
+     */
+    public static long parse(String text) {
+        if (text == null) {
+            throw new NumberFormatException("Amount is missing");
+        }
+        String input = text.trim();
+        int length = input.length();
+        int i = 0;
+        boolean negative = false;
+
+        if (i < length && (input.charAt(i) == '-' || input.charAt(i) == '+')) {
+            negative = input.charAt(i) == '-';
+            i++;
+        }
+
+        long units = 0;
+        int unitDigits = 0;
+        while (i < length && isDigit(input.charAt(i))) {
+            // More digits than a long of cents can hold
+            if (++unitDigits > 16) {
+                throw new NumberFormatException("Amount is too large: " + text);
+            }
+            units = units * 10 + (input.charAt(i) - '0');
+            i++;
+        }
+
+        long fraction = 0;
+        int fractionDigits = 0;
+        if (i < length && input.charAt(i) == '.') {
+            i++;
+            while (i < length && isDigit(input.charAt(i))) {
+                if (++fractionDigits > SCALE) {
+                    throw new NumberFormatException("Amount has more than " + SCALE + " decimal places: " + text);
+                }
+                fraction = fraction * 10 + (input.charAt(i) - '0');
+                i++;
+            }
+        }
+
+        if (i != length || unitDigits + fractionDigits == 0) {
+            throw new NumberFormatException("Not a valid amount: " + text);
+        }
+        if (fractionDigits == 1) {
+            fraction *= 10;
+        }
+
+        try {
+            long cents = Math.addExact(Math.multiplyExact(units, CENTS_PER_UNIT), fraction);
+            return negative ? -cents : cents;
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount is too large: " + text);
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    public static boolean isValid(String text) {
+        try {
+            parse(text);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public static String format(long cents) {
+        return appendTo(new StringBuilder(24), cents).toString();
+    }
+
+    /**
+     * Appends {@code cents} as a decimal amount with two decimal places, without going through String.format.
+     */
+    public static StringBuilder appendTo(StringBuilder sb, long cents) {
+        long units = cents / CENTS_PER_UNIT;
+        long remainder = Math.abs(cents % CENTS_PER_UNIT);
+        if (cents < 0 && units == 0) {
+            sb.append('-');
+        }
+        sb.append(units).append('.');
+        if (remainder < 10) {
+            sb.append('0');
+        }
+        return sb.append(remainder);
+    }
+
+    /**
+     * Splits {@code totalCents} into {@code parts} shares that differ by at most one cent and always add up to the
+     * total, using the largest-remainder method: every share gets the rounded-down amount and the leftover cents go
+     * one each to the first shares.
+     */
+    public static void split(long totalCents, int parts, long[] shares) {
+        if (parts <= 0) {
+            throw new IllegalArgumentException("Cannot split an amount into " + parts + " parts");
+        }
+        long base = Math.floorDiv(totalCents, parts);
+        long leftover = Math.floorMod(totalCents, parts);
+        for (int i = 0; i < parts; i++) {
+            shares[i] = i < leftover ? base + 1 : base;
+        }
+    }
+
+    public static long[] split(long totalCents, int parts) {
+        long[] shares = new long[parts];
+        split(totalCents, parts, shares);
+        return shares;
+    }
+
+    public static BigDecimal toBigDecimal(long cents) {
+        return BigDecimal.valueOf(cents, SCALE);
+    }
+
+    public static long fromBigDecimal(BigDecimal amount) {
+        return amount.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+}
@@ -0,0 +1,153 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes net positions and pairwise net debts from a {@link SparseDebtMatrix}, splitting the rows across a
+ * {@link ForkJoinPool} when the ledger is large.
+ * <p>
+ * Amounts are whole cents added as longs, so the way the rows are split and merged cannot change the result: parallel
+ * and sequential runs agree to the cent. Matrices with fewer than {@code debt.parallelThreshold} entries are computed
+ * sequentially, since forking would cost more than it saves.
+ */
+public class NetDebtEngine {
+    private static final String PARALLEL_THRESHOLD_KEY = "debt.parallelThreshold";
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 50000;
+    // Leaves per worker thread, so a thread that finishes early can steal work from a busy one
+    private static final int LEAVES_PER_THREAD = 2;
+
+    private final ForkJoinPool pool;
+    private final long parallelThreshold;
+
+    public NetDebtEngine() {
+        this(ForkJoinPool.commonPool(), DatabaseConnectionManager.getIntProperty(
+                DatabaseConnectionManager.loadConfig(), PARALLEL_THRESHOLD_KEY, DEFAULT_PARALLEL_THRESHOLD));
+    }
+
+    public NetDebtEngine(ForkJoinPool pool, long parallelThreshold) {
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public boolean isParallel(SparseDebtMatrix debtMatrix) {
+        return pool.getParallelism() > 1 && debtMatrix.size() > 1 && debtMatrix.entryCount() >= parallelThreshold;
+    }
+
+    /**
+     * Computes everyone's net position from a debt matrix where entry (row, col) is what col owes row. Positive means
+     * the participant is owed money overall.
+     */
+    public long[] calculateNetPositions(SparseDebtMatrix debtMatrix) {
+        if (!isParallel(debtMatrix)) {
+            return addNetPositions(debtMatrix, 0, debtMatrix.size(), new long[debtMatrix.size()]);
+        }
+        return pool.invoke(new NetPositionTask(debtMatrix, 0, debtMatrix.size(), grainSize(debtMatrix)));
+    }
+
+    /**
+     * Nets each pair's debts against each other. In the result, entry (i, j) is the amount j owes i after netting,
+     * and only the direction that is actually owed is stored.
+     */
+    public SparseDebtMatrix calculateNetDebts(SparseDebtMatrix debtMatrix) {
+        SparseDebtMatrix netDebts = new SparseDebtMatrix(debtMatrix.size());
+        if (!isParallel(debtMatrix)) {
+            addNetDebts(debtMatrix, netDebts, 0, debtMatrix.size());
+        } else {
+            pool.invoke(new NetDebtTask(debtMatrix, netDebts, 0, debtMatrix.size(), grainSize(debtMatrix)));
+        }
+        return netDebts;
+    }
+
+    private int grainSize(SparseDebtMatrix debtMatrix) {
+        return Math.max(1, debtMatrix.size() / (pool.getParallelism() * LEAVES_PER_THREAD));
+    }
+
+    private static long[] addNetPositions(SparseDebtMatrix debtMatrix, int fromRow, int toRow, long[] netPositions) {
+        for (int row = fromRow; row < toRow; row++) {
+            debtMatrix.forEachInRow(row, (creditor, debtor, amount) -> {
+                netPositions[creditor] += amount;
+                netPositions[debtor] -= amount;
+            });
+        }
+        return netPositions;
+    }
+
+    // Only writes to rows fromRow..toRow - 1 of netDebts, so disjoint ranges can run concurrently
+    private static void addNetDebts(SparseDebtMatrix debtMatrix, SparseDebtMatrix netDebts, int fromRow, int toRow) {
+        for (int row = fromRow; row < toRow; row++) {
+            debtMatrix.forEachInRow(row, (creditor, debtor, amount) -> {
+                // Each pair is visited from both sides, only keep it on the side that is owed money
+                long netDebt = amount - debtMatrix.get(debtor, creditor);
+                if (netDebt > 0) {
+                    netDebts.set(creditor, debtor, netDebt);
+                }
+            });
+        }
+    }
+
+    /**
+     * Each leaf sums its rows into its own array, and the arrays are added together as the tasks join.
+     */
+    private static class NetPositionTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient SparseDebtMatrix debtMatrix;
+        private final int fromRow;
+        private final int toRow;
+        private final int grainSize;
+
+        NetPositionTask(SparseDebtMatrix debtMatrix, int fromRow, int toRow, int grainSize) {
+            this.debtMatrix = debtMatrix;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.grainSize = grainSize;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (toRow - fromRow <= grainSize) {
+                return addNetPositions(debtMatrix, fromRow, toRow, new long[debtMatrix.size()]);
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            NetPositionTask left = new NetPositionTask(debtMatrix, fromRow, middle, grainSize);
+            left.fork();
+            long[] netPositions = new NetPositionTask(debtMatrix, middle, toRow, grainSize).compute();
+            long[] leftPositions = left.join();
+            for (int i = 0; i < netPositions.length; i++) {
+                netPositions[i] += leftPositions[i];
+            }
+            return netPositions;
+        }
+    }
+
+    private static class NetDebtTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient SparseDebtMatrix debtMatrix;
+        private final transient SparseDebtMatrix netDebts;
+        private final int fromRow;
+        private final int toRow;
+        private final int grainSize;
+
+        NetDebtTask(SparseDebtMatrix debtMatrix, SparseDebtMatrix netDebts, int fromRow, int toRow, int grainSize) {
+            this.debtMatrix = debtMatrix;
+            this.netDebts = netDebts;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.grainSize = grainSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= grainSize) {
+                addNetDebts(debtMatrix, netDebts, fromRow, toRow);
+                return;
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            invokeAll(new NetDebtTask(debtMatrix, netDebts, fromRow, middle, grainSize),
+                    new NetDebtTask(debtMatrix, netDebts, middle, toRow, grainSize));
+        }
+    }
+}
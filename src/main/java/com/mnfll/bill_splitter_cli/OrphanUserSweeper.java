@@ -0,0 +1,112 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Removes users that are no longer part of any expense.
+ * <p>
+ * In {@code immediate} mode the cleanup runs as soon as it is requested. In {@code deferred} mode requests are
+ * coalesced and a single background sweep runs after a short delay, so deleting an expense doesn't wait on it. The
+ * background sweep runs through {@link UnitOfWork#runExclusive}, between this process's write transactions: a writer
+ * may have taken a user's id from the cache, and deleting that user before the writer commits would fail its insert
+ * on the `debtor_id` foreign key. The sweep clears the cache, so later writers look the users up again.
+ */
+public class OrphanUserSweeper {
+    private static final Logger logger = LogManager.getLogger(OrphanUserSweeper.class);
+    private static final String MODE_KEY = "users.orphanCleanup.mode";
+    private static final String DELAY_KEY = "users.orphanCleanup.delayMs";
+
+    private static final AtomicBoolean sweepPending = new AtomicBoolean();
+    private static final AtomicInteger holds = new AtomicInteger();
+    private static ScheduledExecutorService executor;
+
+    public static boolean isDeferred() {
+        return "deferred".equalsIgnoreCase(DatabaseConnectionManager.loadConfig().getProperty(MODE_KEY, "immediate"));
+    }
+
+    /**
+     * Called whenever a change may have left users without any expense.
+     */
+    public static void requestSweep() {
+        if (!isDeferred()) {
+            int rowsDeleted = new JdbcUserDAO().deleteOrphanUsers();
+            if (rowsDeleted > 0) {
+                System.out.println(rowsDeleted + " user(s) no longer associated with any expense were deleted.");
+            }
+            return;
+        }
+
+        // A sweep that hasn't started yet will also catch the users orphaned by this change
+        if (sweepPending.compareAndSet(false, true)) {
+            long delay = DatabaseConnectionManager.getIntProperty(DatabaseConnectionManager.loadConfig(), DELAY_KEY, 5000);
+            getExecutor().schedule(OrphanUserSweeper::sweep, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Holds background sweeps back until {@link #release()}, for work that keeps user ids across several transactions,
+     * such as a parallel import that creates the users before the workers write their expenses. A sweep that comes due
+     * in the meantime is put off until the hold is released.
+     */
+    public static void hold() {
+        holds.incrementAndGet();
+    }
+
+    public static void release() {
+        holds.decrementAndGet();
+    }
+
+    /**
+     * Runs any pending sweep before the application exits.
+     */
+    public static synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        executor = null;
+        if (sweepPending.get()) {
+            sweep();
+        }
+    }
+
+    private static void sweep() {
+        if (holds.get() > 0 && reschedule()) {
+            return;
+        }
+        sweepPending.set(false);
+        long start = System.nanoTime();
+        int[] rowsDeleted = new int[1];
+        UnitOfWork.runExclusive(() -> rowsDeleted[0] = new JdbcUserDAO().deleteOrphanUsers());
+        logger.info("Orphan user sweep deleted {} user(s) in {} ms", rowsDeleted[0],
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // False once shut down, the last sweep then runs regardless
+    private static synchronized boolean reschedule() {
+        if (executor == null) {
+            return false;
+        }
+        long delay = DatabaseConnectionManager.getIntProperty(DatabaseConnectionManager.loadConfig(), DELAY_KEY, 5000);
+        executor.schedule(OrphanUserSweeper::sweep, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "orphan-user-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,326 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Imports the same CSV format as {@link CsvExpenseImporter} with several worker threads, for back-fills too large for
+ * one connection.
+ * <p>
+ * The calling thread parses and validates the file and deals each row to a worker by the hash of its creditor. All of a
+ * creditor's expenses therefore go through the same worker, and since `user_balance` is keyed by (creditor, debtor),
+ * two workers never update the same balance row. Each worker has a bounded queue of chunks. When a worker falls
+ * behind, the reader blocks on its queue instead of buffering the rest of the file.
+ * <p>
+ * Before a chunk is queued, the reader looks up the ids of its users and creates the new ones in a transaction of its
+ * own, so the workers never insert the same new user and don't wait on each other's `user` row locks. Workers write
+ * their chunks with {@link CsvExpenseImporter#writeChunk(Connection, List, Map)}, each chunk in its own transaction on
+ * a connection from the pool, and retry a chunk that loses a deadlock. Background orphan user sweeps are held back for
+ * the whole import, since a user created by the reader has no expense until a worker writes one. The debt summary
+ * generation is bumped once, when the import ends, rather than by every chunk.
+ * <p>
+ * Afterwards the row counts and the `amount_owed` total added to the database are reconciled against what was read
+ * from the file. The reconciliation compares table totals from before and after the import, so it assumes nothing else
+ * writes expenses while the import runs.
+ */
+public class ParallelCsvImporter {
+    private static final Logger logger = LogManager.getLogger(ParallelCsvImporter.class);
+    private static final String QUEUE_CAPACITY_KEY = "import.parallel.queueCapacity";
+    private static final String DEADLOCK_SQL_STATE = "40001";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final Chunk END_OF_INPUT = new Chunk(List.of(), List.of(), Map.of());
+
+    private final int workerCount;
+    private final int chunkSize;
+    private final int queueCapacity;
+    private final CsvExpenseImporter importer = new CsvExpenseImporter();
+    private final UserDAO jdbcUserDAO = new JdbcUserDAO();
+    // Ids of the users resolved so far, only used by the reader thread
+    private final Map<String, Integer> resolvedUserIds = new HashMap<>();
+
+    private final AtomicLong rowsImported = new AtomicLong();
+    private final AtomicLong rowsFailed = new AtomicLong();
+    private final AtomicLong shareRows = new AtomicLong();
+    private final AtomicLong importedCents = new AtomicLong();
+
+    /**
+     * A worker's share of the file. {@code userIds} is filled in by the reader just before the chunk is queued.
+     */
+    private record Chunk(List<Expense> expenses, List<String> records, Map<String, Integer> userIds) {
+    }
+
+    /**
+     * Totals of the `expense` and `user_expense` tables, in cents.
+     */
+    private record TableTotals(long expenseRows, long shareRows, long amountOwedCents) {
+    }
+
+    public ParallelCsvImporter(int workerCount) {
+        this(workerCount,
+                DatabaseConnectionManager.getIntProperty(DatabaseConnectionManager.loadConfig(), "import.chunkSize", 1000),
+                DatabaseConnectionManager.getIntProperty(DatabaseConnectionManager.loadConfig(), QUEUE_CAPACITY_KEY, 4));
+    }
+
+    public ParallelCsvImporter(int workerCount, int chunkSize, int queueCapacity) {
+        this.workerCount = Math.max(1, workerCount);
+        this.chunkSize = Math.max(1, chunkSize);
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * @return true when the import reconciled with the file
+     */
+    public boolean importFile(Path csvFile, Path rejectFile) throws IOException, SQLException {
+        long start = System.nanoTime();
+        TableTotals before = readTableTotals();
+
+        long rowsRead = 0;
+        long rowsRejected = 0;
+        long sourceShares = 0;
+        long sourceCents = 0;
+
+        List<BlockingQueue<Chunk>> queues = new ArrayList<>(workerCount);
+        List<Thread> workers = new ArrayList<>(workerCount);
+        List<Chunk> pendingChunks = new ArrayList<>(workerCount);
+
+        OrphanUserSweeper.hold();
+        DebtSummaryCache.setChangesDeferred(true);
+        // Ids kept from an earlier import may belong to users swept since
+        resolvedUserIds.clear();
+        try (CsvRecordReader csv = new CsvRecordReader(Files.newBufferedReader(csvFile, StandardCharsets.UTF_8));
+             BufferedWriter rejects = Files.newBufferedWriter(rejectFile, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < workerCount; i++) {
+                BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(queueCapacity);
+                Thread worker = new Thread(() -> runWorker(queue, rejects), "import-worker-" + i);
+                // Don't keep the JVM alive if reading the file fails before the workers are told to stop
+                worker.setDaemon(true);
+                queues.add(queue);
+                workers.add(worker);
+                pendingChunks.add(newChunk());
+                worker.start();
+            }
+
+            try {
+                while (csv.next()) {
+                    if (csv.isBlank() || csv.getField(0).startsWith("#")
+                            || (csv.getLineNumber() == 1 && csv.getField(0).trim().equalsIgnoreCase("date"))) {
+                        continue;
+                    }
+                    rowsRead++;
+
+                    Expense expense;
+                    try {
+                        if (csv.getFieldCount() != 6) {
+                            throw new IllegalArgumentException("Expected 6 fields, found " + csv.getFieldCount());
+                        }
+                        expense = ExpenseParser.parse(csv.getField(0), csv.getField(1), csv.getField(2),
+                                csv.getField(3), csv.getField(4), csv.getField(5));
+                    } catch (IllegalArgumentException e) {
+                        synchronized (rejects) {
+                            CsvExpenseImporter.writeReject(rejects, "line " + csv.getLineNumber() + ": " + e.getMessage(),
+                                    csv.getRawRecord());
+                        }
+                        rowsRejected++;
+                        continue;
+                    }
+                    sourceShares += expense.getDebtorNames().size();
+                    sourceCents += expense.getItemCost();
+
+                    int partition = Math.floorMod(expense.getCreditorName().hashCode(), workerCount);
+                    Chunk chunk = pendingChunks.get(partition);
+                    chunk.expenses().add(expense);
+                    chunk.records().add(csv.getRawRecord());
+                    if (chunk.expenses().size() >= chunkSize) {
+                        dispatch(chunk, queues.get(partition), rejects);
+                        pendingChunks.set(partition, newChunk());
+                    }
+                }
+
+                for (int i = 0; i < workerCount; i++) {
+                    if (!pendingChunks.get(i).expenses().isEmpty()) {
+                        dispatch(pendingChunks.get(i), queues.get(i), rejects);
+                    }
+                    queues.get(i).put(END_OF_INPUT);
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                workers.forEach(Thread::interrupt);
+                throw new IOException("Interrupted while importing", e);
+            }
+        } finally {
+            DebtSummaryCache.setChangesDeferred(false);
+            OrphanUserSweeper.release();
+            if (rowsImported.get() > 0) {
+                DebtSummaryCache.publishChange();
+            }
+        }
+
+        long elapsedNanos = System.nanoTime() - start;
+        CsvExpenseImporter.ImportResult result = new CsvExpenseImporter.ImportResult(rowsRead, rowsImported.get(),
+                rowsRejected + rowsFailed.get(), shareRows.get(), importedCents.get(), elapsedNanos);
+        CsvExpenseImporter.printSummary(result, rejectFile);
+
+        return reconcile(rowsRead - rowsRejected, sourceShares, sourceCents, before, readTableTotals());
+    }
+
+    private Chunk newChunk() {
+        return new Chunk(new ArrayList<>(chunkSize), new ArrayList<>(chunkSize), new HashMap<>());
+    }
+
+    /**
+     * Resolves the users of {@code chunk}, creating the missing ones, and queues it. Blocks while the worker's queue is
+     * full. A chunk whose users can't be resolved goes to the reject file.
+     */
+    private void dispatch(Chunk chunk, BlockingQueue<Chunk> queue, BufferedWriter rejects)
+            throws InterruptedException {
+        Set<String> unresolvedNames = new LinkedHashSet<>();
+        for (Expense expense : chunk.expenses()) {
+            for (String name : expense.getDebtorNames()) {
+                if (!resolvedUserIds.containsKey(name)) {
+                    unresolvedNames.add(name);
+                }
+            }
+        }
+
+        try {
+            if (!unresolvedNames.isEmpty()) {
+                resolvedUserIds.putAll(UnitOfWork.execute(conn -> jdbcUserDAO.resolveUserIds(conn, unresolvedNames)));
+            }
+        } catch (SQLException e) {
+            rejectChunk(chunk, e, rejects);
+            return;
+        }
+
+        for (Expense expense : chunk.expenses()) {
+            for (String name : expense.getDebtorNames()) {
+                chunk.userIds().put(name, resolvedUserIds.get(name));
+            }
+        }
+        queue.put(chunk);
+    }
+
+    private void runWorker(BlockingQueue<Chunk> queue, BufferedWriter rejects) {
+        // Set on every thread that writes for the import, the generation is bumped once when it ends
+        DebtSummaryCache.setChangesDeferred(true);
+        try {
+            while (true) {
+                Chunk chunk = queue.take();
+                if (chunk == END_OF_INPUT) {
+                    return;
+                }
+                writeChunk(chunk, rejects);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeChunk(Chunk chunk, BufferedWriter rejects) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                int written = UnitOfWork.execute(conn -> importer.writeChunk(conn, chunk.expenses(), chunk.userIds()));
+                long cents = 0;
+                for (Expense expense : chunk.expenses()) {
+                    cents += expense.getItemCost();
+                }
+                rowsImported.addAndGet(chunk.expenses().size());
+                shareRows.addAndGet(written);
+                importedCents.addAndGet(cents);
+                return;
+            } catch (SQLException | RuntimeException e) {
+                // A worker must keep draining its queue whatever happens, or the reader would block forever
+                if (e instanceof SQLException sqlException && DEADLOCK_SQL_STATE.equals(sqlException.getSQLState())
+                        && attempt < MAX_ATTEMPTS) {
+                    logger.warn("Import chunk lost a deadlock, retrying (attempt {})", attempt + 1);
+                    continue;
+                }
+                rejectChunk(chunk, e, rejects);
+                return;
+            }
+        }
+    }
+
+    private void rejectChunk(Chunk chunk, Exception e, BufferedWriter rejects) {
+        rowsFailed.addAndGet(chunk.expenses().size());
+        try {
+            synchronized (rejects) {
+                for (String record : chunk.records()) {
+                    CsvExpenseImporter.writeReject(rejects, "database error: " + e.getMessage(), record);
+                }
+            }
+        } catch (IOException ioException) {
+            logger.error("Failed to write rejected rows: {}", ioException.getMessage(), ioException);
+        }
+    }
+
+    private boolean reconcile(long sourceRows, long sourceShares, long sourceCents, TableTotals before,
+                              TableTotals after) {
+        long addedExpenses = after.expenseRows() - before.expenseRows();
+        long addedShares = after.shareRows() - before.shareRows();
+        long addedCents = after.amountOwedCents() - before.amountOwedCents();
+
+        System.out.println();
+        System.out.println("Reconciliation          source file    written    in database");
+        System.out.printf("  expense rows       %15d %10d %14d%n", sourceRows, rowsImported.get(), addedExpenses);
+        System.out.printf("  user_expense rows  %15d %10d %14d%n", sourceShares, shareRows.get(), addedShares);
+        System.out.printf("  amount_owed total  %15s %10s %14s%n", Money.format(sourceCents),
+                Money.format(importedCents.get()), Money.format(addedCents));
+
+        boolean allWritten = rowsImported.get() == sourceRows;
+        boolean matchesDatabase = addedExpenses == rowsImported.get() && addedShares == shareRows.get()
+                && addedCents == importedCents.get();
+        if (matchesDatabase && allWritten) {
+            System.out.println("Import reconciled: the database matches the source file.");
+        } else if (matchesDatabase) {
+            System.out.println("The database matches what was written, but " + (sourceRows - rowsImported.get())
+                    + " valid row(s) failed to import, see the reject file.");
+        } else {
+            System.out.println("Reconciliation FAILED: the database totals differ from what was written.");
+        }
+        return matchesDatabase && allWritten;
+    }
+
+    private static TableTotals readTableTotals() throws SQLException {
+        Connection conn = null;
+
+        try {
+            conn = DatabaseConnectionManager.establishConnection();
+            try (Statement stmt = conn.createStatement()) {
+                long expenseRows;
+                try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM expense")) {
+                    rs.next();
+                    expenseRows = rs.getLong(1);
+                }
+                try (ResultSet rs = stmt.executeQuery(
+                        "SELECT COUNT(*), COALESCE(ROUND(SUM(amount_owed) * 100), 0) FROM user_expense")) {
+                    rs.next();
+                    return new TableTotals(expenseRows, rs.getLong(1), rs.getLong(2));
+                }
+            }
+        } finally {
+            ResourcesUtils.closeConnection(conn);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns each participant name a dense index from 0 to size - 1, for use as a row or column of a debt matrix.
+ */
+public final class ParticipantIndex {
+    private final Map<String, Integer> nameToIndex;
+    private final List<String> names;
+
+    public ParticipantIndex(int expectedSize) {
+        nameToIndex = new HashMap<>(Math.max(16, (int) (expectedSize / 0.75f) + 1));
+        names = new ArrayList<>(expectedSize);
+    }
+
+    public ParticipantIndex(List<String> initialNames) {
+        this(initialNames.size());
+        for (String name : initialNames) {
+            indexOf(name);
+        }
+    }
+
+    /**
+     * Returns the index of {@code name}, adding it if it hasn't been seen yet.
+     */
+    public int indexOf(String name) {
+        Integer index = nameToIndex.get(name);
+        if (index == null) {
+            index = names.size();
+            nameToIndex.put(name, index);
+            names.add(name);
+        }
+        return index;
+    }
+
+    // Returns -1 when the name is not part of the index
+    public int find(String name) {
+        Integer index = nameToIndex.get(name);
+        return index == null ? -1 : index;
+    }
+
+    public String nameAt(int index) {
+        return names.get(index);
+    }
+
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    public int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,246 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns everyone's net position into a short list of transfers that settles all debts.
+ * <p>
+ * Net positions are in cents: positive means the participant is owed money, negative means they owe money. The
+ * positions must add up to zero.
+ * <ul>
+ *     <li>{@link Mode#GREEDY} repeatedly matches the largest creditor with the largest debtor using two heaps. It
+ *     needs at most n - 1 transfers and runs in O(n log n).</li>
+ *     <li>{@link Mode#EXACT} finds the fewest possible transfers by splitting the group into the largest number of
+ *     subgroups that settle among themselves. It is exponential, so it is limited to
+ *     {@link #MAX_EXACT_PARTICIPANTS} people with a non-zero position.</li>
+ * </ul>
+ */
+public class SettlementPlanner {
+    public static final int MAX_EXACT_PARTICIPANTS = 20;
+
+    public enum Mode {
+        GREEDY,
+        EXACT,
+        // Exact for small groups, greedy otherwise
+        AUTO
+    }
+
+    /**
+     * A single payment of {@code amountCents} from the participant at index {@code from} to the one at {@code to}.
+     */
+    public record Transfer(int from, int to, long amountCents) {
+    }
+
+    /**
+     * Computes everyone's net position from a debt matrix where entry (row, col) is what col owes row.
+     */
+    public long[] calculateNetPositions(SparseDebtMatrix debtMatrix) {
+        return new NetDebtEngine().calculateNetPositions(debtMatrix);
+    }
+
+    public List<Transfer> plan(long[] netPositions, Mode mode) {
+        long total = 0;
+        int nonZero = 0;
+        for (long position : netPositions) {
+            total += position;
+            if (position != 0) {
+                nonZero++;
+            }
+        }
+        if (total != 0) {
+            throw new IllegalArgumentException("Net positions must add up to zero, but add up to " + total);
+        }
+
+        if (mode == Mode.EXACT && nonZero > MAX_EXACT_PARTICIPANTS) {
+            throw new IllegalArgumentException("Exact settlement supports at most " + MAX_EXACT_PARTICIPANTS
+                    + " participants with a non-zero position, got " + nonZero);
+        }
+        if (mode == Mode.EXACT || (mode == Mode.AUTO && nonZero <= MAX_EXACT_PARTICIPANTS)) {
+            return planExact(netPositions);
+        }
+        return planGreedy(netPositions);
+    }
+
+    private List<Transfer> planGreedy(long[] netPositions) {
+        int n = netPositions.length;
+        long[] remaining = netPositions.clone();
+        IndexHeap creditors = new IndexHeap(n, remaining, false);
+        IndexHeap debtors = new IndexHeap(n, remaining, true);
+
+        for (int i = 0; i < n; i++) {
+            if (remaining[i] > 0) {
+                creditors.push(i);
+            } else if (remaining[i] < 0) {
+                debtors.push(i);
+            }
+        }
+
+        List<Transfer> transfers = new ArrayList<>();
+        while (!creditors.isEmpty() && !debtors.isEmpty()) {
+            int creditor = creditors.pop();
+            int debtor = debtors.pop();
+            long amount = Math.min(remaining[creditor], -remaining[debtor]);
+            transfers.add(new Transfer(debtor, creditor, amount));
+
+            remaining[creditor] -= amount;
+            remaining[debtor] += amount;
+            if (remaining[creditor] > 0) {
+                creditors.push(creditor);
+            }
+            if (remaining[debtor] < 0) {
+                debtors.push(debtor);
+            }
+        }
+        return transfers;
+    }
+
+    /*
+     * A group of k people whose positions sum to zero can always be settled with k - 1 transfers, so the fewest
+     * transfers overall is (number of people) - (largest number of disjoint zero-sum subgroups). The subgroup count is
+     * found with a DP over bitmasks, then each subgroup is settled greedily.
+     */
+    private List<Transfer> planExact(long[] netPositions) {
+        int[] people = indexesOfNonZero(netPositions);
+        int k = people.length;
+        List<Transfer> transfers = new ArrayList<>();
+        if (k == 0) {
+            return transfers;
+        }
+
+        int full = (1 << k) - 1;
+        long[] maskSum = new long[1 << k];
+        for (int mask = 1; mask <= full; mask++) {
+            int lowest = Integer.numberOfTrailingZeros(mask);
+            maskSum[mask] = maskSum[mask & (mask - 1)] + netPositions[people[lowest]];
+        }
+
+        // groups[mask] = the largest number of zero-sum subgroups that the people in mask can be split into
+        byte[] groups = new byte[1 << k];
+        for (int mask = 1; mask <= full; mask++) {
+            int best = 0;
+            for (int bits = mask; bits != 0; bits &= bits - 1) {
+                int without = mask & ~Integer.lowestOneBit(bits);
+                best = Math.max(best, groups[without]);
+            }
+            groups[mask] = (byte) (best + (maskSum[mask] == 0 ? 1 : 0));
+        }
+
+        // Walk back from everyone to no one, removing one person per step along a path that achieves groups[full].
+        // The zero-sum sets met on the way are nested, and the people between two consecutive ones form a subgroup.
+        List<Integer> zeroSumMasks = new ArrayList<>();
+        int mask = full;
+        while (mask != 0) {
+            boolean zeroSum = maskSum[mask] == 0;
+            if (zeroSum) {
+                zeroSumMasks.add(mask);
+            }
+            int expected = groups[mask] - (zeroSum ? 1 : 0);
+            for (int bits = mask; bits != 0; bits &= bits - 1) {
+                int without = mask & ~Integer.lowestOneBit(bits);
+                if (groups[without] == expected) {
+                    mask = without;
+                    break;
+                }
+            }
+        }
+        zeroSumMasks.add(0);
+
+        List<Integer> subgroupMasks = new ArrayList<>();
+        for (int i = 0; i + 1 < zeroSumMasks.size(); i++) {
+            subgroupMasks.add(zeroSumMasks.get(i) & ~zeroSumMasks.get(i + 1));
+        }
+
+        long[] subgroupPositions = new long[netPositions.length];
+        for (int subgroup : subgroupMasks) {
+            Arrays.fill(subgroupPositions, 0);
+            for (int bits = subgroup; bits != 0; bits &= bits - 1) {
+                int person = people[Integer.numberOfTrailingZeros(bits)];
+                subgroupPositions[person] = netPositions[person];
+            }
+            transfers.addAll(planGreedy(subgroupPositions));
+        }
+        return transfers;
+    }
+
+    private static int[] indexesOfNonZero(long[] netPositions) {
+        int count = 0;
+        for (long position : netPositions) {
+            if (position != 0) {
+                count++;
+            }
+        }
+        int[] indexes = new int[count];
+        int next = 0;
+        for (int i = 0; i < netPositions.length; i++) {
+            if (netPositions[i] != 0) {
+                indexes[next++] = i;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Binary max-heap of participant indexes ordered by the magnitude of their remaining position. Works on primitive
+     * arrays so planning for large groups doesn't box every index.
+     */
+    private static class IndexHeap {
+        private final int[] heap;
+        private final long[] positions;
+        private final boolean negate;
+        private int size;
+
+        IndexHeap(int capacity, long[] positions, boolean negate) {
+            this.heap = new int[capacity];
+            this.positions = positions;
+            this.negate = negate;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(int index) {
+            int i = size++;
+            heap[i] = index;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (key(heap[parent]) >= key(heap[i])) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        int pop() {
+            int top = heap[0];
+            heap[0] = heap[--size];
+            int i = 0;
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= size) {
+                    break;
+                }
+                int largest = left + 1 < size && key(heap[left + 1]) > key(heap[left]) ? left + 1 : left;
+                if (key(heap[i]) >= key(heap[largest])) {
+                    break;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+            return top;
+        }
+
+        private long key(int index) {
+            return negate ? -positions[index] : positions[index];
+        }
+
+        private void swap(int a, int b) {
+            int tmp = heap[a];
+            heap[a] = heap[b];
+            heap[b] = tmp;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.util.Arrays;
+
+/**
+ * Square matrix of amounts in cents where entry (row, col) is what the participant at {@code col} owes the participant at
+ * {@code row}.
+ * <p>
+ * Most pairs of participants never share an expense, so each row only stores its non-zero entries in a small
+ * open-addressing hash table of column index to amount. Memory grows with the number of debts rather than with the
+ * square of the number of participants.
+ * <p>
+ * The matrix is not synchronized, but each row has its own storage, so different threads may write to different rows
+ * at the same time.
+ */
+public class SparseDebtMatrix {
+    private static final int EMPTY = -1;
+    private static final int INITIAL_ROW_CAPACITY = 4;
+
+    private int size;
+    // Per row: hash slots of column indexes and their amounts, allocated on first write
+    private int[][] columns;
+    private long[][] amounts;
+    private int[] rowEntryCounts;
+
+    @FunctionalInterface
+    public interface EntryVisitor {
+        void visit(int row, int col, long amount);
+    }
+
+    public SparseDebtMatrix(int size) {
+        this.size = size;
+        this.columns = new int[size][];
+        this.amounts = new long[size][];
+        this.rowEntryCounts = new int[size];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Grows the matrix to at least {@code minSize} participants, keeping the existing entries. Used when rows are
+     * streamed in and a participant turns up that wasn't known when the matrix was created.
+     */
+    public void ensureSize(int minSize) {
+        if (minSize <= size) {
+            return;
+        }
+        int capacity = columns.length;
+        if (minSize > capacity) {
+            capacity = Math.max(minSize, capacity + (capacity >> 1) + 1);
+            columns = Arrays.copyOf(columns, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            rowEntryCounts = Arrays.copyOf(rowEntryCounts, capacity);
+        }
+        size = minSize;
+    }
+
+    public long entryCount() {
+        long entryCount = 0;
+        for (int row = 0; row < size; row++) {
+            entryCount += rowEntryCounts[row];
+        }
+        return entryCount;
+    }
+
+    public int rowEntryCount(int row) {
+        return rowEntryCounts[row];
+    }
+
+    public long get(int row, int col) {
+        int[] rowColumns = columns[row];
+        if (rowColumns == null) {
+            return 0;
+        }
+        int slot = findSlot(rowColumns, col);
+        return rowColumns[slot] == col ? amounts[row][slot] : 0;
+    }
+
+    public void set(int row, int col, long amount) {
+        int slot = slotForWrite(row, col);
+        amounts[row][slot] = amount;
+    }
+
+    public void add(int row, int col, long amount) {
+        int slot = slotForWrite(row, col);
+        amounts[row][slot] += amount;
+    }
+
+    /**
+     * Visits the stored entries of one row in ascending column order.
+     */
+    public void forEachInRow(int row, EntryVisitor visitor) {
+        int[] rowColumns = columns[row];
+        if (rowColumns == null) {
+            return;
+        }
+        int[] sortedColumns = new int[rowEntryCounts[row]];
+        int count = 0;
+        for (int col : rowColumns) {
+            if (col != EMPTY) {
+                sortedColumns[count++] = col;
+            }
+        }
+        Arrays.sort(sortedColumns);
+        for (int col : sortedColumns) {
+            visitor.visit(row, col, amounts[row][findSlot(rowColumns, col)]);
+        }
+    }
+
+    /**
+     * Visits every stored entry, row by row.
+     */
+    public void forEach(EntryVisitor visitor) {
+        for (int row = 0; row < size; row++) {
+            forEachInRow(row, visitor);
+        }
+    }
+
+    private int slotForWrite(int row, int col) {
+        if (col < 0 || col >= size) {
+            throw new IndexOutOfBoundsException("Column " + col + " is outside a matrix of size " + size);
+        }
+        int[] rowColumns = columns[row];
+        if (rowColumns == null) {
+            rowColumns = new int[INITIAL_ROW_CAPACITY];
+            Arrays.fill(rowColumns, EMPTY);
+            columns[row] = rowColumns;
+            amounts[row] = new long[INITIAL_ROW_CAPACITY];
+        }
+
+        int slot = findSlot(rowColumns, col);
+        if (rowColumns[slot] == col) {
+            return slot;
+        }
+
+        // Keep the load factor at or below one half so probe sequences stay short
+        if ((rowEntryCounts[row] + 1) * 2 > rowColumns.length) {
+            grow(row);
+            rowColumns = columns[row];
+            slot = findSlot(rowColumns, col);
+        }
+        rowColumns[slot] = col;
+        rowEntryCounts[row]++;
+        return slot;
+    }
+
+    // Linear probing, returns either the slot holding col or the empty slot where it belongs
+    private static int findSlot(int[] rowColumns, int col) {
+        int mask = rowColumns.length - 1;
+        int slot = (col * 0x9E3779B9) >>> 1 & mask;
+        while (rowColumns[slot] != EMPTY && rowColumns[slot] != col) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow(int row) {
+        int[] oldColumns = columns[row];
+        long[] oldAmounts = amounts[row];
+        int[] newColumns = new int[oldColumns.length * 2];
+        long[] newAmounts = new long[oldColumns.length * 2];
+        Arrays.fill(newColumns, EMPTY);
+
+        for (int i = 0; i < oldColumns.length; i++) {
+            if (oldColumns[i] != EMPTY) {
+                int slot = findSlot(newColumns, oldColumns[i]);
+                newColumns[slot] = oldColumns[i];
+                newAmounts[slot] = oldAmounts[i];
+            }
+        }
+        columns[row] = newColumns;
+        amounts[row] = newAmounts;
+    }
+}
@@ -0,0 +1,118 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The few statements that differ between MySQL and the embedded H2 database. H2 runs in its MySQL compatibility mode,
+ * which accepts the schema, {@code INSERT IGNORE}, {@code LIMIT} and the rest of the queries as they are; only the
+ * statements below need their own form.
+ */
+public enum SqlDialect {
+    MYSQL,
+    H2;
+
+    /**
+     * @return the dialect of the configured database
+     */
+    public static SqlDialect current() {
+        return forUrl(DatabaseConnectionManager.getDatabaseUrl());
+    }
+
+    public static SqlDialect forUrl(String dbUrl) {
+        return dbUrl != null && dbUrl.startsWith("jdbc:h2:") ? H2 : MYSQL;
+    }
+
+    /**
+     * Inserts the rows of {@code selectQuery} into {@code table}, adding {@code valueColumn} to the existing row
+     * instead when the key is already there. The select must name its columns as in {@code keyColumns} followed by
+     * {@code valueColumn}.
+     */
+    public String upsertAdding(String table, String[] keyColumns, String valueColumn, String selectQuery) {
+        String columns = String.join(", ", keyColumns) + ", " + valueColumn;
+        if (this == MYSQL) {
+            return "INSERT INTO " + table + " (" + columns + ") " + selectQuery + " " +
+                    "ON DUPLICATE KEY UPDATE " + valueColumn + " = " + valueColumn + " + VALUES(" + valueColumn + ")";
+        }
+
+        StringBuilder merge = new StringBuilder("MERGE INTO ").append(table).append(" t USING (").append(selectQuery)
+                .append(") s ON (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < keyColumns.length; i++) {
+            merge.append(i == 0 ? "" : " AND ").append("t.").append(keyColumns[i]).append(" = s.").append(keyColumns[i]);
+            values.append("s.").append(keyColumns[i]).append(", ");
+        }
+        values.append("s.").append(valueColumn);
+        return merge.append(") WHEN MATCHED THEN UPDATE SET ").append(valueColumn).append(" = t.").append(valueColumn)
+                .append(" + s.").append(valueColumn)
+                .append(" WHEN NOT MATCHED THEN INSERT (").append(columns).append(") VALUES (").append(values)
+                .append(")").toString();
+    }
+
+    /**
+     * Suffix of a select that locks the rows it reads until the transaction ends. H2 has no shared row locks.
+     */
+    public String lockingReadClause() {
+        return this == MYSQL ? " LOCK IN SHARE MODE" : " FOR UPDATE";
+    }
+
+    /**
+     * @return whether {@code e} reports a table that doesn't exist
+     */
+    public boolean isTableNotFound(SQLException e) {
+        // H2 reports a table missing from an empty database with a state of its own
+        return "42S02".equals(e.getSQLState()) || this == H2 && "42S04".equals(e.getSQLState());
+    }
+
+    /**
+     * Takes the lock named {@code name} for the session of {@code conn}, waiting up to {@code timeoutSeconds} for
+     * another session to release it. H2 has nothing to lock: a file database is only ever open in one process.
+     *
+     * @return false if the lock is still held by another session after the timeout
+     */
+    public boolean acquireNamedLock(Connection conn, String name, int timeoutSeconds) throws SQLException {
+        if (this == H2) {
+            return true;
+        }
+        try (PreparedStatement ps = conn.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            ps.setString(1, name);
+            ps.setInt(2, timeoutSeconds);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getInt(1) == 1;
+            }
+        }
+    }
+
+    /**
+     * Releases a lock taken with {@link #acquireNamedLock}. Must be called before the connection goes back to the pool,
+     * since the lock belongs to the session rather than to a transaction.
+     */
+    public void releaseNamedLock(Connection conn, String name) throws SQLException {
+        if (this == MYSQL) {
+            try (PreparedStatement ps = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+                ps.setString(1, name);
+                ps.executeQuery().close();
+            }
+        }
+    }
+
+    public String dropIndex(String tableName, String indexName) {
+        return this == MYSQL ? "DROP INDEX " + indexName + " ON " + tableName : "DROP INDEX " + indexName;
+    }
+
+    /**
+     * Turns the foreign key and unique checks of this session off or back on, for bulk loads of rows that are known to
+     * be consistent. H2 can only skip the foreign key checks.
+     */
+    public void setConstraintChecks(Statement stmt, boolean enabled) throws SQLException {
+        if (this == MYSQL) {
+            stmt.execute("SET FOREIGN_KEY_CHECKS = " + (enabled ? 1 : 0));
+            stmt.execute("SET UNIQUE_CHECKS = " + (enabled ? 1 : 0));
+        } else {
+            stmt.execute("SET REFERENTIAL_INTEGRITY " + (enabled ? "TRUE" : "FALSE"));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures cold start: the time from JVM launch until the first prompt can be shown, and until the first query has
+ * returned.
+ * <p>
+ * Every run is a fresh JVM, since class loading, logging setup and the connection pool are exactly what is being
+ * measured. Usage: {@code StartupBenchmark [runs]}, which launches the given number of child JVMs (5 by default) and
+ * prints the minimum, median and maximum of each timing.
+ */
+public class StartupBenchmark {
+    private static final String SINGLE_RUN_FLAG = "--single-run";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(SINGLE_RUN_FLAG)) {
+            runOnce();
+            return;
+        }
+
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        long[] promptTimes = new long[runs];
+        long[] queryTimes = new long[runs];
+
+        for (int i = 0; i < runs; i++) {
+            long[] timings = launchChild();
+            promptTimes[i] = timings[0];
+            queryTimes[i] = timings[1];
+            System.out.println("Run " + (i + 1) + ": first prompt " + timings[0] + " ms, first query " + timings[1] + " ms");
+        }
+
+        System.out.println();
+        printSummary("Time to first prompt", promptTimes);
+        printSummary("Time to first query", queryTimes);
+    }
+
+    // Does what App does on start-up, then runs a query, reporting both times relative to the JVM start
+    private static void runOnce() throws SQLException {
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+        App.startSchemaBootstrap();
+        System.out.println("Welcome to the Bill Splitter CLI.");
+        long firstPrompt = System.currentTimeMillis() - jvmStart;
+
+        App.awaitSchema();
+        Connection conn = null;
+        try {
+            conn = DatabaseConnectionManager.establishConnection();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM expense")) {
+                rs.next();
+            }
+        } finally {
+            ResourcesUtils.closeConnection(conn);
+        }
+        long firstQuery = System.currentTimeMillis() - jvmStart;
+
+        System.out.println("TIMINGS " + firstPrompt + " " + firstQuery);
+        DatabaseConnectionManager.shutdown();
+    }
+
+    private static long[] launchChild() throws IOException, InterruptedException {
+        String javaBinary = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>(List.of(javaBinary, "-cp", System.getProperty("java.class.path"),
+                StartupBenchmark.class.getName(), SINGLE_RUN_FLAG));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        long[] timings = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("TIMINGS ")) {
+                    String[] parts = line.split(" ");
+                    timings = new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+                }
+            }
+        }
+
+        int exitCode = process.waitFor();
+        if (timings == null) {
+            throw new IllegalStateException("Benchmark run exited with code " + exitCode + " without reporting timings");
+        }
+        return timings;
+    }
+
+    private static void printSummary(String label, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-22s min %6d ms   median %6d ms   max %6d ms%n", label, sorted[0],
+                sorted[sorted.length / 2], sorted[sorted.length - 1]);
+    }
+}
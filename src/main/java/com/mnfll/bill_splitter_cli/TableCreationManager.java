@@ -1,46 +1,152 @@
 package com.mnfll.bill_splitter_cli;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Create tables if they don't exist
+ * Brings the database schema up to date through numbered migrations.
+ * <p>
+ * The versions that have been applied are recorded in `schema_version`, so a database that is already current costs a
+ * single query on a single connection and runs no DDL. Every migration also checks what already exists before
+ * changing anything, because databases created before versioning have some of the tables and indexes but no version
+ * recorded.
+ * <p>
+ * Migrations run under a named database lock, so two processes starting against the same database at once don't
+ * apply the same step twice: the second waits, then finds the schema current.
  */
 public class TableCreationManager {
-    public void createUserTable() {
-        Connection connection = null;
+    private static final String MIGRATION_LOCK = "bill_splitter.schema_migration";
+    private static final int MIGRATION_LOCK_TIMEOUT_SECONDS = 300;
+    // Duplicate user names listed when migration 2 can't create the unique index
+    private static final int MAX_DUPLICATES_REPORTED = 10;
 
-        try {
-            connection = DatabaseConnectionManager.establishConnection();
-            // Create the `user` table if it doesn't exist
-            String createTableQuery = "CREATE TABLE IF NOT EXISTS user (" +
-                    "user_id INT AUTO_INCREMENT PRIMARY KEY, " +
-                    "user_name VARCHAR(255)" +
-                    ")";
+    @FunctionalInterface
+    private interface MigrationStep {
+        void apply(Connection connection) throws SQLException;
+    }
+
+    private record Migration(int version, String description, MigrationStep step) {
+    }
+
+    private final List<Migration> migrations = List.of(
+            new Migration(1, "Create user, expense and user_expense tables", this::createBaseTables),
+            new Migration(2, "Add unique index on user.user_name", this::createUserNameUniqueIndex),
+            // Before user_balance, since building the balances bumps the generation counter
+            new Migration(3, "Create ledger_generation table", this::createLedgerGenerationTable),
+            new Migration(4, "Create user_balance table", this::createUserBalanceTable),
+            new Migration(5, "Add secondary and covering indexes", this::createSecondaryIndexes),
+            new Migration(6, "Create combined_user_expense view", this::createCombinedUserExpenseView)
+    );
+
+    public int getLatestVersion() {
+        return migrations.get(migrations.size() - 1).version();
+    }
 
-            Statement createTableStatement = connection.createStatement();
-            int tableCreated = createTableStatement.executeUpdate(createTableQuery);
+    /**
+     * Applies every migration newer than the recorded schema version.
+     *
+     * @return the schema version after migrating, which is always the latest
+     * @throws IllegalStateException if a migration fails or another process holds the migration lock for too long.
+     *                               The steps before the failed one stay recorded, so the next start carries on from
+     *                               there.
+     */
+    public int migrate() {
+        Connection connection = null;
+        int currentVersion = 0;
+        Migration failed = null;
+
+        // Also keeps two threads of this process apart, which is all an H2 file database needs
+        synchronized (TableCreationManager.class) {
+            try {
+                connection = DatabaseConnectionManager.establishConnection();
+                currentVersion = getSchemaVersion(connection);
+                if (currentVersion >= getLatestVersion()) {
+                    return currentVersion;
+                }
 
-            if (tableCreated >= 0) {
-                System.out.println("Table `user` created successfully");
-            } else {
-                System.out.println("Failed to create table `user`");
+                SqlDialect dialect = SqlDialect.current();
+                if (!dialect.acquireNamedLock(connection, MIGRATION_LOCK, MIGRATION_LOCK_TIMEOUT_SECONDS)) {
+                    throw new IllegalStateException("Timed out after " + MIGRATION_LOCK_TIMEOUT_SECONDS
+                            + " s waiting for another process to finish migrating the schema");
+                }
+                try {
+                    // Another process may have migrated while this one waited for the lock
+                    currentVersion = getSchemaVersion(connection);
+                    if (currentVersion == 0) {
+                        createSchemaVersionTable(connection);
+                    }
+                    for (Migration migration : migrations) {
+                        if (migration.version() > currentVersion) {
+                            failed = migration;
+                            migration.step().apply(connection);
+                            recordVersion(connection, migration);
+                            currentVersion = migration.version();
+                            failed = null;
+                            System.out.println("Schema migrated to version " + currentVersion + ": "
+                                    + migration.description());
+                        }
+                    }
+                } finally {
+                    dialect.releaseNamedLock(connection, MIGRATION_LOCK);
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(failed == null
+                        ? "Failed to migrate the schema from version " + currentVersion + ": " + e.getMessage()
+                        : "Schema migration " + failed.version() + " (" + failed.description() + ") failed: "
+                        + e.getMessage(), e);
+            } finally {
+                ResourcesUtils.closeConnection(connection);
             }
+        }
+        return currentVersion;
+    }
+
+    // Returns 0 when no version has been recorded yet. A single query, a missing table is reported by its SQL state.
+    public int getSchemaVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT MAX(version) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
         } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            ResourcesUtils.closeConnection(connection);
+            if (SqlDialect.current().isTableNotFound(e)) {
+                return 0;
+            }
+            throw e;
         }
     }
 
-    public void createExpenseTable() {
-        Connection connection = null;
+    private void createSchemaVersionTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version (" +
+                    "version INT PRIMARY KEY, " +
+                    "description VARCHAR(255) NOT NULL, " +
+                    "applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP" +
+                    ")");
+        }
+    }
 
-        try {
-            connection = DatabaseConnectionManager.establishConnection();
-            // Create the table if it doesn't exist
-            String createTableQuery = "CREATE TABLE IF NOT EXISTS expense (" +
+    private void recordVersion(Connection connection, Migration migration) throws SQLException {
+        String insertQuery = "INSERT INTO schema_version (version, description) VALUES (?, ?)";
+        try (PreparedStatement ps = connection.prepareStatement(insertQuery)) {
+            ps.setInt(1, migration.version());
+            ps.setString(2, migration.description());
+            ps.executeUpdate();
+        }
+    }
+
+    private void createBaseTables(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS user (" +
+                    "user_id INT AUTO_INCREMENT PRIMARY KEY, " +
+                    "user_name VARCHAR(255), " +
+                    "UNIQUE KEY uk_user_name (user_name)" +
+                    ")");
+
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS expense (" +
                     "expense_id INT AUTO_INCREMENT PRIMARY KEY, " +
                     "expense_date DATE NOT NULL, " +
                     "establishment_name VARCHAR(255) NOT NULL, " +
@@ -49,30 +155,9 @@ public class TableCreationManager {
                     "split_count INT NOT NULL, " +
                     "creditor_id INT NOT NULL," +
                     "creditor_name VARCHAR(255) NOT NULL" +
-                    ")";
-
-            Statement createTableStatement = connection.createStatement();
-            int tableCreated = createTableStatement.executeUpdate(createTableQuery);
+                    ")");
 
-            if (tableCreated >= 0) {
-                System.out.println("Table 'expense' created successfully");
-            } else {
-                System.out.println("Failed to create table 'expenses'");
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            ResourcesUtils.closeConnection(connection);
-        }
-    }
-
-    public void createUserExpenseTable() {
-        Connection connection = null;
-
-        try {
-            connection = DatabaseConnectionManager.establishConnection();
-            // Create the `user_expense` table if it doesn't exist
-            String createQuery = "CREATE TABLE IF NOT EXISTS user_expense (" +
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS user_expense (" +
                     "expense_id INT NOT NULL, " +
                     "creditor_id INT NOT NULL, " +
                     "debtor_id INT NOT NULL, " +
@@ -81,25 +166,140 @@ public class TableCreationManager {
                     "PRIMARY KEY (expense_id, debtor_id), " +
                     "FOREIGN KEY (expense_id) REFERENCES expense(expense_id), " +
                     "FOREIGN KEY (debtor_id) REFERENCES user(user_id)" +
+                    ")");
+        }
+        System.out.println("Tables `user`, `expense` and `user_expense` created successfully");
+    }
+
+    // Tables created before user names were unique don't have the index yet, and may hold the same name twice
+    private void createUserNameUniqueIndex(Connection connection) throws SQLException {
+        if (!indexExists(connection, "user", "uk_user_name")) {
+            List<String> duplicates = new ArrayList<>();
+            int duplicateCount = 0;
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT user_name, COUNT(*) FROM user " +
+                         "GROUP BY user_name HAVING COUNT(*) > 1 ORDER BY user_name")) {
+                while (rs.next()) {
+                    if (duplicateCount++ < MAX_DUPLICATES_REPORTED) {
+                        duplicates.add("'" + rs.getString(1) + "' (" + rs.getInt(2) + " users)");
+                    }
+                }
+            }
+            // Merging the users would mean choosing which id each expense keeps, so it is left to the owner of the data
+            if (duplicateCount > 0) {
+                throw new SQLException("User names must be unique, but " + duplicateCount + " name(s) belong to more " +
+                        "than one user: " + String.join(", ", duplicates) +
+                        (duplicateCount > duplicates.size() ? " and more" : "") +
+                        ". Merge or rename those users, then start the application again.");
+            }
+
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("CREATE UNIQUE INDEX uk_user_name ON user (user_name)");
+            }
+            System.out.println("Unique index on `user`.`user_name` created successfully");
+        }
+    }
+
+    // The balance table is derived from `user_expense`, so it's filled from the existing rows when first created
+    private void createUserBalanceTable(Connection connection) throws SQLException {
+        boolean tableExists;
+        try (ResultSet rs = connection.getMetaData().getTables(connection.getCatalog(), null, "user_balance", null)) {
+            tableExists = rs.next();
+        }
+
+        if (!tableExists) {
+            String createQuery = "CREATE TABLE IF NOT EXISTS user_balance (" +
+                    "creditor_id INT NOT NULL, " +
+                    "debtor_id INT NOT NULL, " +
+                    "amount_owed DECIMAL(12,2) NOT NULL DEFAULT 0, " +
+                    "PRIMARY KEY (creditor_id, debtor_id)" +
                     ")";
 
-            Statement createTableStatement = connection.createStatement();
-            int tableCreated = createTableStatement.executeUpdate(createQuery);
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate(createQuery);
+            }
+            int rowsWritten = new JdbcBalanceDAO().rebuildBalances(connection);
+            System.out.println("Table 'user_balance' created successfully with " + rowsWritten + " balance(s)");
+        }
+    }
+
+    // Single-row counter bumped by every write that changes the debts, see DebtSummaryCache
+    private void createLedgerGenerationTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS ledger_generation (" +
+                    "id TINYINT PRIMARY KEY, " +
+                    "generation BIGINT NOT NULL" +
+                    ")");
+            statement.executeUpdate("INSERT IGNORE INTO ledger_generation (id, generation) VALUES (1, 0)");
+        }
+        System.out.println("Table `ledger_generation` created successfully");
+    }
+
+    /**
+     * @param deferrable whether a bulk load may drop the index and build it again afterwards, which is not the case for
+     *                   indexes a foreign key may depend on
+     */
+    private record SecondaryIndex(String tableName, String indexName, String columns, boolean deferrable) {
+    }
+
+    private static final List<SecondaryIndex> SECONDARY_INDEXES = List.of(
+            // Shares owed by a user, used by the orphan user check and by debtor lookups
+            new SecondaryIndex("user_expense", "idx_user_expense_debtor", "debtor_id, payment_status", false),
+            // Covers the balance rebuild and consistency check, which group the unpaid shares by pair without
+            // touching the table rows
+            new SecondaryIndex("user_expense", "idx_user_expense_balance",
+                    "creditor_id, debtor_id, payment_status, amount_owed", true),
+            // Lists expenses in date order and pages through them by (date, id)
+            new SecondaryIndex("expense", "idx_expense_date", "expense_date, expense_id", true),
+            // Expenses paid by a user, used by the orphan user check
+            new SecondaryIndex("expense", "idx_expense_creditor", "creditor_id", true)
+    );
 
-            if (tableCreated >= 0) {
-                System.out.println("Table 'user_expense' created successfully");
-            } else {
-                System.out.println("Failed to create 'user_expense' table");
+    public void createSecondaryIndexes(Connection connection) throws SQLException {
+        for (SecondaryIndex index : SECONDARY_INDEXES) {
+            createIndexIfMissing(connection, index.tableName(), index.indexName(), index.columns());
+        }
+    }
+
+    /**
+     * Drops the secondary indexes that {@link #createSecondaryIndexes} can rebuild, so a bulk load only maintains the
+     * primary keys and each index is then built once from the loaded rows.
+     */
+    public void dropDeferrableIndexes(Connection connection) throws SQLException {
+        for (SecondaryIndex index : SECONDARY_INDEXES) {
+            if (index.deferrable() && indexExists(connection, index.tableName(), index.indexName())) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate(SqlDialect.current().dropIndex(index.tableName(), index.indexName()));
+                }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            ResourcesUtils.closeConnection(connection);
         }
     }
 
-    public void createCombinedUserExpenseView() {
-        Connection connection = null;
+    private void createIndexIfMissing(Connection connection, String tableName, String indexName, String columns)
+            throws SQLException {
+        if (indexExists(connection, tableName, indexName)) {
+            return;
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE INDEX " + indexName + " ON " + tableName + " (" + columns + ")");
+        }
+        System.out.println("Index `" + indexName + "` on `" + tableName + "` created successfully");
+    }
+
+    // Through the driver's metadata, which both MySQL and H2 answer for the current database
+    private boolean indexExists(Connection connection, String tableName, String indexName) throws SQLException {
+        try (ResultSet rs = connection.getMetaData().getIndexInfo(connection.getCatalog(), null, tableName, false,
+                true)) {
+            while (rs.next()) {
+                if (indexName.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void createCombinedUserExpenseView(Connection connection) throws SQLException {
         String createViewQuery = "CREATE OR REPLACE VIEW combined_user_expense AS " +
                 "SELECT ue.expense_id, e.expense_date, e.establishment_name, e.expense_name, " +
                 "ue.creditor_id, u1.user_name AS creditor_name, " +
@@ -109,15 +309,9 @@ public class TableCreationManager {
                 "JOIN user u2 ON ue.debtor_id = u2.user_id " +
                 "JOIN expense e ON ue.expense_id = e.expense_id";
 
-        try {
-            connection = DatabaseConnectionManager.establishConnection();
-            Statement statement = connection.createStatement();
+        try (Statement statement = connection.createStatement()) {
             statement.execute(createViewQuery);
-            System.out.println("View `combined_user_expense` created successfully.");
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            ResourcesUtils.closeConnection(connection);
         }
+        System.out.println("View `combined_user_expense` created successfully.");
     }
 }
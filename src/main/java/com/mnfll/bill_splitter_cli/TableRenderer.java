@@ -0,0 +1,320 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Locale;
+
+/**
+ * Writes tables of rows as aligned text, CSV or JSON lines, selected with {@code output.format}.
+ * <p>
+ * Everything goes through one large buffered writer, so the output is written in big blocks rather than one
+ * synchronized {@code printf} per cell. Column widths are fixed before the first row, text is padded by hand and
+ * numbers are appended directly with {@link StringBuilder#append(long)} and {@link Money#appendTo}, so no format
+ * string is parsed per cell.
+ * <p>
+ * Tables are built with {@link #columns}, then {@link #cell} and {@link #endRow()} for each row, or in one go from a
+ * result set with {@link #writeResultSet}. Call {@link #close()} when done, which flushes the buffer but leaves
+ * standard output open.
+ */
+public class TableRenderer implements Closeable {
+    private static final String FORMAT_KEY = "output.format";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Widest a text column is padded to, longer values are printed in full and push the rest of the row along
+    private static final int MAX_COLUMN_WIDTH = 20;
+
+    public enum Format {
+        TEXT,
+        CSV,
+        JSONL;
+
+        public static Format parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown output format '" + name + "', expected text, csv or jsonl");
+            }
+        }
+    }
+
+    private final Writer out;
+    private final boolean closeWriter;
+    private final Format format;
+    private final StringBuilder cellText = new StringBuilder(64);
+
+    private String[] names = new String[0];
+    private int[] widths = new int[0];
+    private boolean[] numeric = new boolean[0];
+    // Columns of the current result set read with getLong, to skip the driver's string conversion
+    private boolean[] integerColumns = new boolean[0];
+    private int column;
+
+    public TableRenderer(Writer out, Format format) {
+        this(out, format, true);
+    }
+
+    private TableRenderer(Writer out, Format format, boolean closeWriter) {
+        this.out = out instanceof BufferedWriter ? out : new BufferedWriter(out, BUFFER_SIZE);
+        this.format = format;
+        this.closeWriter = closeWriter;
+    }
+
+    /**
+     * A renderer on standard output in the configured format.
+     */
+    public static TableRenderer toStandardOutput() {
+        return toStandardOutput(getConfiguredFormat());
+    }
+
+    public static TableRenderer toStandardOutput(Format format) {
+        return new TableRenderer(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), format, false);
+    }
+
+    public static Format getConfiguredFormat() {
+        return Format.parse(DatabaseConnectionManager.loadConfig().getProperty(FORMAT_KEY, "text"));
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Starts a table, writing the header row for text and CSV. Numeric columns are right-aligned in text and left
+     * unquoted in JSON.
+     *
+     * @param widths text column widths, a column is never narrower than its name
+     */
+    public TableRenderer columns(String[] names, int[] widths, boolean[] numeric) {
+        this.names = names;
+        this.widths = new int[names.length];
+        this.numeric = numeric;
+        for (int i = 0; i < names.length; i++) {
+            this.widths[i] = Math.max(widths[i], names[i].length() + 1);
+        }
+
+        if (format == Format.JSONL) {
+            return this;
+        }
+        for (String name : names) {
+            cellText.setLength(0);
+            cellText.append(name);
+            writeCell(false);
+        }
+        endRow();
+        return this;
+    }
+
+    public TableRenderer cell(String value) {
+        cellText.setLength(0);
+        if (value != null) {
+            cellText.append(value);
+        }
+        writeCell(value == null);
+        return this;
+    }
+
+    public TableRenderer cell(long value) {
+        cellText.setLength(0);
+        cellText.append(value);
+        writeCell(false);
+        return this;
+    }
+
+    public TableRenderer moneyCell(long cents) {
+        cellText.setLength(0);
+        Money.appendTo(cellText, cents);
+        writeCell(false);
+        return this;
+    }
+
+    public TableRenderer endRow() {
+        try {
+            if (format == Format.JSONL) {
+                out.write(column == 0 ? "{}" : "}");
+            }
+            out.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        column = 0;
+        return this;
+    }
+
+    /**
+     * Starts a table with the columns of a result set, with widths taken from the column metadata.
+     */
+    public TableRenderer columns(ResultSetMetaData metaData) throws SQLException {
+        int columnCount = metaData.getColumnCount();
+        String[] labels = new String[columnCount];
+        int[] columnWidths = new int[columnCount];
+        boolean[] numericColumns = new boolean[columnCount];
+        integerColumns = new boolean[columnCount];
+
+        for (int i = 0; i < columnCount; i++) {
+            labels[i] = metaData.getColumnLabel(i + 1);
+            columnWidths[i] = Math.min(metaData.getColumnDisplaySize(i + 1), MAX_COLUMN_WIDTH - 1) + 1;
+            int type = metaData.getColumnType(i + 1);
+            integerColumns[i] = type == Types.INTEGER || type == Types.BIGINT || type == Types.SMALLINT
+                    || type == Types.TINYINT;
+            numericColumns[i] = integerColumns[i] || type == Types.DECIMAL || type == Types.NUMERIC
+                    || type == Types.DOUBLE || type == Types.FLOAT || type == Types.REAL;
+        }
+        return columns(labels, columnWidths, numericColumns);
+    }
+
+    /**
+     * Writes the row {@code rs} is on, in the columns started with {@link #columns(ResultSetMetaData)}.
+     */
+    public TableRenderer row(ResultSet rs) throws SQLException {
+        for (int i = 0; i < names.length; i++) {
+            if (integerColumns[i]) {
+                long value = rs.getLong(i + 1);
+                if (rs.wasNull()) {
+                    cell(null);
+                } else {
+                    cell(value);
+                }
+            } else {
+                cell(rs.getString(i + 1));
+            }
+        }
+        return endRow();
+    }
+
+    /**
+     * Writes the header and every remaining row of {@code rs}.
+     *
+     * @return the number of rows written
+     */
+    public int writeResultSet(ResultSet rs) throws SQLException {
+        columns(rs.getMetaData());
+        int rowCount = 0;
+        while (rs.next()) {
+            row(rs);
+            rowCount++;
+        }
+        return rowCount;
+    }
+
+    private void writeCell(boolean isNull) {
+        try {
+            switch (format) {
+                case TEXT -> writeText(isNull);
+                case CSV -> writeCsv(isNull);
+                case JSONL -> writeJson(isNull);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        column++;
+    }
+
+    private void writeText(boolean isNull) throws IOException {
+        if (isNull) {
+            cellText.append("null");
+        }
+        int padding = column < widths.length ? widths[column] - cellText.length() : 1;
+        boolean rightAligned = column < numeric.length && numeric[column];
+        if (rightAligned) {
+            pad(padding - 1);
+        }
+        out.append(cellText);
+        // Always keep at least one space between columns
+        pad(rightAligned ? 1 : Math.max(padding, 1));
+    }
+
+    private void pad(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.write(' ');
+        }
+    }
+
+    private void writeCsv(boolean isNull) throws IOException {
+        if (column > 0) {
+            out.write(',');
+        }
+        if (isNull) {
+            return;
+        }
+        boolean needsQuotes = false;
+        for (int i = 0; i < cellText.length() && !needsQuotes; i++) {
+            char c = cellText.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!needsQuotes) {
+            out.append(cellText);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < cellText.length(); i++) {
+            char c = cellText.charAt(i);
+            if (c == '"') {
+                out.write('"');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
+
+    private void writeJson(boolean isNull) throws IOException {
+        out.write(column == 0 ? "{" : ",");
+        writeJsonString(column < names.length ? names[column] : "column" + (column + 1));
+        out.write(':');
+        if (isNull) {
+            out.write("null");
+        } else if (column < numeric.length && numeric[column]) {
+            out.append(cellText);
+        } else {
+            writeJsonString(cellText);
+        }
+    }
+
+    private void writeJsonString(CharSequence text) throws IOException {
+        out.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> out.write("\\\"");
+                case '\\' -> out.write("\\\\");
+                case '\n' -> out.write("\\n");
+                case '\r' -> out.write("\\r");
+                case '\t' -> out.write("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.write("\\u00");
+                        out.write(Character.forDigit(c >> 4, 16));
+                        out.write(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        out.write(c);
+                    }
+                }
+            }
+        }
+        out.write('"');
+    }
+
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closeWriter) {
+            out.close();
+        } else {
+            out.flush();
+        }
+    }
+}
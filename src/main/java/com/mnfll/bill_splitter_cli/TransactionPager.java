@@ -0,0 +1,100 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.sql.SQLException;
+import java.util.Scanner;
+
+/**
+ * Shows the expense listings a page at a time, with commands to move to the next, previous, first or last page.
+ * <p>
+ * Pages are found with keyset pagination on (expense_date, expense_id): the next page is the rows after the last key
+ * shown and the previous page the rows before the first key, rather than an OFFSET the database would have to count
+ * its way through. Each page therefore takes the same time to show however deep into the ledger it is. The page size
+ * is {@code listing.pageSize} expenses and can be changed while paging.
+ */
+public class TransactionPager {
+    private static final String PAGE_SIZE_KEY = "listing.pageSize";
+
+    public enum Listing {
+        EXPENSES,
+        // Every share of each expense, from the combined_user_expense view
+        COMBINED
+    }
+
+    private final Listing listing;
+    private final JdbcExpenseDAO jdbcExpenseDAO = new JdbcExpenseDAO();
+    private int pageSize;
+    private JdbcExpenseDAO.Page currentPage;
+
+    public TransactionPager(Listing listing) {
+        this(listing, DatabaseConnectionManager.getIntProperty(DatabaseConnectionManager.loadConfig(), PAGE_SIZE_KEY, 20));
+    }
+
+    public TransactionPager(Listing listing, int pageSize) {
+        this.listing = listing;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    public void run(Scanner scanner) {
+        if (!showPage(null, true)) {
+            System.out.println("There are no expenses.");
+            return;
+        }
+
+        while (true) {
+            System.out.println();
+            System.out.print("[n]ext page, [p]revious page, [f]irst, [l]ast, [s]ize <expenses per page>, [q]uit: ");
+            String[] input = scanner.nextLine().trim().toLowerCase().split("\\s+");
+
+            switch (input[0]) {
+                case "n", "" -> {
+                    if (!showPage(currentPage.last(), true)) {
+                        System.out.println("This is the last page.");
+                    }
+                }
+                case "p" -> {
+                    if (!showPage(currentPage.first(), false)) {
+                        System.out.println("This is the first page.");
+                    }
+                }
+                case "f" -> showPage(null, true);
+                case "l" -> showPage(null, false);
+                case "s" -> setPageSize(input);
+                case "q" -> {
+                    return;
+                }
+                default -> System.out.println("Invalid input. Please try again.");
+            }
+        }
+    }
+
+    // Returns false, leaving the current page as it is, when there is nothing in that direction
+    private boolean showPage(JdbcExpenseDAO.PageKey key, boolean forward) {
+        try {
+            JdbcExpenseDAO.Page page = listing == Listing.EXPENSES
+                    ? jdbcExpenseDAO.displayExpensePage(key, forward, pageSize)
+                    : jdbcExpenseDAO.displayCombinedExpensePage(key, forward, pageSize);
+            if (page.rowCount() == 0) {
+                return false;
+            }
+            currentPage = page;
+            return true;
+        } catch (SQLException e) {
+            System.err.println("An error occurred while listing the expenses: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void setPageSize(String[] input) {
+        try {
+            int size = Integer.parseInt(input.length > 1 ? input[1] : "");
+            if (size > 0) {
+                pageSize = size;
+                System.out.println("Showing " + pageSize + " expense(s) per page from the next page.");
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the message below
+        }
+        System.out.println("Invalid page size. Please enter a positive number, e.g. 's 50'.");
+    }
+}
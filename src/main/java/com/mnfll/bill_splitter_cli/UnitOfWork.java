@@ -0,0 +1,220 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.Savepoint;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Runs a group of DAO operations on a single connection inside one transaction.
+ * <p>
+ * The work is committed once when it completes normally and rolled back if it throws, so callers never see a
+ * partially written expense.
+ */
+public class UnitOfWork {
+    private static final Logger logger = LogManager.getLogger(UnitOfWork.class);
+
+    // Units of work currently running on this thread, innermost first
+    private static final ThreadLocal<Deque<ActiveUnit>> activeUnits = ThreadLocal.withInitial(ArrayDeque::new);
+    // Held shared by every writing unit of work and exclusively by runExclusive. Fair, so a waiting exclusive action
+    // isn't starved by a steady stream of writers.
+    private static final ReentrantReadWriteLock writeGate = new ReentrantReadWriteLock(true);
+
+    @FunctionalInterface
+    public interface Work<T> {
+        T execute(Connection conn) throws SQLException;
+    }
+
+    public static <T> T execute(Work<T> work) throws SQLException {
+        return execute(work, false);
+    }
+
+    /**
+     * Runs {@code work} in a read-only REPEATABLE READ transaction, so every query it makes sees the same snapshot of
+     * the database.
+     */
+    public static <T> T executeReadOnly(Work<T> work) throws SQLException {
+        return execute(work, true);
+    }
+
+    private static <T> T execute(Work<T> work, boolean readOnly) throws SQLException {
+        Connection conn = null;
+        ActiveUnit unit = null;
+        Deque<ActiveUnit> units = activeUnits.get();
+
+        if (!readOnly) {
+            writeGate.readLock().lock();
+        }
+        try {
+            conn = DatabaseConnectionManager.establishConnection();
+            if (readOnly) {
+                // Both have to be set before the transaction starts, the pool puts them back when the connection returns
+                conn.setReadOnly(true);
+                conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            }
+            conn.setAutoCommit(false);
+            unit = new ActiveUnit(conn);
+            units.push(unit);
+
+            T result = work.execute(conn);
+            unit.runBeforeCommitActions();
+            conn.commit();
+            logger.debug("Unit of work committed.");
+            units.remove(unit);
+            unit.runAfterCommitActions();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            rollback(conn);
+            throw e;
+        } finally {
+            if (unit != null) {
+                units.remove(unit);
+            }
+            ResourcesUtils.closeConnection(conn);
+            if (!readOnly) {
+                writeGate.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Runs {@code action} once no writing unit of work is running in this process, holding new ones back until it
+     * returns. For maintenance that would otherwise race with writers, such as deleting users that a writer has just
+     * looked up from the cache. Must not be called from inside a unit of work.
+     */
+    public static void runExclusive(Runnable action) {
+        writeGate.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            writeGate.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Runs {@code work} inside a savepoint of the unit of work that owns {@code conn}. If it throws, only its own
+     * changes and after-commit actions are undone, and the enclosing unit of work can carry on and commit the rest.
+     * If the savepoint can't be rolled back to, a {@link SQLTransactionRollbackException} is thrown and the enclosing
+     * unit of work has to be abandoned.
+     */
+    public static <T> T executeInSavepoint(Connection conn, Work<T> work) throws SQLException {
+        ActiveUnit unit = findUnit(conn);
+        if (unit == null) {
+            throw new IllegalStateException("Savepoints can only be used inside a unit of work");
+        }
+
+        int actionCount = unit.afterCommitActions.size();
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+            T result = work.execute(conn);
+            conn.releaseSavepoint(savepoint);
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            try {
+                conn.rollback(savepoint);
+            } catch (SQLException rollbackFailure) {
+                // Typically the server already rolled the whole transaction back, taking the savepoint with it
+                rollbackFailure.addSuppressed(e);
+                throw new SQLTransactionRollbackException("The transaction was rolled back: " + e.getMessage(),
+                        rollbackFailure.getSQLState(), rollbackFailure);
+            }
+            unit.afterCommitActions.subList(actionCount, unit.afterCommitActions.size()).clear();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs {@code action} once the unit of work that owns {@code conn} has committed, or straight away when the
+     * connection is not part of a unit of work. Actions of a unit that rolls back are discarded.
+     * <p>
+     * Used to keep in-memory state such as caches from seeing changes that were never committed.
+     */
+    public static void afterCommit(Connection conn, Runnable action) {
+        ActiveUnit unit = findUnit(conn);
+        if (unit != null) {
+            unit.afterCommitActions.add(action);
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Runs {@code action} on {@code conn} as the last work of the unit of work that owns it, right before the commit,
+     * at most once per unit of work for the same key. If it throws, the unit of work rolls back. Used for statements
+     * that lock a row every writer needs, such as bumping the ledger generation, so the lock is held only until the
+     * commit. Unlike after-commit actions it is kept when a savepoint rolls back, so it must be harmless on its own.
+     * Runs straight away when the connection is not part of a unit of work.
+     */
+    public static void beforeCommitOnce(Connection conn, Object key, Work<?> action) throws SQLException {
+        ActiveUnit unit = findUnit(conn);
+        if (unit != null) {
+            unit.beforeCommitActions.putIfAbsent(key, action);
+        } else {
+            action.execute(conn);
+        }
+    }
+
+    /**
+     * @return whether {@code conn} belongs to a unit of work running on this thread
+     */
+    public static boolean isActive(Connection conn) {
+        return findUnit(conn) != null;
+    }
+
+    private static ActiveUnit findUnit(Connection conn) {
+        for (ActiveUnit unit : activeUnits.get()) {
+            if (unit.conn == conn) {
+                return unit;
+            }
+        }
+        return null;
+    }
+
+    private static void rollback(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.rollback();
+            logger.warn("Unit of work rolled back.");
+        } catch (SQLException e) {
+            logger.error("Failed to roll back unit of work: {}", e.getMessage(), e);
+        }
+    }
+
+    private static class ActiveUnit {
+        private final Connection conn;
+        private final List<Runnable> afterCommitActions = new ArrayList<>();
+        private final Map<Object, Work<?>> beforeCommitActions = new LinkedHashMap<>();
+
+        ActiveUnit(Connection conn) {
+            this.conn = conn;
+        }
+
+        void runBeforeCommitActions() throws SQLException {
+            for (Work<?> action : beforeCommitActions.values()) {
+                action.execute(conn);
+            }
+        }
+
+        void runAfterCommitActions() {
+            for (Runnable action : afterCommitActions) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    logger.error("After-commit action failed: {}", e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.mnfll.bill_splitter_cli;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe two-way cache of user names and ids.
+ * <p>
+ * Entries are evicted in least-recently-used order once {@code maxEntries} is reached. The list of all user names is
+ * cached separately and dropped whenever users are added or deleted.
+ */
+public class UserCache {
+    private final int maxEntries;
+    private final LinkedHashMap<String, Integer> nameToId;
+    private final Map<Integer, String> idToName = new HashMap<>();
+    private volatile List<String> allUserNames;
+    // Bumped on every invalidation so a list loaded before a concurrent change is not stored
+    private final AtomicLong userListVersion = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public UserCache(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.nameToId = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                if (size() > UserCache.this.maxEntries) {
+                    idToName.remove(eldest.getValue());
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns -1 when the name is not cached
+    public synchronized int getUserId(String userName) {
+        Integer userId = nameToId.get(userName);
+        if (userId == null) {
+            misses.incrementAndGet();
+            return -1;
+        }
+        hits.incrementAndGet();
+        return userId;
+    }
+
+    // Returns null when the id is not cached
+    public synchronized String getUserName(int userId) {
+        String userName = idToName.get(userId);
+        if (userName == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        // Touch the name so the LRU order reflects lookups in both directions
+        nameToId.get(userName);
+        hits.incrementAndGet();
+        return userName;
+    }
+
+    public synchronized void put(String userName, int userId) {
+        Integer previousId = nameToId.put(userName, userId);
+        if (previousId != null && previousId != userId) {
+            idToName.remove(previousId);
+        }
+        idToName.put(userId, userName);
+    }
+
+    public List<String> getAllUserNames() {
+        List<String> names = allUserNames;
+        if (names == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return names;
+    }
+
+    public long getUserListVersion() {
+        return userListVersion.get();
+    }
+
+    // Stores the list only if nothing was invalidated since the caller read the version and started loading it
+    public synchronized void putAllUserNames(List<String> userNames, long loadedAtVersion) {
+        if (userListVersion.get() == loadedAtVersion) {
+            allUserNames = Collections.unmodifiableList(new ArrayList<>(userNames));
+        }
+    }
+
+    // Called when a user is added: existing name/id pairs stay valid but the full name list doesn't
+    public synchronized void invalidateUserList() {
+        userListVersion.incrementAndGet();
+        allUserNames = null;
+    }
+
+    // Called when users are deleted
+    public synchronized void invalidateAll() {
+        nameToId.clear();
+        idToName.clear();
+        invalidateUserList();
+    }
+
+    public synchronized int size() {
+        return nameToId.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        return "UserCache[size=" + size() + "/" + maxEntries + ", hits=" + hitCount + ", misses=" + misses.get()
+                + ", hitRate=" + (lookups == 0 ? 0 : hitCount * 100 / lookups) + "%, evictions=" + evictions.get() + "]";
+    }
+}
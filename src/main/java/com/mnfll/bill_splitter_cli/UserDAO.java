@@ -1,5 +1,43 @@
 package com.mnfll.bill_splitter_cli;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Access to the `user` table. Methods that take a connection run inside the caller's transaction.
+ */
 public interface UserDAO {
 
+    /**
+     * @return the user's id, or -1 if there is no user with that name
+     */
+    int getUserIdByName(Connection connection, String userName) throws SQLException;
+
+    /**
+     * @return the user's name, or null if there is no user with that id
+     */
+    String getUserNameById(Connection connection, int userId) throws SQLException;
+
+    /**
+     * Returns the id of every debtor of the expense, in the order of {@link Expense#getDebtorNames()}, creating the
+     * users that don't exist yet.
+     */
+    List<Integer> insertUserData(Connection conn, Expense expense) throws SQLException;
+
+    /**
+     * Returns the id of every given name, creating the users that don't exist yet.
+     */
+    Map<String, Integer> resolveUserIds(Connection conn, Collection<String> names) throws SQLException;
+
+    List<String> getAllUserNames();
+
+    /**
+     * Deletes every user that no longer appears in any expense.
+     *
+     * @return the number of users deleted, or -1 if the delete failed
+     */
+    int deleteOrphanUsers();
 }
@@ -1,5 +1,55 @@
 package com.mnfll.bill_splitter_cli;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Access to the `user_expense` table, which holds each debtor's share of an expense. Methods run inside the caller's
+ * transaction and keep `user_balance` up to date.
+ */
 public interface UserExpenseDAO {
 
+    /**
+     * Inserts one share per debtor, {@code personIds} being the debtors' ids in the order of
+     * {@link Expense#getDebtorNames()}.
+     */
+    void insertUserExpenseData(Connection connection, Expense expense, List<Integer> personIds, int expenseId,
+                               int creditorId) throws SQLException;
+
+    /**
+     * Inserts the shares of many expenses at once.
+     *
+     * @return the number of shares inserted
+     */
+    int insertUserExpenseBatch(Connection connection, List<Expense> expenses, int[] expenseIds, int[] creditorIds,
+                               Map<String, Integer> userIds) throws SQLException;
+
+    /**
+     * @param paymentStatus {@code y} or {@code n}
+     * @return the number of shares updated, 0 if the user is not a debtor of the expense
+     */
+    int setPaymentStatus(Connection conn, int expenseId, int debtorId, String paymentStatus) throws SQLException;
+
+    /**
+     * Adds a debtor and re-splits the cost, creating the user if needed.
+     */
+    void addDebtor(Connection conn, int expenseId, String debtorName) throws SQLException;
+
+    /**
+     * Removes a debtor and re-splits the cost between the rest.
+     */
+    void removeDebtor(Connection conn, int expenseId, int debtorId) throws SQLException;
+
+    /**
+     * @return the debtors of the expense by user_id
+     */
+    HashMap<Integer, String> getDebtors(Connection conn, int expenseId);
+
+    /**
+     * Splits the expense's cost evenly between its current debtors.
+     */
+    void resplitAmountOwed(Connection conn, int expenseId) throws SQLException;
 }
@@ -1,5 +1,7 @@
 package com.mnfll.bill_splitter_cli.utilities;
 
+import com.mnfll.bill_splitter_cli.Money;
+
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -51,16 +53,17 @@ public class InputHandler {
         }
     }
 
-    public static double promptForDouble(Scanner scanner) {
+    // Returns the cost in cents, or -1 if cancelled
+    public static long promptForCost(Scanner scanner) {
         while (true) {
             System.out.print("Please enter the item total cost. Enter '0' to cancel. ");
             String input = scanner.nextLine().trim();
-            if (input.equals("0")) return Double.NaN;
+            if (input.equals("0")) return -1;
 
-            try {
-                return Double.parseDouble(input);
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid cost. Please enter a valid number.");
+            if (InputValidator.isValidCost(input)) {
+                return Money.parse(input);
+            } else {
+                System.out.println("Invalid cost. Please enter a positive amount with at most two decimal places.");
             }
         }
     }
@@ -87,7 +90,10 @@ public class InputHandler {
                 String name = scanner.nextLine();
                 if (name.equals("0")) return null;
 
-                if (InputValidator.isValidName(name)) {
+                if (names.stream().anyMatch(name::equalsIgnoreCase)) {
+                    // MySQL matches user names without regard to case, so these would be the same debtor twice
+                    System.out.println(name + " has already been added. Please enter a different name.");
+                } else if (InputValidator.isValidName(name)) {
                     names.add(name);
                     System.out.println(name + " has been added.");
                     break;
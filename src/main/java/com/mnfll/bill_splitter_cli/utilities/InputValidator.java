@@ -1,5 +1,7 @@
 package com.mnfll.bill_splitter_cli.utilities;
 
+import com.mnfll.bill_splitter_cli.Money;
+
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
@@ -7,7 +9,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class InputValidator {
-    private static final String DATE_FORMAT = "dd/MM/yyyy";
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy");
     // Compiles the patterns only once, improves performance
 
     private static final Pattern PERSON_NAME_PATTERN = Pattern.compile("^[\\p{L}0-9 .'-]{1,255}$");
@@ -15,16 +17,21 @@ public class InputValidator {
 
     public static boolean isValidDate(String input) {
         try {
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern(DATE_FORMAT);
-            LocalDate.parse(input, formatter);
+            LocalDate.parse(input, DATE_FORMAT);
             return true;
         } catch (DateTimeParseException e) {
             return false;
         }
     }
 
+    // A cost must be a positive amount with at most two decimal places
     public static boolean isValidCost(String input) {
-        return (isValidInteger(input) || isValidDouble(input));
+        input = sanitizeInput(input);
+        try {
+            return Money.parse(input) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
     public static boolean isValidInteger(String input) {
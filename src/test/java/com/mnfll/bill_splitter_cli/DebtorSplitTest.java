@@ -0,0 +1,25 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+
+public class DebtorSplitTest {
+
+    @Test
+    public void leftoverCentsGoToTheLowestDebtorIdsWhateverTheOrder() throws SQLException {
+        long[] shares = new long[3];
+        JdbcUserExpenseDAO.splitInDebtorIdOrder(1001, new int[]{30, 10, 20}, 3, shares);
+        assertArrayEquals(new long[]{333, 334, 334}, shares);
+    }
+
+    @Test
+    public void refusesADebtorListedTwice() {
+        long[] shares = new long[3];
+        assertThrows(SQLException.class,
+                () -> JdbcUserExpenseDAO.splitInDebtorIdOrder(1001, new int[]{10, 20, 10}, 3, shares));
+    }
+}
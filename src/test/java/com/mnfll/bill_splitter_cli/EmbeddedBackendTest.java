@@ -0,0 +1,96 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Scanner;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the migrations, an expense save and delete, and the debt report against the embedded H2 backend in a
+ * temporary directory, so the H2 dialect is exercised by the build rather than only by hand.
+ */
+public class EmbeddedBackendTest {
+    private static Path databaseDirectory;
+
+    @BeforeClass
+    public static void createDatabase() throws Exception {
+        databaseDirectory = Files.createTempDirectory("bill-splitter-test");
+        // Read by the configuration the first time it loads, so this has to happen before anything touches it
+        System.setProperty("db.backend", "embedded");
+        System.setProperty("db.embedded.path", databaseDirectory.resolve("ledger").toString());
+        App.awaitSchema();
+    }
+
+    @AfterClass
+    public static void deleteDatabase() throws Exception {
+        DatabaseConnectionManager.shutdown();
+        try (Stream<Path> paths = Files.walk(databaseDirectory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void savesReportsAndDeletesAnExpense() throws Exception {
+        assertEquals(SqlDialect.H2, SqlDialect.current());
+
+        Expense expense = new Expense(new Date(), "Market", "Groceries", 3000, List.of("alice", "bob", "carol"),
+                "alice");
+        int expenseId = UnitOfWork.execute(conn -> App.saveExpense(conn, expense));
+        assertTrue(expenseId > 0);
+
+        DebtCalculator.DebtSnapshot snapshot = new DebtCalculator().loadSnapshot();
+        SparseDebtMatrix netDebts = new NetDebtEngine().calculateNetDebts(snapshot.debtMatrix());
+        int alice = snapshot.participants().find("alice");
+        int bob = snapshot.participants().find("bob");
+        int carol = snapshot.participants().find("carol");
+        assertEquals(1000, netDebts.get(alice, bob));
+        assertEquals(1000, netDebts.get(alice, carol));
+        assertEquals(0, netDebts.get(bob, alice));
+
+        ExpenseDAO expenseDAO = new JdbcExpenseDAO();
+        UnitOfWork.execute(conn -> {
+            expenseDAO.deleteExpense(conn, expenseId);
+            return null;
+        });
+
+        snapshot = new DebtCalculator().loadSnapshot();
+        netDebts = new NetDebtEngine().calculateNetDebts(snapshot.debtMatrix());
+        assertEquals(0, netDebts.entryCount());
+    }
+
+    @Test
+    public void clearsTheDataAndRecreatesTheSchema() throws Exception {
+        UnitOfWork.execute(conn -> App.saveExpense(conn, new Expense(new Date(), "Cafe", "Lunch", 2000,
+                List.of("dave", "erin"), "dave")));
+
+        App.clearData(new Scanner("y\n"));
+
+        TableCreationManager tableCreationManager = new TableCreationManager();
+        int version = UnitOfWork.executeReadOnly(tableCreationManager::getSchemaVersion);
+        assertEquals(tableCreationManager.getLatestVersion(), version);
+        DebtCalculator.DebtSnapshot snapshot = new DebtCalculator().loadSnapshot();
+        assertEquals(0, snapshot.participants().size());
+
+        // Saving needs every table back, `user_balance` included
+        UnitOfWork.execute(conn -> App.saveExpense(conn, new Expense(new Date(), "Cafe", "Lunch", 2000,
+                List.of("dave", "erin"), "dave")));
+        snapshot = new DebtCalculator().loadSnapshot();
+        SparseDebtMatrix netDebts = new NetDebtEngine().calculateNetDebts(snapshot.debtMatrix());
+        assertEquals(1000, netDebts.get(snapshot.participants().find("dave"), snapshot.participants().find("erin")));
+
+        // Leaves the database empty for the other tests
+        App.clearData(new Scanner("y\n"));
+    }
+}
@@ -0,0 +1,180 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays journals left behind by a crash. A crash is simulated by copying the journal directory while the journal is
+ * still open, so the copy has no shutdown checkpoint and ends wherever the appends had got to.
+ */
+public class LedgerJournalRecoveryTest {
+    // Rounded up to the smallest segment the journal allows, 1024 records
+    private static final int SEGMENT_BYTES = 1;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysTheRecordsAfterTheCheckpoint() throws Exception {
+        Path directory = folder.newFolder("journal").toPath();
+        LedgerJournal journal = open(directory);
+        journal.append(changes(1, 2, 100, 10));
+        journal.checkpoint();
+        journal.append(changes(1, 2, 100, 5));
+        journal.append(changes(3, 4, 50, 1));
+        Path crashed = crashCopy(journal, directory);
+        journal.close();
+
+        LedgerJournal recovered = open(crashed);
+        LedgerJournal.ReplayResult replay = recovered.getReplayResult();
+        assertEquals(10, replay.checkpointSequence());
+        assertEquals(6, replay.recordsReplayed());
+        assertEquals(16, replay.lastSequence());
+        assertEquals(1500, recovered.getBalance(1, 2));
+        assertEquals(50, recovered.getBalance(3, 4));
+        recovered.close();
+    }
+
+    @Test
+    public void stopsAtATornRecordAndOverwritesWhatFollows() throws Exception {
+        Path directory = folder.newFolder("journal").toPath();
+        LedgerJournal journal = open(directory);
+        journal.append(changes(1, 2, 100, 3));
+        Path crashed = crashCopy(journal, directory);
+        journal.close();
+
+        // Tear the second record, the third is whole but must not be replayed after it
+        Path segment = segmentPath(crashed, 1);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xFF}), LedgerJournal.RECORD_SIZE + 33);
+        }
+
+        LedgerJournal recovered = open(crashed);
+        assertEquals(1, recovered.getReplayResult().lastSequence());
+        assertEquals(100, recovered.getBalance(1, 2));
+        recovered.append(changes(1, 2, 7, 1));
+        Path crashedAgain = crashCopy(recovered, crashed);
+        recovered.close();
+
+        LedgerJournal reopened = open(crashedAgain);
+        assertEquals(2, reopened.getReplayResult().lastSequence());
+        assertEquals(107, reopened.getBalance(1, 2));
+        reopened.close();
+    }
+
+    @Test
+    public void keepsAppendingAfterASegmentThatEndsBeforeTheCheckpoint() throws Exception {
+        Path directory = folder.newFolder("journal").toPath();
+        LedgerJournal journal = open(directory);
+        journal.append(changes(1, 2, 100, 5));
+        journal.checkpoint();
+        Path crashed = crashCopy(journal, directory);
+        journal.close();
+
+        // The checkpoint reached the disk but the last three records of the segment didn't
+        try (FileChannel channel = FileChannel.open(segmentPath(crashed, 1), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(3 * LedgerJournal.RECORD_SIZE), 2L * LedgerJournal.RECORD_SIZE);
+        }
+
+        LedgerJournal recovered = open(crashed);
+        assertEquals(5, recovered.getReplayResult().lastSequence());
+        assertEquals(500, recovered.getBalance(1, 2));
+        recovered.append(changes(1, 2, 7, 2));
+        Path crashedAgain = crashCopy(recovered, crashed);
+        recovered.close();
+
+        LedgerJournal reopened = open(crashedAgain);
+        assertEquals(7, reopened.getReplayResult().lastSequence());
+        assertEquals(2, reopened.getReplayResult().recordsReplayed());
+        assertEquals(514, reopened.getBalance(1, 2));
+        reopened.close();
+    }
+
+    @Test
+    public void refusesToReplayAcrossAMissingSegment() throws Exception {
+        Path directory = folder.newFolder("journal").toPath();
+        LedgerJournal journal = open(directory);
+        journal.append(changes(1, 2, 1, 2500));
+        Path crashed = crashCopy(journal, directory);
+        journal.close();
+
+        Files.delete(segmentPath(crashed, 1025));
+        IOException e = assertThrows(IOException.class, () -> open(crashed));
+        assertTrue(e.getMessage(), e.getMessage().contains("are missing"));
+    }
+
+    @Test
+    public void archivesTheSegmentsACheckpointCovers() throws Exception {
+        Path directory = folder.newFolder("journal").toPath();
+        LedgerJournal journal = open(directory);
+        journal.append(changes(1, 2, 1, 2500));
+        journal.checkpoint();
+
+        assertFalse(Files.exists(segmentPath(directory, 1)));
+        assertFalse(Files.exists(segmentPath(directory, 1025)));
+        assertTrue(Files.exists(segmentPath(directory, 2049)));
+        assertTrue(Files.exists(segmentPath(directory.resolve("archive"), 1)));
+        assertTrue(Files.exists(segmentPath(directory.resolve("archive"), 1025)));
+        journal.close();
+
+        LedgerJournal reopened = open(directory);
+        assertEquals(0, reopened.getReplayResult().recordsReplayed());
+        assertEquals(2500, reopened.getBalance(1, 2));
+        reopened.close();
+    }
+
+    @Test
+    public void refusesASecondOpenWhileTheJournalIsLocked() throws Exception {
+        Path directory = folder.newFolder("journal").toPath();
+        LedgerJournal journal = open(directory);
+        IOException e = assertThrows(IOException.class, () -> open(directory));
+        assertTrue(e.getMessage(), e.getMessage().contains("in use"));
+        journal.close();
+
+        open(directory).close();
+    }
+
+    private static LedgerJournal open(Path directory) throws IOException {
+        // No automatic checkpoints, so the tests decide what is replayed
+        return LedgerJournal.open(directory, SEGMENT_BYTES, 0, 0, 0);
+    }
+
+    private static List<LedgerJournal.Entry> changes(int creditorId, int debtorId, long amountCents, int count) {
+        return new ArrayList<>(Collections.nCopies(count, new LedgerJournal.Entry(
+                LedgerJournal.RecordType.BALANCE_CHANGED, 0, creditorId, debtorId, amountCents)));
+    }
+
+    private Path crashCopy(LedgerJournal journal, Path directory) throws IOException {
+        journal.awaitDurable();
+        Path copy = folder.newFolder().toPath();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                if (Files.isRegularFile(file) && !file.getFileName().toString().equals("journal.lock")) {
+                    Files.copy(file, copy.resolve(file.getFileName()));
+                }
+            }
+        }
+        return copy;
+    }
+
+    private static Path segmentPath(Path directory, long firstSequence) {
+        return directory.resolve(String.format("journal-%020d.seg", firstSequence));
+    }
+}
@@ -0,0 +1,95 @@
+package com.mnfll.bill_splitter_cli;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that netting split across a fork/join pool gives exactly the sequential result, for ledgers small enough
+ * that every leaf holds a single row and large enough that leaves hold many.
+ */
+public class NetDebtEngineTest {
+    private static final int[] PARTICIPANT_COUNTS = {1, 3, 7, 9, 15, 33, 101, 257};
+    private static final int[] PARALLELISMS = {2, 3, 4, 7};
+
+    private static ForkJoinPool sequentialPool;
+
+    @BeforeClass
+    public static void createPool() {
+        sequentialPool = new ForkJoinPool(1);
+    }
+
+    @AfterClass
+    public static void shutdownPool() {
+        sequentialPool.shutdown();
+    }
+
+    @Test
+    public void parallelNettingMatchesSequentialToTheCent() {
+        NetDebtEngine sequential = new NetDebtEngine(sequentialPool, Long.MAX_VALUE);
+        Random random = new Random(42);
+
+        for (int parallelism : PARALLELISMS) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                NetDebtEngine parallel = new NetDebtEngine(pool, 0);
+                for (int participants : PARTICIPANT_COUNTS) {
+                    SparseDebtMatrix debts = randomLedger(random, participants);
+                    assertEquals(participants > 1, parallel.isParallel(debts));
+
+                    assertArrayEquals(sequential.calculateNetPositions(debts), parallel.calculateNetPositions(debts));
+                    assertSameEntries(sequential.calculateNetDebts(debts), parallel.calculateNetDebts(debts));
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void tiedPairsNetToNothing() {
+        SparseDebtMatrix debts = new SparseDebtMatrix(3);
+        debts.add(0, 1, 1234);
+        debts.add(1, 0, 1234);
+        debts.add(2, 0, 500);
+
+        SparseDebtMatrix netDebts = new NetDebtEngine(new ForkJoinPool(2), 0).calculateNetDebts(debts);
+        assertEquals(1, netDebts.entryCount());
+        assertEquals(500, netDebts.get(2, 0));
+    }
+
+    // Random amounts in whole cents, with about a quarter of the pairs owing each other exactly the same amount
+    private static SparseDebtMatrix randomLedger(Random random, int participants) {
+        SparseDebtMatrix debts = new SparseDebtMatrix(participants);
+        for (int creditor = 0; creditor < participants; creditor++) {
+            for (int debtor = creditor + 1; debtor < participants; debtor++) {
+                int shape = random.nextInt(4);
+                long amount = 1 + random.nextInt(1_000_000);
+                if (shape == 0) {
+                    debts.add(creditor, debtor, amount);
+                    debts.add(debtor, creditor, amount);
+                } else if (shape == 1) {
+                    debts.add(creditor, debtor, amount);
+                } else if (shape == 2) {
+                    debts.add(debtor, creditor, amount);
+                    debts.add(creditor, debtor, 1 + random.nextInt(1_000_000));
+                }
+            }
+        }
+        return debts;
+    }
+
+    private static void assertSameEntries(SparseDebtMatrix expected, SparseDebtMatrix actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.entryCount(), actual.entryCount());
+        expected.forEach((row, col, amount) -> assertEquals(amount, actual.get(row, col)));
+        actual.forEach((row, col, amount) -> assertTrue(amount > 0));
+    }
+}